@@ -0,0 +1,280 @@
+package org.mpilone.vaadin.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mpilone.vaadin.ChunkTelemetry;
+import org.mpilone.vaadin.PriorityGate;
+import org.mpilone.vaadin.RetryBufferArena;
+
+/**
+ * <p>
+ * Runs a load test of the {@link org.mpilone.vaadin.Plupload} component. An
+ * embedded server is started on the loopback interface and driven by the
+ * configured number of {@link SimulatedClient}s which all upload
+ * concurrently. When all clients finish, the throughput, per-chunk latency,
+ * heap high-water mark, and thread usage are reported along with the results
+ * seen by the server.
+ * </p>
+ * <p>
+ * The clients run in the same JVM as the server so the reported heap and
+ * thread usage include the clients. The clients share a single copy of the
+ * file content and otherwise allocate little so the difference between runs
+ * with different server configurations is still meaningful. See
+ * {@link LoadTestConfig} for the available settings.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class LoadTest {
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+  private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+  /**
+   * The main entry point.
+   *
+   * @param args the command line arguments (ignored)
+   *
+   * @throws Exception if the server fails to start or stop
+   */
+  public static void main(String[] args) throws Exception {
+    LoadTestConfig config = new LoadTestConfig();
+
+    RetryBufferArena arena = RetryBufferArena.getDefault();
+    if (config.heapBudget >= 0) {
+      arena.setHeapBudget(config.heapBudget);
+    }
+    if (config.directBudget >= 0) {
+      arena.setDirectBudget(config.directBudget);
+    }
+    if (config.gatePermits > 0) {
+      PriorityGate.getDefault().setPermits(config.gatePermits);
+    }
+
+    LoadTestServer server = new LoadTestServer(config);
+    String baseUrl = server.start();
+
+    byte[] fileData = new byte[config.fileSize];
+    for (int i = 0; i < fileData.length; ++i) {
+      fileData[i] = ServerStats.patternByte(i);
+    }
+
+    System.out.printf("Running %d clients uploading %d files of %d bytes "
+        + "in %d byte chunks to %s%n", config.clients, config.filesPerClient,
+        config.fileSize, config.chunkSize, baseUrl);
+
+    try {
+      run(config, server, baseUrl, fileData);
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Runs all the clients and reports the results.
+   *
+   * @param config the load test configuration
+   * @param server the running server
+   * @param baseUrl the base URL of the application
+   * @param fileData the content of every file uploaded
+   *
+   * @throws InterruptedException if interrupted while waiting for the clients
+   */
+  private static void run(LoadTestConfig config, final LoadTestServer server,
+      String baseUrl, byte[] fileData) throws InterruptedException {
+
+    final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    final AtomicLong heapHighWater = new AtomicLong();
+    final AtomicInteger busyHighWater = new AtomicInteger();
+
+    System.gc();
+    threadBean.resetPeakThreadCount();
+
+    ScheduledExecutorService sampler = Executors.
+        newSingleThreadScheduledExecutor();
+    sampler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        long heap = memoryBean.getHeapMemoryUsage().getUsed();
+        if (heap > heapHighWater.get()) {
+          heapHighWater.set(heap);
+        }
+        int busy = server.getBusyThreads();
+        if (busy > busyHighWater.get()) {
+          busyHighWater.set(busy);
+        }
+      }
+    }, 0, config.sampleInterval, TimeUnit.MILLISECONDS);
+
+    ExecutorService executor = Executors.newFixedThreadPool(config.clients);
+    List<Future<SimulatedClient>> futures = new ArrayList<>();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < config.clients; ++i) {
+      futures.add(executor.submit(new SimulatedClient(i, baseUrl, config,
+          fileData)));
+    }
+
+    List<SimulatedClient> clients = new ArrayList<>();
+    int clientErrors = 0;
+    for (Future<SimulatedClient> future : futures) {
+      try {
+        clients.add(future.get());
+      }
+      catch (ExecutionException ex) {
+        if (clientErrors++ == 0) {
+          ex.getCause().printStackTrace();
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    executor.shutdown();
+    sampler.shutdown();
+
+    report(config, clients, clientErrors, elapsed, heapHighWater.get(),
+        threadBean.getPeakThreadCount(), busyHighWater.get(), server.
+        getThreads());
+  }
+
+  /**
+   * Prints the results of the run.
+   *
+   * @param config the load test configuration
+   * @param clients the clients that completed
+   * @param clientErrors the number of clients that failed unexpectedly
+   * @param elapsed the duration of the run in nanoseconds
+   * @param heapHighWater the highest sampled heap usage in bytes
+   * @param peakThreads the peak number of live threads in the JVM
+   * @param busyHighWater the highest sampled number of busy server threads
+   * @param serverThreads the number of server threads at the end of the run
+   */
+  private static void report(LoadTestConfig config,
+      List<SimulatedClient> clients, int clientErrors, long elapsed,
+      long heapHighWater, int peakThreads, int busyHighWater,
+      int serverThreads) {
+
+    int chunks = 0;
+    int retries = 0;
+    int filesSucceeded = 0;
+    int filesFailed = 0;
+    long bytes = 0;
+    for (SimulatedClient client : clients) {
+      chunks += client.getChunks();
+      retries += client.getRetries();
+      filesSucceeded += client.getFilesSucceeded();
+      filesFailed += client.getFilesFailed();
+      bytes += client.getBytes();
+    }
+
+    long[] latencies = getLatencies(clients, null);
+
+    double seconds = elapsed / (NANOS_PER_MILLI * 1000);
+
+    System.out.printf("Completed in %.1f s (%d client errors)%n", seconds,
+        clientErrors);
+    System.out.printf("Client files: %d succeeded, %d failed%n",
+        filesSucceeded, filesFailed);
+    System.out.printf("Server files: %d succeeded, %d failed, %d corrupt, "
+        + "%d bytes received%n", ServerStats.SUCCEEDED.get(),
+        ServerStats.FAILED.get(), ServerStats.CORRUPT.get(), ServerStats.BYTES.
+        get());
+    System.out.printf("Chunks: %d accepted, %d retried (%.1f%%)%n", chunks,
+        retries, chunks == 0 ? 0.0 : 100.0 * retries / chunks);
+    System.out.printf("Throughput: %.1f MB/s, %.1f chunks/s%n", bytes
+        / BYTES_PER_MB / seconds, chunks / seconds);
+    System.out.printf("Chunk latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+        percentile(latencies, 50) / NANOS_PER_MILLI, percentile(latencies, 99)
+        / NANOS_PER_MILLI, percentile(latencies, 100) / NANOS_PER_MILLI);
+    if (config.highPriorityClients > 0) {
+      reportLatency("High priority", getLatencies(clients, true));
+      reportLatency("Low priority", getLatencies(clients, false));
+    }
+    System.out.printf("Heap high-water: %.1f MB%n", heapHighWater
+        / BYTES_PER_MB);
+    RetryBufferArena arena = RetryBufferArena.getDefault();
+    System.out.printf("Retry buffer arena: %.1f MB heap, %.1f MB direct, "
+        + "%.1f MB disk allocated at end%n", arena.getHeapAllocated()
+        / BYTES_PER_MB, arena.getDirectAllocated() / BYTES_PER_MB, arena.
+        getDiskUsed() / BYTES_PER_MB);
+    System.out.printf("Threads: %d peak in JVM, %d peak busy of %d server "
+        + "threads (max %d)%n", peakThreads, busyHighWater, serverThreads,
+        config.serverThreads);
+    for (ChunkTelemetry.Statistics stats : ChunkTelemetry.getDefault().
+        getStatistics()) {
+      System.out.printf("Client telemetry: %s%n", stats);
+    }
+  }
+
+  /**
+   * Prints the p50, p99, and max of the given chunk latencies.
+   *
+   * @param label the label of the latencies
+   * @param latencies the sorted latencies in nanoseconds
+   */
+  private static void reportLatency(String label, long[] latencies) {
+    System.out.printf("%s chunk latency: p50 %.1f ms, p99 %.1f ms, max %.1f "
+        + "ms%n", label, percentile(latencies, 50) / NANOS_PER_MILLI,
+        percentile(latencies, 99) / NANOS_PER_MILLI, percentile(latencies,
+            100) / NANOS_PER_MILLI);
+  }
+
+  /**
+   * Returns the sorted chunk latencies of the given clients.
+   *
+   * @param clients the clients that completed
+   * @param highPriority true to only include high priority clients, false to
+   * only include low priority clients, or null to include all clients
+   *
+   * @return the sorted latencies in nanoseconds
+   */
+  private static long[] getLatencies(List<SimulatedClient> clients,
+      Boolean highPriority) {
+    int count = 0;
+    for (SimulatedClient client : clients) {
+      if (highPriority == null || highPriority == client.isHighPriority()) {
+        count += client.getChunks();
+      }
+    }
+
+    long[] latencies = new long[count];
+    int pos = 0;
+    for (SimulatedClient client : clients) {
+      if (highPriority == null || highPriority == client.isHighPriority()) {
+        long[] clientLatencies = client.getLatencies();
+        System.arraycopy(clientLatencies, 0, latencies, pos,
+            clientLatencies.length);
+        pos += clientLatencies.length;
+      }
+    }
+    Arrays.sort(latencies);
+    return latencies;
+  }
+
+  /**
+   * Returns the given percentile of the sorted values using the nearest rank
+   * method.
+   *
+   * @param sorted the sorted values
+   * @param percentile the percentile from 0 to 100
+   *
+   * @return the value at the percentile or 0 if there are no values
+   */
+  private static long percentile(long[] sorted, int percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+}
@@ -0,0 +1,136 @@
+package org.mpilone.vaadin.loadtest;
+
+/**
+ * The configuration of a load test run. All values are read from system
+ * properties prefixed with "loadtest." (e.g. -Dloadtest.clients=1000) so the
+ * same configuration is visible to the test driver and to the UIs created by
+ * the embedded server.
+ *
+ * @author mpilone
+ */
+class LoadTestConfig {
+
+  /**
+   * The number of simulated clients uploading concurrently. Each client has
+   * its own HTTP session and UI.
+   */
+  final int clients = Integer.getInteger("loadtest.clients", 100);
+
+  /**
+   * The number of files uploaded sequentially by each client.
+   */
+  final int filesPerClient = Integer.getInteger("loadtest.files", 5);
+
+  /**
+   * The size of each file in bytes.
+   */
+  final int fileSize = Integer.getInteger("loadtest.fileSize", 4 * 1024
+      * 1024);
+
+  /**
+   * The size of each chunk in bytes.
+   */
+  final int chunkSize = Integer.getInteger("loadtest.chunkSize", 512 * 1024);
+
+  /**
+   * The number of times a failed chunk is retried before the file fails.
+   */
+  final int maxRetries = Integer.getInteger("loadtest.maxRetries", 3);
+
+  /**
+   * The size of the server side retry buffer. Defaults to the chunk size so
+   * every chunk can be rolled back.
+   */
+  final int retryBufferSize = Integer.getInteger("loadtest.retryBufferSize",
+      chunkSize);
+
+  /**
+   * The heap budget in bytes of the shared retry buffer arena or -1 to use
+   * the default.
+   */
+  final long heapBudget = Long.getLong("loadtest.heapBudget", -1);
+
+  /**
+   * The direct memory budget in bytes of the shared retry buffer arena or -1
+   * to use the default.
+   */
+  final long directBudget = Long.getLong("loadtest.directBudget", -1);
+
+  /**
+   * The number of clients, starting with the first, whose uploads have high
+   * priority while the uploads of the remaining clients have low priority. If
+   * 0, all uploads have normal priority.
+   */
+  final int highPriorityClients = Integer.getInteger(
+      "loadtest.highPriorityClients", 0);
+
+  /**
+   * The number of permits of the shared priority gate or -1 to use the
+   * default.
+   */
+  final int gatePermits = Integer.getInteger("loadtest.gatePermits", -1);
+
+  /**
+   * The probability that a chunk request is aborted part way through the
+   * body to simulate a dropped connection.
+   */
+  final double failureRate = Double.parseDouble(System.getProperty(
+      "loadtest.failureRate", "0.02"));
+
+  /**
+   * The delay in milliseconds before a failed chunk is retried.
+   */
+  final long retryDelay = Long.getLong("loadtest.retryDelay", 100);
+
+  /**
+   * True to send a CRC32 checksum with each chunk so the server verifies it.
+   */
+  final boolean checksums = Boolean.parseBoolean(System.getProperty(
+      "loadtest.checksums", "true"));
+
+  /**
+   * True to send the offset of each chunk so the server can deduplicate the
+   * data of retried chunks.
+   */
+  final boolean offsets = Boolean.parseBoolean(System.getProperty(
+      "loadtest.offsets", "true"));
+
+  /**
+   * True to upload through the non-blocking upload servlet rather than the
+   * standard Vaadin file upload handler.
+   */
+  final boolean nonBlocking = Boolean.getBoolean("loadtest.nonBlocking");
+
+  /**
+   * True to pre-warm the upload path of each component when it is attached.
+   */
+  final boolean prewarm = Boolean.getBoolean("loadtest.prewarm");
+
+  /**
+   * True to compress the data in the retry buffer.
+   */
+  final boolean compressRetryBuffer = Boolean.getBoolean(
+      "loadtest.compressRetryBuffer");
+
+  /**
+   * The directory to write the uploaded files to with a temp file receiver
+   * or null to verify and discard the data in memory. Each file is verified
+   * and deleted after it is moved into place.
+   */
+  final String tempFileDir = System.getProperty("loadtest.tempFileDir");
+
+  /**
+   * The maximum number of threads in the server's request thread pool.
+   */
+  final int serverThreads = Integer.getInteger("loadtest.serverThreads", 200);
+
+  /**
+   * The seed of the random failure injection so runs are repeatable.
+   */
+  final long seed = Long.getLong("loadtest.seed", 1);
+
+  /**
+   * The interval in milliseconds at which heap and thread usage is sampled.
+   */
+  final long sampleInterval = Long.getLong("loadtest.sampleInterval", 50);
+}
@@ -0,0 +1,98 @@
+package org.mpilone.vaadin.loadtest;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.mpilone.vaadin.NonBlockingUploadServlet;
+
+import com.vaadin.server.VaadinServlet;
+
+/**
+ * An embedded Jetty server that serves the {@link LoadTestUI} on an ephemeral
+ * port of the loopback interface.
+ *
+ * @author mpilone
+ */
+class LoadTestServer {
+
+  private final LoadTestConfig config;
+  private QueuedThreadPool threadPool;
+  private Server server;
+  private ServerConnector connector;
+
+  /**
+   * Constructs the server.
+   *
+   * @param config the load test configuration
+   */
+  LoadTestServer(LoadTestConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @return the base URL of the application ending with a slash
+   *
+   * @throws Exception if the server fails to start
+   */
+  String start() throws Exception {
+    threadPool = new QueuedThreadPool(config.serverThreads);
+    threadPool.setName("loadtest-server");
+
+    server = new Server(threadPool);
+    connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    connector.setPort(0);
+    connector.setAcceptQueueSize(config.clients);
+    server.addConnector(connector);
+
+    ServletContextHandler context = new ServletContextHandler(
+        ServletContextHandler.SESSIONS);
+    context.setContextPath("/");
+
+    ServletHolder vaadin = new ServletHolder(new VaadinServlet());
+    vaadin.setInitParameter("UI", LoadTestUI.class.getName());
+    vaadin.setInitParameter("productionMode", "true");
+    context.addServlet(vaadin, "/*");
+
+    ServletHolder nonBlocking = new ServletHolder(
+        new NonBlockingUploadServlet());
+    nonBlocking.setAsyncSupported(true);
+    context.addServlet(nonBlocking, LoadTestUI.NON_BLOCKING_PATH);
+
+    server.setHandler(context);
+    server.start();
+
+    return "http://127.0.0.1:" + connector.getLocalPort() + "/";
+  }
+
+  /**
+   * Stops the server.
+   *
+   * @throws Exception if the server fails to stop
+   */
+  void stop() throws Exception {
+    server.stop();
+  }
+
+  /**
+   * Returns the number of request threads currently processing a request.
+   *
+   * @return the number of busy threads
+   */
+  int getBusyThreads() {
+    return threadPool.getBusyThreads();
+  }
+
+  /**
+   * Returns the number of request threads in the pool.
+   *
+   * @return the number of threads
+   */
+  int getThreads() {
+    return threadPool.getThreads();
+  }
+}
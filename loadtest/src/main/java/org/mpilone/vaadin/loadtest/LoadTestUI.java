@@ -0,0 +1,182 @@
+package org.mpilone.vaadin.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.mpilone.vaadin.Plupload;
+import org.mpilone.vaadin.TempFileReceiver;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.Upload;
+
+/**
+ * The UI created for each simulated client. It hosts a single
+ * {@link Plupload} component that verifies the received data against the
+ * expected pattern and discards it. If a temp file directory is configured,
+ * the data is written with a {@link TempFileReceiver} and the file is
+ * verified and deleted after it is moved into place.
+ *
+ * @author mpilone
+ */
+public class LoadTestUI extends UI {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The path the non-blocking upload servlet is mapped to.
+   */
+  static final String NON_BLOCKING_PATH = "/nonblocking-upload";
+
+  private VerifyingOutputStream outstream;
+  private long contentLength;
+
+  @Override
+  protected void init(VaadinRequest request) {
+    LoadTestConfig config = new LoadTestConfig();
+
+    final TempFileReceiver tempFileReceiver = config.tempFileDir == null
+        ? null : new TempFileReceiver(Paths.get(config.tempFileDir));
+    Plupload upload = new Plupload("Load Test", new Upload.Receiver() {
+      @Override
+      public OutputStream receiveUpload(String filename, String mimeType) {
+        outstream = new VerifyingOutputStream();
+        return outstream;
+      }
+    });
+    if (tempFileReceiver != null) {
+      upload.setChunkReceiver(tempFileReceiver);
+    }
+    upload.setChunkSize(config.chunkSize);
+    upload.setMaxRetries(config.maxRetries);
+    upload.setMaxRetryBufferSize(config.retryBufferSize);
+    upload.setRetryBufferCompressed(config.compressRetryBuffer);
+    upload.setPrewarmEnabled(config.prewarm);
+    if (config.nonBlocking) {
+      upload.setNonBlockingUploadUrl(NON_BLOCKING_PATH);
+    }
+    String priority = request.getParameter("priority");
+    if (priority != null) {
+      upload.setPriority(Plupload.Priority.valueOf(priority));
+    }
+
+    upload.addStartedListener(new Plupload.StartedListener() {
+      @Override
+      public void uploadStarted(Plupload.StartedEvent evt) {
+        contentLength = evt.getContentLength();
+      }
+    });
+    upload.addSucceededListener(new Plupload.SucceededListener() {
+      @Override
+      public void uploadSucceeded(Plupload.SucceededEvent evt) {
+        if (tempFileReceiver != null) {
+          verifyFile(tempFileReceiver, evt.getFilename());
+          return;
+        }
+
+        if (outstream != null && outstream.isValid() && outstream.
+            getPosition() == contentLength) {
+          ServerStats.SUCCEEDED.incrementAndGet();
+        }
+        else {
+          ServerStats.CORRUPT.incrementAndGet();
+        }
+        outstream = null;
+      }
+    });
+    upload.addFailedListener(new Plupload.FailedListener() {
+      @Override
+      public void uploadFailed(Plupload.FailedEvent evt) {
+        ServerStats.FAILED.incrementAndGet();
+        outstream = null;
+      }
+    });
+
+    setContent(upload);
+  }
+
+  /**
+   * Verifies the uploaded file written by the given receiver against the
+   * expected pattern and deletes it.
+   *
+   * @param receiver the receiver that wrote the file
+   * @param filename the name of the file
+   */
+  private void verifyFile(TempFileReceiver receiver, String filename) {
+    VerifyingOutputStream verifier = new VerifyingOutputStream();
+    try {
+      Path path = receiver.resolveTarget(filename);
+      try (InputStream instream = new BufferedInputStream(Files.newInputStream(
+          path))) {
+        byte[] buf = new byte[64 * 1024];
+        int len;
+        while ((len = instream.read(buf)) != -1) {
+          verifier.write(buf, 0, len);
+        }
+      }
+      Files.delete(path);
+    }
+    catch (IOException ex) {
+      verifier = null;
+    }
+
+    if (verifier != null && verifier.isValid() && verifier.getPosition()
+        == contentLength) {
+      ServerStats.SUCCEEDED.incrementAndGet();
+    }
+    else {
+      ServerStats.CORRUPT.incrementAndGet();
+    }
+  }
+
+  /**
+   * An output stream that discards the data written after verifying that it
+   * matches the expected pattern.
+   */
+  private static class VerifyingOutputStream extends OutputStream {
+
+    private long position;
+    private boolean valid = true;
+
+    @Override
+    public void write(int b) {
+      valid &= (byte) b == ServerStats.patternByte(position);
+      position++;
+      ServerStats.BYTES.incrementAndGet();
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) {
+      for (int i = off; i < off + len; ++i) {
+        valid &= data[i] == ServerStats.patternByte(position++);
+      }
+      ServerStats.BYTES.addAndGet(len);
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return the number of bytes written
+     */
+    public long getPosition() {
+      return position;
+    }
+
+    /**
+     * Returns true if all the data written matched the expected pattern.
+     *
+     * @return true if the data is valid
+     */
+    public boolean isValid() {
+      return valid;
+    }
+  }
+}
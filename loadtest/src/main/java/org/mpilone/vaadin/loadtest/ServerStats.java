@@ -0,0 +1,54 @@
+package org.mpilone.vaadin.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters updated by the server side of the load test. The server runs
+ * in the same JVM as the test driver so the counters are simply static.
+ *
+ * @author mpilone
+ */
+class ServerStats {
+
+  /**
+   * The number of uploads that fired a succeeded event with the expected
+   * content.
+   */
+  static final AtomicLong SUCCEEDED = new AtomicLong();
+
+  /**
+   * The number of uploads that fired a failed event.
+   */
+  static final AtomicLong FAILED = new AtomicLong();
+
+  /**
+   * The number of uploads that fired a succeeded event but where the data
+   * written to the receiver didn't match the file sent (e.g. duplicate or
+   * missing bytes after a retry).
+   */
+  static final AtomicLong CORRUPT = new AtomicLong();
+
+  /**
+   * The number of bytes written to the receivers.
+   */
+  static final AtomicLong BYTES = new AtomicLong();
+
+  /**
+   * Returns the expected value of the byte at the given position of every
+   * uploaded file. The pattern lets the receiver detect duplicated, missing,
+   * or reordered data without keeping a copy of the file.
+   *
+   * @param position the position in the file
+   *
+   * @return the expected byte value
+   */
+  static byte patternByte(long position) {
+    return (byte) (position % 251);
+  }
+
+  /**
+   * Private constructor. Static access only.
+   */
+  private ServerStats() {
+  }
+}
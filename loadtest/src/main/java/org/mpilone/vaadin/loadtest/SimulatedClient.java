@@ -0,0 +1,526 @@
+package org.mpilone.vaadin.loadtest;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mpilone.vaadin.Plupload;
+import org.mpilone.vaadin.shared.PluploadEvent;
+
+import com.vaadin.server.communication.ServerRpcHandler;
+import com.vaadin.shared.ApplicationConstants;
+import com.vaadin.shared.ui.ui.UIConstants;
+
+/**
+ * A simulated Plupload client. The client loads the application to get a
+ * session and UI, reads the upload URL from the initial state, and then
+ * uploads files in chunks the same way the HTML5 runtime does: lifecycle
+ * events are piggybacked on chunk requests and the file uploaded event is
+ * sent via RPC. Chunk requests are randomly aborted part way through the body
+ * and retried to simulate dropped connections.
+ *
+ * @author mpilone
+ */
+class SimulatedClient implements Callable<SimulatedClient> {
+
+  private static final String BOUNDARY = "----PluploadLoadTestBoundary";
+  private static final String UTF8 = "UTF-8";
+
+  private final int index;
+  private final String baseUrl;
+  private final LoadTestConfig config;
+  private final Random random;
+  private final byte[] fileData;
+  private final CRC32 crc = new CRC32();
+
+  private String cookie;
+  private String csrfToken;
+  private int uiId;
+  private String connectorId;
+  private String uploadUrl;
+  private boolean multipart = true;
+  private String clientId;
+  private int seq;
+  private JSONArray pendingEvents = new JSONArray();
+
+  private long[] latencies = new long[64];
+  private int chunks;
+  private int retries;
+  private int filesSucceeded;
+  private int filesFailed;
+  private long bytes;
+
+  /**
+   * Constructs the client.
+   *
+   * @param index the unique index of the client
+   * @param baseUrl the base URL of the application ending with a slash
+   * @param config the load test configuration
+   * @param fileData the content of every file uploaded. The array is shared
+   * by all clients and must not be modified.
+   */
+  SimulatedClient(int index, String baseUrl, LoadTestConfig config,
+      byte[] fileData) {
+    this.index = index;
+    this.baseUrl = baseUrl;
+    this.config = config;
+    this.fileData = fileData;
+    this.random = new Random(config.seed + index);
+  }
+
+  @Override
+  public SimulatedClient call() throws Exception {
+    init();
+
+    for (int i = 0; i < config.filesPerClient; ++i) {
+      uploadFile(index + "-" + i);
+    }
+    return this;
+  }
+
+  /**
+   * Loads the application and initializes a UI the same way the Vaadin
+   * bootstrap does.
+   *
+   * @throws IOException if the application cannot be loaded
+   * @throws JSONException if the initial UIDL cannot be parsed
+   */
+  private void init() throws IOException, JSONException {
+    // The bootstrap page establishes the HTTP session.
+    HttpURLConnection conn = open(baseUrl, "GET");
+    readResponse(conn);
+
+    conn = open(baseUrl + "?v-browserDetails=1&theme=reindeer&v-sw=1920"
+        + "&v-sh=1080&v-cw=1920&v-ch=1080&v-tzo=0&v-rtzo=0&v-dstd=0"
+        + "&v-dston=false&v-curdate=" + System.currentTimeMillis()
+        + "&v-wn=loadtest-" + index + (config.highPriorityClients > 0
+        ? "&priority=" + (isHighPriority() ? "HIGH" : "LOW") : ""), "POST");
+    conn.setDoOutput(true);
+    conn.getOutputStream().close();
+    JSONObject response = new JSONObject(readResponse(conn));
+    uiId = response.getInt(UIConstants.UI_ID_PARAMETER);
+
+    JSONObject uidl = new JSONObject(response.getString("uidl"));
+    csrfToken = uidl.optString(ApplicationConstants.UIDL_SECURITY_TOKEN_ID,
+        "");
+
+    JSONObject states = uidl.getJSONObject("state");
+    for (Iterator<?> iter = states.keys(); iter.hasNext();) {
+      String key = (String) iter.next();
+      JSONObject state = states.getJSONObject(key);
+      if (state.has("url")) {
+        connectorId = key;
+        uploadUrl = resolveUrl(state.getString("url"));
+        multipart = state.optBoolean("multipart", true);
+      }
+    }
+    if (uploadUrl == null) {
+      throw new IOException("No Plupload component found in the initial "
+          + "state.");
+    }
+
+    clientId = connectorId + "-loadtest-" + index;
+    queueEvent(PluploadEvent.INIT).put("runtime", "html5");
+  }
+
+  /**
+   * Uploads a single file in chunks. If a chunk fails more than the maximum
+   * number of retries, an error is reported to the server and the file is
+   * abandoned.
+   *
+   * @param fileId the unique ID of the file
+   *
+   * @throws IOException if an RPC call fails
+   * @throws JSONException if an event cannot be encoded
+   */
+  private void uploadFile(String fileId) throws IOException, JSONException {
+    JSONObject file = new JSONObject();
+    file.put("id", fileId);
+    file.put("name", "file-" + fileId + ".bin");
+    file.put("size", fileData.length);
+    file.put("type", "application/octet-stream");
+
+    queueEvent(PluploadEvent.UPLOAD_FILE).put("file", file);
+
+    for (int offset = 0; offset < fileData.length; offset +=
+        config.chunkSize) {
+      int len = Math.min(config.chunkSize, fileData.length - offset);
+
+      boolean sent = false;
+      int attempt = 0;
+      long start = System.currentTimeMillis();
+      for (; !sent && attempt <= config.maxRetries; ++attempt) {
+        if (attempt > 0) {
+          retries++;
+          sleep(config.retryDelay);
+        }
+        sent = sendChunk(fileId, offset, len);
+      }
+
+      // Report the timing the same way the client side connector does.
+      JSONObject chunk = queueEvent(PluploadEvent.CHUNK);
+      chunk.put("runtime", "html5");
+      chunk.put("chunkSize", config.chunkSize);
+      chunk.put("bytes", sent ? len : 0);
+      chunk.put("duration", System.currentTimeMillis() - start);
+      chunk.put("retries", attempt - 1);
+      chunk.put("status", sent ? 200 : 0);
+
+      if (!sent) {
+        JSONObject error = new JSONObject();
+        error.put("message", "HTTP Error.");
+        error.put("code", Plupload.ErrorCode.HTTP_ERROR.getCode());
+        error.put("file", file);
+        queueEvent(PluploadEvent.ERROR).put("error", error);
+        sendEvents();
+
+        filesFailed++;
+        return;
+      }
+    }
+
+    queueEvent(PluploadEvent.FILE_UPLOADED).put("file", file);
+    sendEvents();
+
+    filesSucceeded++;
+  }
+
+  /**
+   * Sends a single chunk. The request may be deliberately aborted part way
+   * through the body based on the configured failure rate.
+   *
+   * @param fileId the unique ID of the file
+   * @param offset the offset of the chunk in the file
+   * @param len the length of the chunk
+   *
+   * @return true if the chunk was accepted by the server
+   */
+  private boolean sendChunk(String fileId, int offset, int len) {
+    byte[] prefix = new byte[0];
+    byte[] suffix = new byte[0];
+    try {
+      if (multipart) {
+        prefix = ("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; "
+            + "filename=\"blob\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(UTF8);
+        suffix = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(UTF8);
+      }
+
+      long start = System.nanoTime();
+
+      String url = uploadUrl + (multipart ? "" : "&name=blob");
+      HttpURLConnection conn = open(url, "POST");
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(prefix.length + len + suffix.length);
+      conn.setRequestProperty("Content-Type", multipart
+          ? "multipart/form-data; boundary=" + BOUNDARY
+          : "application/octet-stream");
+      conn.setRequestProperty("X-Plupload-File-Id", fileId);
+      if (config.offsets) {
+        conn.setRequestProperty("X-Plupload-Chunk-Offset", String.valueOf(
+            offset));
+      }
+
+      if (pendingEvents.length() > 0) {
+        conn.setRequestProperty("X-Plupload-Client-Id", clientId);
+        conn.setRequestProperty("X-Plupload-Events", URLEncoder.encode(
+            pendingEvents.toString(), UTF8).replace("+", "%20"));
+      }
+      if (config.checksums) {
+        crc.reset();
+        crc.update(fileData, offset, len);
+        conn.setRequestProperty("X-Plupload-Chunk-Checksum", offset + ":"
+            + Long.toHexString(crc.getValue()));
+      }
+
+      OutputStream outstream = conn.getOutputStream();
+      outstream.write(prefix);
+
+      if (random.nextDouble() < config.failureRate) {
+        // Simulate a dropped connection part way through the chunk.
+        outstream.write(fileData, offset, len / 2);
+        outstream.flush();
+        conn.disconnect();
+        return false;
+      }
+
+      outstream.write(fileData, offset, len);
+      outstream.write(suffix);
+      outstream.close();
+
+      if (conn.getResponseCode() != 200) {
+        drain(conn);
+        return false;
+      }
+      drain(conn);
+
+      recordLatency(System.nanoTime() - start);
+      chunks++;
+      bytes += len;
+
+      // The events were delivered with the chunk.
+      pendingEvents = new JSONArray();
+      return true;
+    }
+    catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Sends the pending events to the server via RPC the same way the client
+   * side connector does when there is no chunk request to piggyback on.
+   *
+   * @throws IOException if the RPC call fails
+   * @throws JSONException if the events cannot be encoded
+   */
+  private void sendEvents() throws IOException, JSONException {
+    JSONArray invocation = new JSONArray();
+    invocation.put(connectorId);
+    invocation.put("org.mpilone.vaadin.shared.PluploadServerRpc");
+    invocation.put("onBatch");
+    invocation.put(new JSONArray().put(clientId).put(pendingEvents));
+
+    String message = csrfToken + ServerRpcHandler.VAR_BURST_SEPARATOR
+        + new JSONArray().put(invocation).toString();
+
+    HttpURLConnection conn = open(baseUrl + ApplicationConstants.UIDL_PATH
+        + "/?" + UIConstants.UI_ID_PARAMETER + "=" + uiId, "POST");
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", "text/plain;charset=utf-8");
+    OutputStream outstream = conn.getOutputStream();
+    outstream.write(message.getBytes(UTF8));
+    outstream.close();
+
+    readResponse(conn);
+    pendingEvents = new JSONArray();
+  }
+
+  /**
+   * Queues an event of the given type to be sent on the next chunk request
+   * or RPC call. All properties of the event are set because the server
+   * requires every bean property to be present.
+   *
+   * @param type the type of the event
+   *
+   * @return the event so additional properties can be set
+   *
+   * @throws JSONException if the event cannot be created
+   */
+  private JSONObject queueEvent(String type) throws JSONException {
+    JSONObject event = new JSONObject();
+    event.put("type", type);
+    event.put("seq", ++seq);
+    event.put("file", JSONObject.NULL);
+    event.put("error", JSONObject.NULL);
+    event.put("runtime", JSONObject.NULL);
+    event.put("percent", 0);
+    event.put("chunkSize", 0);
+    event.put("bytes", 0);
+    event.put("duration", 0);
+    event.put("retries", 0);
+    event.put("status", 0);
+    pendingEvents.put(event);
+    return event;
+  }
+
+  /**
+   * Opens a connection to the given URL with the session cookie, if any.
+   *
+   * @param url the URL to open
+   * @param method the request method
+   *
+   * @return the connection
+   *
+   * @throws IOException if the connection cannot be opened
+   */
+  private HttpURLConnection open(String url, String method) throws
+      IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).
+        openConnection();
+    conn.setRequestMethod(method);
+    conn.setUseCaches(false);
+    if (cookie != null) {
+      conn.setRequestProperty("Cookie", cookie);
+    }
+    return conn;
+  }
+
+  /**
+   * Reads the entire response of the given connection and captures the
+   * session cookie if one is set.
+   *
+   * @param conn the connection to read
+   *
+   * @return the response body
+   *
+   * @throws IOException if the response is not successful or cannot be read
+   */
+  private String readResponse(HttpURLConnection conn) throws IOException {
+    if (conn.getResponseCode() != 200) {
+      drain(conn);
+      throw new IOException("Request to " + conn.getURL() + " failed with "
+          + "status " + conn.getResponseCode() + ".");
+    }
+
+    String setCookie = conn.getHeaderField("Set-Cookie");
+    if (setCookie != null) {
+      cookie = setCookie.split(";", 2)[0];
+    }
+
+    Reader reader = new InputStreamReader(conn.getInputStream(), UTF8);
+    try {
+      StringBuilder sb = new StringBuilder();
+      char[] buf = new char[4096];
+      int len;
+      while ((len = reader.read(buf)) != -1) {
+        sb.append(buf, 0, len);
+      }
+      return sb.toString();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads and discards the response of the given connection so the
+   * connection can be reused.
+   *
+   * @param conn the connection to drain
+   */
+  private void drain(HttpURLConnection conn) {
+    try {
+      InputStream instream = conn.getResponseCode() < 400 ? conn.
+          getInputStream() : conn.getErrorStream();
+      if (instream != null) {
+        byte[] buf = new byte[1024];
+        while (instream.read(buf) != -1) {
+          // Discard
+        }
+        instream.close();
+      }
+    }
+    catch (IOException ex) {
+      // Ignore. The connection won't be reused.
+    }
+  }
+
+  /**
+   * Resolves the given URL from the shared state against the base URL of the
+   * application.
+   *
+   * @param url the URL from the shared state
+   *
+   * @return the absolute URL
+   */
+  private String resolveUrl(String url) {
+    if (url.startsWith(ApplicationConstants.APP_PROTOCOL_PREFIX)) {
+      return baseUrl + url.substring(
+          ApplicationConstants.APP_PROTOCOL_PREFIX.length());
+    }
+    else if (url.startsWith("/")) {
+      return baseUrl + url.substring(1);
+    }
+    return url;
+  }
+
+  /**
+   * Records the latency of a successful chunk request.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  private void recordLatency(long nanos) {
+    if (chunks == latencies.length) {
+      latencies = Arrays.copyOf(latencies, latencies.length * 2);
+    }
+    latencies[chunks] = nanos;
+  }
+
+  /**
+   * Sleeps for the given time, preserving the interrupt status.
+   *
+   * @param millis the time to sleep in milliseconds
+   */
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns true if the uploads of this client have high priority.
+   *
+   * @return true if the uploads have high priority
+   */
+  boolean isHighPriority() {
+    return index < config.highPriorityClients;
+  }
+
+  /**
+   * Returns the latencies in nanoseconds of the chunks that were accepted.
+   *
+   * @return the chunk latencies
+   */
+  long[] getLatencies() {
+    return Arrays.copyOf(latencies, chunks);
+  }
+
+  /**
+   * Returns the number of chunks accepted by the server.
+   *
+   * @return the number of chunks
+   */
+  int getChunks() {
+    return chunks;
+  }
+
+  /**
+   * Returns the number of chunk attempts that were retries.
+   *
+   * @return the number of retries
+   */
+  int getRetries() {
+    return retries;
+  }
+
+  /**
+   * Returns the number of files that were fully uploaded.
+   *
+   * @return the number of files
+   */
+  int getFilesSucceeded() {
+    return filesSucceeded;
+  }
+
+  /**
+   * Returns the number of files that were abandoned after too many retries.
+   *
+   * @return the number of files
+   */
+  int getFilesFailed() {
+    return filesFailed;
+  }
+
+  /**
+   * Returns the number of bytes in the chunks accepted by the server.
+   *
+   * @return the number of bytes
+   */
+  long getBytes() {
+    return bytes;
+  }
+}
@@ -0,0 +1,205 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A fixed capacity, in-memory pipe between a writing thread and a reading
+ * thread. Unlike {@link java.io.PipedInputStream}, the pipe doesn't track the
+ * identity of the writing thread so it can be written to by different
+ * container threads for each chunk of an upload. The writer never blocks:
+ * it checks {@link #isFull()} before writing the data of a chunk and the
+ * buffer grows if the data doesn't fit so the memory used is bounded by the
+ * capacity plus the largest write regardless of the upload size.
+ *
+ * @author mpilone
+ */
+class BoundedPipe {
+
+  private final int capacity;
+  private byte[] buf;
+  private final InputStream input = new PipeInputStream();
+  private int head;
+  private int count;
+  private boolean writeClosed;
+  private boolean readClosed;
+  private Exception abortReason;
+
+  /**
+   * Constructs the pipe.
+   *
+   * @param capacity the number of bytes buffered in the pipe at which it is
+   * full
+   */
+  public BoundedPipe(int capacity) {
+    this.capacity = capacity;
+    this.buf = new byte[capacity];
+  }
+
+  /**
+   * Returns true if the buffered data has reached the capacity of the pipe
+   * and the reader is still reading. The writer should stop writing until
+   * the reader catches up.
+   *
+   * @return true if the pipe is full
+   */
+  public synchronized boolean isFull() {
+    return count >= capacity && !readClosed;
+  }
+
+  /**
+   * Writes the given data to the pipe without waiting for the reader. If
+   * there isn't room for all of it, the buffer grows.
+   *
+   * @param b the data buffer
+   * @param off the offset of the first byte in the buffer
+   * @param len the number of bytes to write
+   *
+   * @throws IOException if the pipe is closed
+   */
+  public synchronized void write(byte[] b, int off, int len) throws
+      IOException {
+    if (writeClosed) {
+      throw new IOException("Pipe closed for writing.");
+    }
+    if (readClosed) {
+      throw new IOException("Pipe closed by reader.");
+    }
+
+    if (count + len > buf.length) {
+      grow(Math.max(count + len, 2 * buf.length));
+    }
+
+    while (len > 0) {
+      int tail = (head + count) % buf.length;
+      int n = Math.min(len, Math.min(buf.length - count, buf.length - tail));
+      System.arraycopy(b, off, buf, tail, n);
+      count += n;
+      off += n;
+      len -= n;
+
+      notifyAll();
+    }
+  }
+
+  /**
+   * Closes the write side of the pipe. The reader will see the end of the
+   * stream once all buffered data is read.
+   */
+  public synchronized void closeWrite() {
+    writeClosed = true;
+    notifyAll();
+  }
+
+  /**
+   * Aborts the pipe. The reader will get an exception on the next read and
+   * any buffered data is discarded.
+   *
+   * @param reason the root cause of the abort or null if not known
+   */
+  public synchronized void abort(Exception reason) {
+    abortReason = reason == null ? new IOException("Pipe aborted.") : reason;
+    writeClosed = true;
+    count = 0;
+    notifyAll();
+  }
+
+  /**
+   * Returns the input stream used to read from the pipe. Closing the stream
+   * closes the read side of the pipe causing any further writes to fail.
+   *
+   * @return the read side of the pipe
+   */
+  public InputStream getInputStream() {
+    return input;
+  }
+
+  /**
+   * Grows the buffer to the given length, moving the buffered data to the
+   * start of the new buffer. Must be called while holding the lock.
+   *
+   * @param length the new length of the buffer which must be at least the
+   * number of bytes buffered
+   */
+  private void grow(int length) {
+    byte[] grown = new byte[length];
+    int n = Math.min(count, buf.length - head);
+    System.arraycopy(buf, head, grown, 0, n);
+    System.arraycopy(buf, 0, grown, n, count - n);
+    buf = grown;
+    head = 0;
+  }
+
+  /**
+   * Waits for the state of the pipe to change.
+   *
+   * @throws InterruptedIOException if the thread is interrupted
+   */
+  private void await() throws InterruptedIOException {
+    try {
+      wait();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting on pipe.");
+    }
+  }
+
+  /**
+   * The read side of the pipe.
+   */
+  private class PipeInputStream extends InputStream {
+
+    private final byte[] single = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      int len = read(single, 0, 1);
+      return len == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      synchronized (BoundedPipe.this) {
+        if (len == 0) {
+          return 0;
+        }
+
+        while (count == 0 && !writeClosed) {
+          await();
+        }
+        if (abortReason != null) {
+          throw new IOException("Pipe aborted by writer.", abortReason);
+        }
+        if (count == 0) {
+          return -1;
+        }
+
+        int n = Math.min(len, Math.min(count, buf.length - head));
+        System.arraycopy(buf, head, b, off, n);
+        head = (head + n) % buf.length;
+        count -= n;
+
+        BoundedPipe.this.notifyAll();
+        return n;
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      synchronized (BoundedPipe.this) {
+        return count;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (BoundedPipe.this) {
+        readClosed = true;
+        count = 0;
+        BoundedPipe.this.notifyAll();
+      }
+    }
+  }
+}
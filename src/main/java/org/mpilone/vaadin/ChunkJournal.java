@@ -0,0 +1,563 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.Streams.tryClose;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A durable, append-only journal of committed chunks. Each upload writes a
+ * start record, a record for every committed chunk (file ID, offset, and
+ * length), and an end record when the upload completes or fails.
+ * The journal can be replayed on startup to rebuild the upload sessions that
+ * were in progress when the server stopped.
+ * </p>
+ * <p>
+ * The file IDs assigned by the client are only unique to the page so a
+ * restored upload is resumed in one of two ways: the client retries the
+ * chunk that failed during the restart with the same file ID, or the user
+ * selects the same file again (e.g. after reloading the page) and the client
+ * sends the resume token it kept for the file. In the latter case the client
+ * sends the file from the first byte again but the data already committed is
+ * skipped rather than written to the receiver. Resuming requires that the
+ * receiver implements {@link ResumableReceiver} (so the target can be
+ * reopened) and that the component receiving the next chunk uses the same
+ * {@link UploadSessionStore} that the journal was replayed into.
+ * </p>
+ * <p>
+ * The journal is compacted when it is replayed and, as uploads end, whenever
+ * it has grown past the compaction size so it only holds the uploads in
+ * progress. A single journal may be shared by many components and is safe
+ * for concurrent use.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ChunkJournal implements Serializable {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String START = "S";
+  private static final String CHUNK = "C";
+  private static final String END = "E";
+  private static final String SEPARATOR = "\t";
+
+  /**
+   * The default size in bytes the journal may grow to before it is compacted
+   * when an upload ends.
+   */
+  public static final long DEFAULT_COMPACT_SIZE = 1024 * 1024;
+
+  /**
+   * The executor that forces the records of journals with a sync interval to
+   * the storage device in the background.
+   */
+  private final static ScheduledExecutorService SYNC_EXECUTOR = Executors.
+      newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "plupload-journal-sync");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final File file;
+  private final long syncInterval;
+  private long compactSize = DEFAULT_COMPACT_SIZE;
+  private transient FileChannel channel;
+  private transient long size;
+  private transient long compactedSize;
+  private transient boolean opened;
+  private transient boolean compactable;
+  private transient boolean syncScheduled;
+  private transient Map<String, UploadSessionRecord> inProgress;
+  private transient Map<String, UploadSessionRecord> restored;
+
+  /**
+   * Constructs the journal which will append to the given file. Each record
+   * is forced to the storage device before returning.
+   *
+   * @param file the journal file
+   */
+  public ChunkJournal(File file) {
+    this(file, 0);
+  }
+
+  /**
+   * Constructs the journal which will append to the given file.
+   *
+   * @param file the journal file
+   * @param sync true to force each record to the storage device before
+   * returning, false to leave flushing to the operating system which is
+   * faster but may lose the most recent records on a power failure
+   */
+  public ChunkJournal(File file, boolean sync) {
+    this(file, sync ? 0 : -1);
+  }
+
+  /**
+   * Constructs the journal which will append to the given file. Forcing each
+   * record to the storage device before returning blocks the request (and
+   * the session lock it holds) for a device flush per chunk. With a positive
+   * sync interval the records are forced in the background instead so a
+   * single flush covers all the records appended during the interval, at the
+   * cost of losing up to an interval of records on a power failure. A lost
+   * chunk record is harmless because the client will send the data again.
+   *
+   * @param file the journal file
+   * @param syncInterval the maximum time in milliseconds before a record is
+   * forced to the storage device, 0 to force each record before returning, or
+   * -1 to leave flushing to the operating system
+   */
+  public ChunkJournal(File file, long syncInterval) {
+    this.file = file;
+    this.syncInterval = syncInterval;
+  }
+
+  /**
+   * Returns the size in bytes the journal may grow to before it is compacted
+   * when an upload ends.
+   *
+   * @return the compaction size in bytes
+   */
+  public long getCompactSize() {
+    return compactSize;
+  }
+
+  /**
+   * Sets the size in bytes the journal may grow to before it is compacted
+   * when an upload ends. The journal is rewritten with only the uploads in
+   * progress so a journal that holds many in-progress uploads is compacted
+   * again once it doubles in size. The default is
+   * {@link #DEFAULT_COMPACT_SIZE}.
+   *
+   * @param compactSize the compaction size in bytes
+   */
+  public synchronized void setCompactSize(long compactSize) {
+    this.compactSize = compactSize;
+  }
+
+  /**
+   * Appends the start record of an upload.
+   *
+   * @param record the state of the upload session at the start
+   */
+  public synchronized void started(UploadSessionRecord record) {
+    appendStart(record);
+
+    UploadSessionRecord copy = new UploadSessionRecord();
+    copy.setFileId(record.getFileId());
+    copy.setCommittedOffset(record.getCommittedOffset());
+    copy.setContentLength(record.getContentLength());
+    copy.setFilename(record.getFilename());
+    copy.setMimeType(record.getMimeType());
+    copy.setReceiverTarget(record.getReceiverTarget());
+    copy.setResumeToken(record.getResumeToken());
+    copy.setOwner(record.getOwner());
+    getInProgress().put(copy.getFileId(), copy);
+  }
+
+  /**
+   * Appends the record of a chunk committed to the receiver.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   * @param offset the offset in the file of the first byte of the chunk
+   * @param length the length of the chunk in bytes
+   */
+  public synchronized void chunkCommitted(String fileId, long offset,
+      long length) {
+    append(CHUNK, fileId, String.valueOf(offset), String.valueOf(length));
+
+    UploadSessionRecord record = getInProgress().get(fileId);
+    if (record != null && record.getCommittedOffset() == offset) {
+      record.setCommittedOffset(offset + length);
+    }
+  }
+
+  /**
+   * Appends the end record of an upload. The upload will not be restored on
+   * replay. The journal is compacted if it has grown past the compaction
+   * size.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   */
+  public synchronized void ended(String fileId) {
+    append(END, fileId);
+    getInProgress().remove(fileId);
+    if (restored != null) {
+      restored.remove(fileId);
+    }
+
+    if (compactable && size > Math.max(compactSize, 2 * compactedSize)) {
+      try {
+        compact(getInProgress());
+      }
+      catch (IOException ex) {
+        // The journal is still intact so it can be compacted later.
+        log.warn("Unable to compact chunk journal {}.", file, ex);
+      }
+    }
+  }
+
+  /**
+   * Replays the journal and saves a record for every upload that was started
+   * but not ended into the given store. The journal is then compacted so it
+   * only contains the uploads still in progress. This method should be called
+   * once on startup before any uploads are received.
+   *
+   * @param store the store to save the in-progress uploads to
+   *
+   * @return the number of uploads restored
+   *
+   * @throws IOException if the journal cannot be read or compacted
+   */
+  public synchronized int replay(UploadSessionStore store) throws IOException {
+    close();
+
+    Map<String, UploadSessionRecord> records = new LinkedHashMap<>();
+    if (file.isFile()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), UTF8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            applyRecord(line, records);
+          }
+          catch (RuntimeException ex) {
+            // Most likely a partial record from a crash during a write.
+            log.warn("Ignoring malformed journal record: {}", line);
+          }
+        }
+      }
+      finally {
+        tryClose(reader);
+      }
+    }
+
+    for (UploadSessionRecord record : records.values()) {
+      store.save(record);
+    }
+
+    compact(records);
+    inProgress = records;
+    restored = new LinkedHashMap<>(records);
+    opened = true;
+    compactable = true;
+
+    log.info("Restored {} in-progress uploads from journal {}.", records.
+        size(), file);
+
+    return records.size();
+  }
+
+  /**
+   * Claims the upload with the given file ID that was restored by the last
+   * replay so it can't be claimed again by resume token.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   *
+   * @return true if the upload was restored and not already claimed
+   */
+  synchronized boolean claimRestored(String fileId) {
+    return restored != null && restored.remove(fileId) != null;
+  }
+
+  /**
+   * Claims the upload with the given resume token that was restored by the
+   * last replay. Only restored uploads can be claimed so an upload in
+   * progress is never taken over by another request with the same token
+   * (e.g. the same file selected in two browser tabs).
+   *
+   * @param resumeToken the resume token sent by the client
+   *
+   * @return the file ID of the claimed upload or null if there is no
+   * unclaimed restored upload with the token
+   */
+  synchronized String claimRestoredByToken(String resumeToken) {
+    if (restored == null) {
+      return null;
+    }
+
+    for (UploadSessionRecord record : restored.values()) {
+      if (resumeToken.equals(record.getResumeToken())) {
+        restored.remove(record.getFileId());
+        return record.getFileId();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Closes the journal file. Any records waiting for a background sync are
+   * forced to the storage device first. The file will be reopened
+   * automatically on the next append.
+   */
+  public synchronized void close() {
+    if (channel != null) {
+      if (syncInterval > 0) {
+        try {
+          channel.force(false);
+        }
+        catch (IOException ex) {
+          log.warn("Unable to sync chunk journal {}.", file, ex);
+        }
+      }
+      tryClose(channel);
+      channel = null;
+    }
+  }
+
+  /**
+   * Applies the given journal line to the records being rebuilt.
+   *
+   * @param line the journal line
+   * @param records the records being rebuilt mapped by file ID
+   */
+  private void applyRecord(String line, Map<String, UploadSessionRecord> records) {
+    String[] fields = line.split(SEPARATOR, -1);
+    for (int i = 0; i < fields.length; ++i) {
+      fields[i] = decode(fields[i]);
+    }
+
+    String fileId = fields[1];
+    switch (fields[0]) {
+      case START:
+        UploadSessionRecord record = new UploadSessionRecord();
+        record.setFileId(fileId);
+        record.setCommittedOffset(Long.parseLong(fields[2]));
+        record.setContentLength(Long.parseLong(fields[3]));
+        record.setFilename(fields[4]);
+        record.setMimeType(fields[5]);
+        record.setReceiverTarget(fields[6]);
+        if (fields.length > 7) {
+          record.setResumeToken(fields[7]);
+        }
+        if (fields.length > 8) {
+          record.setOwner(fields[8]);
+        }
+        records.put(fileId, record);
+        break;
+
+      case CHUNK:
+        record = records.get(fileId);
+        long offset = Long.parseLong(fields[2]);
+        long length = Long.parseLong(fields[3]);
+        if (record != null && record.getCommittedOffset() == offset) {
+          record.setCommittedOffset(offset + length);
+        }
+        else if (record != null) {
+          log.warn("Ignoring out of order chunk at offset {} for file {} "
+              + "with committed offset {}.", offset, fileId, record.
+              getCommittedOffset());
+        }
+        break;
+
+      case END:
+        records.remove(fileId);
+        break;
+
+      default:
+        throw new IllegalArgumentException("Unknown record type.");
+    }
+  }
+
+  /**
+   * Returns the uploads in progress mapped by file ID, creating the map if
+   * required.
+   *
+   * @return the uploads in progress
+   */
+  private Map<String, UploadSessionRecord> getInProgress() {
+    if (inProgress == null) {
+      inProgress = new LinkedHashMap<>();
+    }
+    return inProgress;
+  }
+
+  /**
+   * Rewrites the journal so it only contains start records for the given
+   * uploads.
+   *
+   * @param records the uploads still in progress
+   *
+   * @throws IOException if the journal cannot be written
+   */
+  private void compact(Map<String, UploadSessionRecord> records) throws
+      IOException {
+    close();
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmpFile = File.createTempFile("journal", ".tmp", dir);
+    try {
+      channel = new FileOutputStream(tmpFile, true).getChannel();
+      size = 0;
+      for (UploadSessionRecord record : records.values()) {
+        appendStart(record);
+      }
+      if (syncInterval == 0) {
+        channel.force(false);
+      }
+      close();
+
+      Files.move(tmpFile.toPath(), file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      close();
+      Files.deleteIfExists(tmpFile.toPath());
+    }
+    compactedSize = size;
+  }
+
+  /**
+   * Appends the start record of an upload.
+   *
+   * @param record the state of the upload session at the start
+   */
+  private void appendStart(UploadSessionRecord record) {
+    append(START, record.getFileId(), String.valueOf(
+        record.getCommittedOffset()), String.valueOf(
+            record.getContentLength()), record.getFilename(), record.
+        getMimeType(), record.getReceiverTarget(), record.getResumeToken(),
+        record.getOwner());
+  }
+
+  /**
+   * Appends a single record made up of the given fields.
+   *
+   * @param fields the fields of the record
+   */
+  private synchronized void append(String... fields) {
+    StringBuilder sb = new StringBuilder();
+    for (String field : fields) {
+      if (sb.length() > 0) {
+        sb.append(SEPARATOR);
+      }
+      sb.append(encode(field));
+    }
+    sb.append('\n');
+
+    try {
+      if (channel == null) {
+        channel = new FileOutputStream(file, true).getChannel();
+        size = channel.size();
+        if (!opened) {
+          // Records appended by an earlier run that wasn't replayed aren't
+          // known so they would be lost by a compaction.
+          compactable = size == 0;
+          opened = true;
+        }
+      }
+
+      ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(UTF8));
+      size += buf.remaining();
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+
+      if (syncInterval == 0) {
+        channel.force(false);
+      }
+      else if (syncInterval > 0 && !syncScheduled) {
+        syncScheduled = true;
+        SYNC_EXECUTOR.schedule(new Runnable() {
+          @Override
+          public void run() {
+            sync();
+          }
+        }, syncInterval, TimeUnit.MILLISECONDS);
+      }
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to write to chunk journal " + file,
+          ex);
+    }
+  }
+
+  /**
+   * Forces the records appended since the last sync to the storage device.
+   * The device flush happens outside of the journal lock so appends are not
+   * blocked while it runs.
+   */
+  private void sync() {
+    FileChannel syncChannel;
+    synchronized (this) {
+      syncScheduled = false;
+      syncChannel = channel;
+    }
+
+    if (syncChannel == null) {
+      return;
+    }
+
+    try {
+      syncChannel.force(false);
+    }
+    catch (ClosedChannelException ex) {
+      // The journal was closed or compacted which forced the records.
+    }
+    catch (IOException ex) {
+      log.warn("Unable to sync chunk journal {}.", file, ex);
+    }
+  }
+
+  /**
+   * Encodes the given field so it can't contain a separator or line break.
+   *
+   * @param value the value to encode or null
+   *
+   * @return the encoded value
+   */
+  private static String encode(String value) {
+    try {
+      return value == null ? "" : URLEncoder.encode(value, UTF8.name());
+    }
+    catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Decodes the given field.
+   *
+   * @param value the encoded value
+   *
+   * @return the decoded value or null if the value is empty
+   */
+  private static String decode(String value) {
+    try {
+      return value.isEmpty() ? null : URLDecoder.decode(value, UTF8.name());
+    }
+    catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * The output stream given to a single chunk request. The data is passed to a
+ * {@link ChunkWriter} along with its offset in the file so data already
+ * written by another attempt at the chunk is skipped. Close calls are ignored
+ * because the receiver stream is shared by all the chunks of an upload. The
+ * stream can be reset so a single instance can be reused for every chunk of
+ * an upload. Single byte writes are batched in a small buffer and passed to
+ * the writer as an array when the buffer is full, an array is written, or the
+ * stream is flushed or closed. Closing the stream also acquires the gate
+ * permit needed to commit the chunk because the stream is closed before the
+ * session lock is taken to finish the chunk.
+ *
+ * @author mpilone
+ */
+class ChunkOutputStream extends OutputStream {
+
+  /**
+   * The number of single byte writes batched before being passed to the
+   * writer.
+   */
+  private static final int BATCH_SIZE = 512;
+
+  private ChunkWriter writer;
+  private long offset;
+  private long position;
+  private long startTime;
+  private CRC32 checksum;
+  private long expectedChecksum = -1;
+  private byte[] batch;
+  private int batchCount;
+  private boolean closed;
+  private boolean admitted;
+
+  /**
+   * Resets the stream to write a new chunk. Any batched data is discarded.
+   *
+   * @param writer the writer to pass the data to
+   * @param offset the offset in the file of the first byte of the chunk
+   * @param expectedChecksum the CRC32 checksum of the chunk sent by the client
+   * or -1 to skip the checksum calculation
+   */
+  void reset(ChunkWriter writer, long offset, long expectedChecksum) {
+    releaseCommit();
+    this.closed = false;
+
+    this.writer = writer;
+    this.offset = offset;
+    this.position = offset;
+    this.expectedChecksum = expectedChecksum;
+    this.batchCount = 0;
+
+    if (expectedChecksum != -1) {
+      if (checksum == null) {
+        checksum = new CRC32();
+      }
+      checksum.reset();
+    }
+  }
+
+  /**
+   * Returns the writer the data is passed to.
+   *
+   * @return the writer
+   */
+  ChunkWriter getWriter() {
+    return writer;
+  }
+
+  /**
+   * Returns the offset in the file of the first byte of the chunk.
+   *
+   * @return the chunk offset
+   */
+  long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Sets the time the request started transferring data.
+   *
+   * @param startTime the start time from {@link System#nanoTime()}
+   */
+  void setStartTime(long startTime) {
+    this.startTime = startTime;
+  }
+
+  /**
+   * Returns the time the request started transferring data.
+   *
+   * @return the start time from {@link System#nanoTime()}
+   */
+  long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Returns the number of bytes written to this stream since it was reset,
+   * including any bytes skipped by the writer.
+   *
+   * @return the number of bytes received
+   */
+  long getBytesReceived() {
+    return position - offset;
+  }
+
+  /**
+   * Returns the checksum of the chunk sent by the client.
+   *
+   * @return the expected CRC32 checksum or -1 if the chunk can't be verified
+   */
+  long getExpectedChecksum() {
+    return expectedChecksum;
+  }
+
+  /**
+   * Returns the checksum of all the data written to this stream since it was
+   * reset.
+   *
+   * @return the CRC32 checksum or -1 if the chunk can't be verified
+   */
+  long getChecksum() {
+    return expectedChecksum == -1 ? -1 : checksum.getValue();
+  }
+
+  /**
+   * Returns true if the checksum of the data written matches the checksum
+   * sent by the client or if the client didn't send a checksum.
+   *
+   * @return true if the chunk is not corrupt
+   */
+  boolean isVerified() {
+    return expectedChecksum == -1 || checksum.getValue() == expectedChecksum;
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (batch == null) {
+      batch = new byte[BATCH_SIZE];
+    }
+
+    batch[batchCount++] = (byte) b;
+    if (batchCount == batch.length) {
+      flushBatch();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    flushBatch();
+    writeDelegate(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBatch();
+    writer.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+
+    // A failed request may be closed again so the gate is only waited for
+    // once. A corrupt (e.g. aborted) chunk is never committed so it finishes
+    // without waiting.
+    if (!closed) {
+      closed = true;
+      admitted = isVerified() && writer.admitCommit();
+    }
+  }
+
+  /**
+   * Returns true if the stream holds the gate permit needed to commit the
+   * chunk.
+   *
+   * @return true if the commit was admitted when the stream was closed
+   */
+  boolean isCommitAdmitted() {
+    return admitted;
+  }
+
+  /**
+   * Releases the gate permit acquired when the stream was closed, if any.
+   */
+  void releaseCommit() {
+    if (admitted) {
+      admitted = false;
+      writer.releaseCommit();
+    }
+  }
+
+  /**
+   * Writes any batched single byte writes to the writer.
+   *
+   * @throws IOException if the write to the writer fails
+   */
+  private void flushBatch() throws IOException {
+    if (batchCount > 0) {
+      int len = batchCount;
+      batchCount = 0;
+      writeDelegate(batch, 0, len);
+    }
+  }
+
+  /**
+   * Writes the given data to the writer at the current position and updates
+   * the checksum if set.
+   *
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   *
+   * @throws IOException if the write to the writer fails
+   */
+  private void writeDelegate(byte[] b, int off, int len) throws IOException {
+    if (expectedChecksum != -1) {
+      checksum.update(b, off, len);
+    }
+    writer.write(position, b, off, len);
+    position += len;
+  }
+
+}
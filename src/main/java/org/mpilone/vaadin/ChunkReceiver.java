@@ -0,0 +1,148 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>
+ * A receiver that is given each chunk of an upload along with its position in
+ * the file rather than a single output stream for the entire file. A chunk
+ * receiver is set with {@link Plupload#setChunkReceiver(ChunkReceiver)} in
+ * place of a {@link com.vaadin.ui.Upload.Receiver}. It doesn't extend that
+ * interface because a single output stream can't tell the receiver whether
+ * the upload succeeded.
+ * </p>
+ * <p>
+ * Knowing the offset of each chunk allows positional writes (e.g.
+ * {@link java.nio.channels.FileChannel#write(java.nio.ByteBuffer, long)}),
+ * pre-allocation of the target using the declared size, and resuming an
+ * upload on another node or after a restart without reopening a stream. When
+ * a retry buffer is used, the channel is written with a read-only
+ * {@link java.nio.ByteBuffer} view of each buffered heap block so no
+ * additional copy is made.
+ * </p>
+ *
+ * @author mpilone
+ */
+public interface ChunkReceiver extends Serializable {
+
+  /**
+   * Returns the channel to write the data of the given chunk to. The channel
+   * is closed when all the data of the chunk has been committed, before the
+   * next chunk is received. The channel is only requested if the chunk
+   * contains data.
+   *
+   * @param chunk the details of the chunk
+   *
+   * @return the channel to write the chunk data to
+   *
+   * @throws IOException if the channel cannot be opened
+   */
+  WritableByteChannel receiveChunk(Chunk chunk) throws IOException;
+
+  /**
+   * Called when the upload of the file ends, successfully or not. Any
+   * resources associated with the file should be released. When the upload
+   * succeeded, this method is called before the succeeded event is fired and
+   * an exception will cause a failed event to be fired instead. When the
+   * upload failed (i.e. a failed event is fired), the target should be
+   * discarded.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   * @param succeeded true if all the data of the file was received and
+   * committed
+   *
+   * @throws IOException if the target cannot be finalized
+   */
+  void uploadEnded(String fileId, boolean succeeded) throws IOException;
+
+  /**
+   * The details of a single chunk of an upload.
+   */
+  public static class Chunk {
+
+    private final String fileId;
+    private final String filename;
+    private final String mimeType;
+    private final long contentLength;
+    private final long index;
+    private final long offset;
+
+    /**
+     * Constructs the chunk.
+     *
+     * @param fileId the unique ID of the file assigned by the client
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param contentLength the declared size of the entire file or -1 if not
+     * known
+     * @param index the zero based index of the chunk in the file
+     * @param offset the offset in the file of the first byte of the chunk
+     */
+    Chunk(String fileId, String filename, String mimeType, long contentLength,
+        long index, long offset) {
+      this.fileId = fileId;
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.contentLength = contentLength;
+      this.index = index;
+      this.offset = offset;
+    }
+
+    /**
+     * Returns the unique ID of the file assigned by the client. The ID is the
+     * same for every chunk of the file.
+     *
+     * @return the file ID or null if the client didn't provide one
+     */
+    public String getFileId() {
+      return fileId;
+    }
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the filename
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Returns the mime-type of the file provided by the client.
+     *
+     * @return the mime-type
+     */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * Returns the declared size of the entire file.
+     *
+     * @return the size in bytes or -1 if not known
+     */
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * Returns the zero based index of the chunk in the file.
+     *
+     * @return the chunk index
+     */
+    public long getIndex() {
+      return index;
+    }
+
+    /**
+     * Returns the offset in the file of the first byte of the chunk.
+     *
+     * @return the chunk offset
+     */
+    public long getOffset() {
+      return offset;
+    }
+  }
+}
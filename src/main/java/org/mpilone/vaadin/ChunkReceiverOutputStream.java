@@ -0,0 +1,136 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream that adapts a {@link ChunkReceiver} to the output stream
+ * chain of an upload. Data written between {@link #beginChunk} and
+ * {@link #endChunk()} is written to the channel provided by the receiver for
+ * that chunk. Writes of the same array (e.g. the backing array of a retry
+ * buffer) reuse a single read-only buffer view so no allocation is done per
+ * write.
+ *
+ * @author mpilone
+ */
+class ChunkReceiverOutputStream extends OutputStream {
+
+  private final ChunkReceiver receiver;
+  private final String fileId;
+  private final byte[] single = new byte[1];
+  private ChunkReceiver.Chunk chunk;
+  private WritableByteChannel channel;
+  private byte[] viewArray;
+  private ByteBuffer view;
+  private long position;
+  private boolean closed;
+  private boolean succeeded;
+
+  /**
+   * Constructs the stream.
+   *
+   * @param receiver the receiver of the chunks
+   * @param fileId the unique ID of the file being uploaded
+   */
+  ChunkReceiverOutputStream(ChunkReceiver receiver, String fileId) {
+    this.receiver = receiver;
+    this.fileId = fileId;
+  }
+
+  /**
+   * Begins a new chunk. Any chunk in progress is ended unless it has the same
+   * index and the new chunk starts where the data written so far ends, in
+   * which case another request is continuing the chunk in progress.
+   *
+   * @param chunk the details of the chunk
+   *
+   * @throws IOException if the previous chunk cannot be ended
+   */
+  void beginChunk(ChunkReceiver.Chunk chunk) throws IOException {
+    if (this.chunk != null && this.chunk.getIndex() == chunk.getIndex()
+        && position == chunk.getOffset()) {
+      return;
+    }
+
+    endChunk();
+    this.chunk = chunk;
+    this.position = chunk.getOffset();
+  }
+
+  /**
+   * Ends the chunk in progress, if any, by closing the channel of the chunk.
+   *
+   * @throws IOException if the channel cannot be closed
+   */
+  void endChunk() throws IOException {
+    chunk = null;
+    if (channel != null) {
+      WritableByteChannel c = channel;
+      channel = null;
+      c.close();
+    }
+  }
+
+  /**
+   * Sets the flag which indicates if the upload succeeded. The flag is passed
+   * to the receiver when the stream is closed.
+   *
+   * @param succeeded true if all the data was successfully received
+   */
+  void setSucceeded(boolean succeeded) {
+    this.succeeded = succeeded;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    if (chunk == null) {
+      throw new IOException("No chunk in progress.");
+    }
+    if (channel == null) {
+      channel = receiver.receiveChunk(chunk);
+      if (channel == null) {
+        throw new IOException("Receiver did not provide a channel for chunk "
+            + chunk.getIndex() + ".");
+      }
+    }
+
+    if (b != viewArray) {
+      viewArray = b;
+      view = ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+    view.clear();
+    view.position(off);
+    view.limit(off + len);
+
+    while (view.hasRemaining()) {
+      channel.write(view);
+    }
+    position += len;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      endChunk();
+    }
+    finally {
+      receiver.uploadEnded(fileId, succeeded);
+    }
+  }
+}
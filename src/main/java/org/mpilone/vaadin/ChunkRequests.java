@@ -0,0 +1,140 @@
+package org.mpilone.vaadin;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+
+/**
+ * Utility methods for accessing the metadata (i.e. headers) that the client
+ * sends with each chunk request. The metadata is available from the current
+ * Vaadin request when using the standard file upload handler or from the
+ * request registered by the {@link NonBlockingUploadServlet}.
+ *
+ * @author mpilone
+ */
+class ChunkRequests {
+
+  /**
+   * The header that contains the unique ID of the file assigned by Plupload.
+   */
+  static final String FILE_ID_HEADER = "X-Plupload-File-Id";
+
+  /**
+   * The header that contains the ID of the connector that owns the file when
+   * using a shared uploader.
+   */
+  static final String CONNECTOR_ID_HEADER = "X-Plupload-Connector-Id";
+
+  /**
+   * The header that contains the unique ID of the client side connector
+   * instance that generated the piggybacked events.
+   */
+  static final String CLIENT_ID_HEADER = "X-Plupload-Client-Id";
+
+  /**
+   * The header that contains the URL encoded JSON array of lifecycle events
+   * piggybacked on the chunk request.
+   */
+  static final String EVENTS_HEADER = "X-Plupload-Events";
+
+  /**
+   * The header that contains the offset and CRC32 checksum of the chunk data
+   * calculated by the client in the format &lt;offset&gt;:&lt;hex crc32&gt;.
+   */
+  static final String CHUNK_CHECKSUM_HEADER = "X-Plupload-Chunk-Checksum";
+
+  /**
+   * The header that contains the offset in the file of the first byte of the
+   * chunk data.
+   */
+  static final String CHUNK_OFFSET_HEADER = "X-Plupload-Chunk-Offset";
+
+  /**
+   * The header that contains the random token the client keeps for a file
+   * until it is uploaded. The token identifies an upload interrupted by a
+   * server restart when the file is selected again.
+   */
+  static final String RESUME_TOKEN_HEADER = "X-Plupload-Resume-Token";
+
+  /**
+   * The request being processed by the non-blocking upload servlet on the
+   * current thread.
+   */
+  private static final ThreadLocal<HttpServletRequest> CURRENT =
+      new ThreadLocal<>();
+
+  /**
+   * Sets the request being processed by the non-blocking upload servlet on
+   * the current thread.
+   *
+   * @param request the request or null to clear it
+   */
+  static void setCurrent(HttpServletRequest request) {
+    if (request == null) {
+      CURRENT.remove();
+    }
+    else {
+      CURRENT.set(request);
+    }
+  }
+
+  /**
+   * Returns the value of the given header from the chunk request currently
+   * being processed.
+   *
+   * @param name the name of the header
+   *
+   * @return the header value or null if there is no current request or the
+   * header wasn't sent
+   */
+  static String getHeader(String name) {
+    HttpServletRequest request = CURRENT.get();
+    if (request != null) {
+      return request.getHeader(name);
+    }
+
+    VaadinRequest vaadinRequest = VaadinService.getCurrentRequest();
+    return vaadinRequest == null ? null : vaadinRequest.getHeader(name);
+  }
+
+  /**
+   * Sets an attribute on the chunk request currently being processed so state
+   * can be shared between the calls to the stream variable for a single
+   * request.
+   *
+   * @param name the name of the attribute
+   * @param value the value of the attribute or null to remove it
+   */
+  static void setAttribute(String name, Object value) {
+    HttpServletRequest request = CURRENT.get();
+    if (request != null) {
+      request.setAttribute(name, value);
+      return;
+    }
+
+    VaadinRequest vaadinRequest = VaadinService.getCurrentRequest();
+    if (vaadinRequest != null) {
+      vaadinRequest.setAttribute(name, value);
+    }
+  }
+
+  /**
+   * Returns the value of the given attribute from the chunk request currently
+   * being processed.
+   *
+   * @param name the name of the attribute
+   *
+   * @return the attribute value or null if there is no current request or the
+   * attribute isn't set
+   */
+  static Object getAttribute(String name) {
+    HttpServletRequest request = CURRENT.get();
+    if (request != null) {
+      return request.getAttribute(name);
+    }
+
+    VaadinRequest vaadinRequest = VaadinService.getCurrentRequest();
+    return vaadinRequest == null ? null : vaadinRequest.getAttribute(name);
+  }
+}
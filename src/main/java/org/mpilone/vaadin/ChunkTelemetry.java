@@ -0,0 +1,358 @@
+package org.mpilone.vaadin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Aggregates the chunk timings reported by the client side of the
+ * {@link Plupload} components. Each chunk is reported with the time the
+ * client spent sending it (including retries), the number of retries, and
+ * the HTTP status of the final attempt. Samples are aggregated per runtime and
+ * chunk size so the combinations that perform worst for real users can be
+ * found and the runtimes and chunk size of the components tuned accordingly.
+ * </p>
+ * <p>
+ * Durations are recorded in a fixed size log-linear histogram with a relative
+ * error of at most 12.5% so memory use doesn't grow with the number of
+ * samples. The number of runtime and chunk size combinations is limited
+ * because the chunk size is reported by the client.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ChunkTelemetry {
+
+  /**
+   * The maximum number of runtime and chunk size combinations tracked.
+   * Samples for additional combinations are ignored.
+   */
+  public static final int MAX_COMBINATIONS = 64;
+
+  /**
+   * The number of bits of precision kept for each duration.
+   */
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  /**
+   * The telemetry shared by all components that don't configure their own.
+   */
+  private static final ChunkTelemetry DEFAULT = new ChunkTelemetry();
+
+  private final Map<Key, Statistics> statistics = new HashMap<>();
+
+  /**
+   * Returns the telemetry shared by all components that don't configure their
+   * own.
+   *
+   * @return the default telemetry
+   */
+  public static ChunkTelemetry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Records a chunk reported by the client.
+   *
+   * @param runtime the runtime used to send the chunk
+   * @param chunkSize the configured chunk size or 0 if chunking was disabled
+   * @param bytes the number of bytes in the chunk
+   * @param duration the time in milliseconds the client spent sending the
+   * chunk, including retries
+   * @param retries the number of times the chunk was retried
+   * @param status the HTTP status of the final attempt or 0 if the request
+   * failed without a response
+   */
+  public void record(Plupload.Runtime runtime, int chunkSize, long bytes,
+      long duration, int retries, int status) {
+    if (runtime == null || chunkSize < 0 || bytes < 0 || duration < 0
+        || retries < 0) {
+      return;
+    }
+
+    Key key = new Key(runtime, chunkSize);
+    synchronized (statistics) {
+      Statistics stats = statistics.get(key);
+      if (stats == null) {
+        if (statistics.size() >= MAX_COMBINATIONS) {
+          return;
+        }
+        stats = new Statistics(runtime, chunkSize);
+        statistics.put(key, stats);
+      }
+      stats.add(bytes, duration, retries, status);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the statistics of each runtime and chunk size
+   * combination, ordered by runtime and then chunk size.
+   *
+   * @return the statistics
+   */
+  public List<Statistics> getStatistics() {
+    List<Statistics> snapshot = new ArrayList<>();
+    synchronized (statistics) {
+      for (Statistics stats : statistics.values()) {
+        snapshot.add(new Statistics(stats));
+      }
+    }
+
+    Collections.sort(snapshot, new Comparator<Statistics>() {
+      @Override
+      public int compare(Statistics o1, Statistics o2) {
+        int result = o1.getRuntime().compareTo(o2.getRuntime());
+        return result != 0 ? result : Integer.compare(o1.getChunkSize(), o2.
+            getChunkSize());
+      }
+    });
+    return snapshot;
+  }
+
+  /**
+   * Discards all recorded samples.
+   */
+  public void reset() {
+    synchronized (statistics) {
+      statistics.clear();
+    }
+  }
+
+  /**
+   * Returns the histogram bucket of the given duration.
+   *
+   * @param duration the duration in milliseconds
+   *
+   * @return the bucket index
+   */
+  private static int toBucket(long duration) {
+    if (duration < SUB_BUCKETS) {
+      return (int) duration;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(duration);
+    int sub = (int) (duration >>> (exponent - SUB_BUCKET_BITS))
+        & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Returns the highest duration that falls in the given histogram bucket.
+   *
+   * @param bucket the bucket index
+   *
+   * @return the duration in milliseconds
+   */
+  private static long fromBucket(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * The statistics of a single runtime and chunk size combination.
+   */
+  public static class Statistics {
+
+    private final Plupload.Runtime runtime;
+    private final int chunkSize;
+    private final long[] histogram;
+    private long chunks;
+    private long retries;
+    private long failures;
+    private long bytes;
+    private long duration;
+
+    /**
+     * Constructs empty statistics.
+     *
+     * @param runtime the runtime
+     * @param chunkSize the chunk size
+     */
+    private Statistics(Plupload.Runtime runtime, int chunkSize) {
+      this.runtime = runtime;
+      this.chunkSize = chunkSize;
+      this.histogram = new long[BUCKETS];
+    }
+
+    /**
+     * Constructs a copy of the given statistics.
+     *
+     * @param other the statistics to copy
+     */
+    private Statistics(Statistics other) {
+      this.runtime = other.runtime;
+      this.chunkSize = other.chunkSize;
+      this.histogram = Arrays.copyOf(other.histogram, BUCKETS);
+      this.chunks = other.chunks;
+      this.retries = other.retries;
+      this.failures = other.failures;
+      this.bytes = other.bytes;
+      this.duration = other.duration;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param bytes the number of bytes in the chunk
+     * @param duration the duration in milliseconds
+     * @param retries the number of retries
+     * @param status the HTTP status of the final attempt
+     */
+    private void add(long bytes, long duration, int retries, int status) {
+      this.histogram[toBucket(duration)]++;
+      this.chunks++;
+      this.retries += retries;
+      this.bytes += bytes;
+      this.duration += duration;
+      if (status < 200 || status >= 300) {
+        this.failures++;
+      }
+    }
+
+    /**
+     * Returns the runtime used to send the chunks.
+     *
+     * @return the runtime
+     */
+    public Plupload.Runtime getRuntime() {
+      return runtime;
+    }
+
+    /**
+     * Returns the configured chunk size.
+     *
+     * @return the chunk size or 0 if chunking was disabled
+     */
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    /**
+     * Returns the number of chunks reported.
+     *
+     * @return the number of chunks
+     */
+    public long getChunks() {
+      return chunks;
+    }
+
+    /**
+     * Returns the total number of retries of all the chunks.
+     *
+     * @return the number of retries
+     */
+    public long getRetries() {
+      return retries;
+    }
+
+    /**
+     * Returns the number of chunks that failed after all retries, i.e. the
+     * final attempt didn't return a successful HTTP status.
+     *
+     * @return the number of failed chunks
+     */
+    public long getFailures() {
+      return failures;
+    }
+
+    /**
+     * Returns the total number of bytes in the chunks.
+     *
+     * @return the number of bytes
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Returns the average throughput of the chunks as seen by the client.
+     *
+     * @return the throughput in bytes per second
+     */
+    public double getThroughput() {
+      return duration == 0 ? 0 : bytes * 1000.0 / duration;
+    }
+
+    /**
+     * Returns the duration that the given percentage of chunks took at most
+     * to send. The value is accurate to within 12.5%.
+     *
+     * @param percentile the percentile between 0 and 100 (e.g. 99 for the
+     * 99th percentile)
+     *
+     * @return the duration in milliseconds or 0 if no chunks were reported
+     */
+    public long getDurationPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException(
+            "Percentile must be between 0 and 100.");
+      }
+      if (chunks == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(chunks * percentile / 100));
+      long count = 0;
+      for (int i = 0; i < histogram.length; ++i) {
+        count += histogram[i];
+        if (count >= rank) {
+          return fromBucket(i);
+        }
+      }
+      return fromBucket(histogram.length - 1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("runtime=%s chunkSize=%d chunks=%d retries=%d "
+          + "failures=%d p50=%dms p90=%dms p99=%dms throughput=%.1fKB/s",
+          runtime, chunkSize, chunks, retries, failures,
+          getDurationPercentile(50), getDurationPercentile(90),
+          getDurationPercentile(99), getThroughput() / 1024);
+    }
+  }
+
+  /**
+   * The key of a runtime and chunk size combination.
+   */
+  private static class Key {
+
+    private final Plupload.Runtime runtime;
+    private final int chunkSize;
+
+    /**
+     * Constructs the key.
+     *
+     * @param runtime the runtime
+     * @param chunkSize the chunk size
+     */
+    Key(Plupload.Runtime runtime, int chunkSize) {
+      this.runtime = runtime;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * runtime.hashCode() + chunkSize;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return runtime == other.runtime && chunkSize == other.chunkSize;
+    }
+  }
+}
@@ -0,0 +1,433 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Writes the data of the chunk requests of a single upload to the receiver
+ * stream at absolute offsets in the file. Each byte is passed to the receiver
+ * exactly once and in order: data before the written offset (e.g. the part of
+ * a retried chunk that was already received by a failed attempt) is skipped
+ * and data after the written offset is rejected because it would leave a gap.
+ * This makes retries safe without buffering the chunk and allows overlapping
+ * requests for the same chunk (e.g. a stale request that is still being
+ * processed when the client retries) to write concurrently.
+ * </p>
+ * <p>
+ * If a retry buffer is set, data is buffered until committed so a corrupt
+ * chunk can be discarded. Otherwise data is committed as soon as it is
+ * written. A positional receiver (i.e. a {@link ChunkReceiver}) may instead
+ * truncate to the start of a retried chunk and receive the data again. The
+ * rewritten data is only written to the receiver stream beneath the delegate
+ * so the delegate (e.g. the upload processors) still
+ * sees each byte exactly once. The methods are synchronized because the data
+ * of a chunk request is written outside of the session lock.
+ * </p>
+ * <p>
+ * Writes and commits to the receiver stream are admitted through a
+ * {@link PriorityGate} using the priority of the upload. A permit is never
+ * waited for while holding the writer lock because the lock is also taken
+ * while holding the session lock: writes acquire the permit before taking the
+ * lock and commits use the permit acquired by {@link #admitCommit()} when the
+ * chunk stream was closed.
+ * </p>
+ *
+ * @author mpilone
+ */
+class ChunkWriter {
+
+  private final OutputStream delegate;
+  private final OutputStream receiverOutstream;
+  private final PriorityGate gate;
+  private volatile Plupload.Priority priority = Plupload.Priority.NORMAL;
+  private TransactionalOutputStream txOutstream;
+  private long writtenOffset;
+  private long committedOffset;
+  private long processedOffset;
+  private int writers;
+  private boolean rollbackPending;
+
+  /**
+   * Constructs the writer.
+   *
+   * @param delegate the receiver stream to write to
+   * @param offset the offset in the file of the next byte the receiver stream
+   * expects
+   * @param gate the gate that admits writes to the receiver stream
+   */
+  ChunkWriter(OutputStream delegate, long offset, PriorityGate gate) {
+    this(delegate, null, offset, gate);
+  }
+
+  /**
+   * Constructs the writer for a positional receiver that supports
+   * truncation.
+   *
+   * @param delegate the stream to write to which passes the data to the
+   * receiver stream
+   * @param receiverOutstream the receiver stream beneath the delegate that
+   * data rewritten after a truncation is written to or null if truncation
+   * isn't supported
+   * @param offset the offset in the file of the next byte the receiver stream
+   * expects
+   * @param gate the gate that admits writes to the receiver stream
+   */
+  ChunkWriter(OutputStream delegate, OutputStream receiverOutstream,
+      long offset, PriorityGate gate) {
+    this.delegate = delegate;
+    this.receiverOutstream = receiverOutstream;
+    this.gate = gate;
+    this.writtenOffset = offset;
+    this.committedOffset = offset;
+    this.processedOffset = offset;
+  }
+
+  /**
+   * Sets the priority used when admitting writes to the receiver stream.
+   *
+   * @param priority the priority of the upload
+   */
+  void setPriority(Plupload.Priority priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Sets the retry buffer that holds written data until it is committed.
+   *
+   * @param txOutstream the retry buffer which must write to the same receiver
+   * stream as this writer
+   */
+  synchronized void setTransactionalOutputStream(
+      TransactionalOutputStream txOutstream) {
+    this.txOutstream = txOutstream;
+  }
+
+  /**
+   * Returns the retry buffer that holds written data until it is committed.
+   *
+   * @return the retry buffer or null if data is committed as soon as it is
+   * written
+   */
+  synchronized TransactionalOutputStream getTransactionalOutputStream() {
+    return txOutstream;
+  }
+
+  /**
+   * Registers a new chunk request that will write data starting at the given
+   * offset. If it is the only request writing, any uncommitted data from a
+   * failed attempt at the same chunk is discarded so the chunk is received
+   * from a single request. Otherwise the data is deduplicated as it arrives.
+   *
+   * @param offset the offset in the file of the first byte of the request
+   * @param truncate true if the receiver can overwrite committed data at the
+   * given offset (i.e. it writes each chunk positionally) so data committed by
+   * a failed attempt at the chunk should be discarded as well. Ignored if the
+   * writer has no receiver stream.
+   *
+   * @return true if data was discarded
+   */
+  synchronized boolean beginWrite(long offset, boolean truncate) {
+    writers++;
+    boolean discarded = false;
+    if (writers == 1 && rollbackPending) {
+      // A corrupt request overlapped the last attempt at the chunk.
+      discard();
+      discarded = true;
+    }
+    if (writers > 1 || offset >= writtenOffset) {
+      return discarded;
+    }
+
+    if (offset >= committedOffset) {
+      if (txOutstream == null) {
+        return false;
+      }
+      discard();
+      return true;
+    }
+    else if (truncate && receiverOutstream != null) {
+      if (txOutstream != null) {
+        txOutstream.rollback();
+      }
+      writtenOffset = committedOffset = offset;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Unregisters a chunk request that was registered with
+   * {@link #beginWrite(long, boolean)}.
+   *
+   * @return the number of chunk requests still writing
+   */
+  synchronized int endWrite() {
+    return --writers;
+  }
+
+  /**
+   * Writes the given data which starts at the given offset in the file. Any
+   * data before the written offset is skipped. If data is committed as soon
+   * as it is written, a permit of the gate is acquired before taking the
+   * writer lock.
+   *
+   * @param position the offset in the file of the first byte of data
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   *
+   * @throws IOException if there is a gap between the written offset and the
+   * data, the write isn't admitted by the gate, or the write to the receiver
+   * fails
+   */
+  void write(long position, byte[] b, int off, int len) throws IOException {
+    boolean admitted = false;
+    try {
+      if (getTransactionalOutputStream() == null) {
+        gate.acquire(priority);
+        admitted = true;
+      }
+
+      // The retry buffer may have been released since it was checked.
+      while (!write(position, b, off, len, admitted)) {
+        gate.acquire(priority);
+        admitted = true;
+      }
+    }
+    finally {
+      if (admitted) {
+        gate.release();
+      }
+    }
+  }
+
+  /**
+   * Writes the given data which starts at the given offset in the file while
+   * holding the writer lock.
+   *
+   * @param position the offset in the file of the first byte of data
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   * @param admitted true if the caller holds a permit of the gate
+   *
+   * @return true if the data was written or false if the data must be
+   * written directly to the receiver stream and the caller doesn't hold a
+   * permit
+   *
+   * @throws IOException if there is a gap between the written offset and the
+   * data or the write to the receiver fails
+   */
+  private synchronized boolean write(long position, byte[] b, int off,
+      int len, boolean admitted) throws IOException {
+    long end = position + len;
+    if (end <= writtenOffset) {
+      return true;
+    }
+    if (position > writtenOffset) {
+      throw new IOException("Received data at offset " + position
+          + " but expected offset " + writtenOffset + ".");
+    }
+
+    int skip = (int) (writtenOffset - position);
+    if (txOutstream != null) {
+      txOutstream.write(b, off + skip, len - skip);
+    }
+    else if (!admitted) {
+      return false;
+    }
+    else {
+      // Data rewritten after a truncation already passed through the
+      // delegate so it only goes to the receiver.
+      int rewrite = (int) Math.max(0, Math.min(len - skip, processedOffset
+          - writtenOffset));
+      if (rewrite > 0) {
+        receiverOutstream.write(b, off + skip, rewrite);
+      }
+      if (skip + rewrite < len) {
+        checkProcessors();
+        delegate.write(b, off + skip + rewrite, len - skip - rewrite);
+      }
+      committedOffset = end;
+      processedOffset = Math.max(processedOffset, end);
+    }
+    writtenOffset = end;
+    return true;
+  }
+
+  /**
+   * Flushes the receiver stream if data is committed as soon as it is
+   * written.
+   *
+   * @throws IOException if the flush fails
+   */
+  synchronized void flush() throws IOException {
+    if (txOutstream == null) {
+      delegate.flush();
+    }
+  }
+
+  /**
+   * Acquires the permit of the gate needed to commit the data of a chunk
+   * request. It must be called before taking the session lock (e.g. when the
+   * chunk stream is closed) so the commit never waits for the gate while
+   * holding the session lock.
+   *
+   * @return true if a permit was acquired and must be released with
+   * {@link #releaseCommit()} or false if data is committed as soon as it is
+   * written
+   *
+   * @throws IOException if the commit isn't admitted by the gate
+   */
+  boolean admitCommit() throws IOException {
+    if (getTransactionalOutputStream() == null) {
+      return false;
+    }
+    gate.acquire(priority);
+    return true;
+  }
+
+  /**
+   * Releases a permit acquired with {@link #admitCommit()}.
+   */
+  void releaseCommit() {
+    gate.release();
+  }
+
+  /**
+   * Commits all the written data to the receiver stream. If the caller
+   * doesn't hold a permit, the commit fails rather than waiting for the gate.
+   *
+   * @return the committed offset
+   *
+   * @throws IOException if the commit isn't admitted by the gate or the write
+   * to the receiver fails
+   */
+  long commit() throws IOException {
+    return commit(false);
+  }
+
+  /**
+   * Commits all the written data to the receiver stream. If the caller
+   * doesn't hold a permit, one is acquired only if it is available
+   * immediately so the commit never waits for the gate while holding the
+   * session lock. Otherwise the commit fails and the client retries the
+   * chunk.
+   *
+   * @param admitted true if the caller holds a permit acquired with
+   * {@link #admitCommit()}
+   *
+   * @return the committed offset
+   *
+   * @throws IOException if the commit isn't admitted by the gate, the data
+   * was written in part by a corrupt overlapping request, or the write to the
+   * receiver fails
+   */
+  synchronized long commit(boolean admitted) throws IOException {
+    if (rollbackPending) {
+      // The data may include data of a corrupt request so the chunk must be
+      // received again. The data is discarded once no request is writing.
+      rollback();
+      throw new IOException("Discarded chunk data written by a corrupt "
+          + "overlapping request.");
+    }
+    if (txOutstream != null && writtenOffset > committedOffset) {
+      checkProcessors();
+      if (!admitted && !gate.tryAcquire(priority)) {
+        throw new IOException("Commit of upload data not admitted.");
+      }
+      try {
+        txOutstream.commit();
+      }
+      finally {
+        if (!admitted) {
+          gate.release();
+        }
+      }
+      committedOffset = writtenOffset;
+      processedOffset = Math.max(processedOffset, committedOffset);
+    }
+    return committedOffset;
+  }
+
+  /**
+   * Fails the write or commit before any data is passed to the delegate if
+   * the delegate passes data to upload processors that can't accept more
+   * data without blocking. The client retries the chunk later. Must be called
+   * while holding the lock.
+   *
+   * @throws IOException if a processor isn't ready
+   */
+  private void checkProcessors() throws IOException {
+    if (delegate instanceof ProcessorOutputStream) {
+      ((ProcessorOutputStream) delegate).checkReady();
+    }
+  }
+
+  /**
+   * Discards all the written data that hasn't been committed. If another
+   * request is still writing, it has skipped the data already written so
+   * discarding the data now would leave a gap. Instead the data is discarded
+   * when the next request commits and that commit fails so the client
+   * retries the chunk on its own.
+   *
+   * @return true if the data was or will be discarded or false if data is
+   * committed as soon as it is written
+   */
+  synchronized boolean rollback() {
+    if (txOutstream == null) {
+      return false;
+    }
+    if (writers > 0) {
+      rollbackPending = true;
+    }
+    else {
+      discard();
+    }
+    return true;
+  }
+
+  /**
+   * Discards all the written data in the retry buffer that hasn't been
+   * committed.
+   */
+  private void discard() {
+    txOutstream.rollback();
+    writtenOffset = committedOffset;
+    rollbackPending = false;
+  }
+
+  /**
+   * Discards all the written data that hasn't been committed and releases the
+   * storage of the retry buffer, if any. Data written after the buffer is
+   * released is written directly to the receiver stream.
+   */
+  synchronized void releaseBuffer() {
+    if (txOutstream != null) {
+      txOutstream.close();
+      txOutstream = null;
+      writtenOffset = committedOffset;
+      rollbackPending = false;
+    }
+  }
+
+  /**
+   * Returns the offset in the file of the next byte to be written.
+   *
+   * @return the written offset
+   */
+  synchronized long getWrittenOffset() {
+    return writtenOffset;
+  }
+
+  /**
+   * Returns the offset in the file of the next byte to be committed to the
+   * receiver stream.
+   *
+   * @return the committed offset
+   */
+  synchronized long getCommittedOffset() {
+    return committedOffset;
+  }
+}
@@ -0,0 +1,40 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+
+/**
+ * An exception indicating that the content of an upload was rejected by a
+ * {@link ContentScanner}.
+ *
+ * @author mpilone
+ */
+public class ContentRejectedException extends IOException {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private final String threat;
+
+  /**
+   * Constructs the exception.
+   *
+   * @param filename the name of the file that was rejected
+   * @param threat the name of the threat found by the scanner
+   */
+  public ContentRejectedException(String filename, String threat) {
+    super("Content of file " + filename + " rejected by scanner: " + threat
+        + ".");
+    this.threat = threat;
+  }
+
+  /**
+   * Returns the name of the threat found by the scanner.
+   *
+   * @return the threat name
+   */
+  public String getThreat() {
+    return threat;
+  }
+}
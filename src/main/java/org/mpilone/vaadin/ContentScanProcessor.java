@@ -0,0 +1,411 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An upload processor that scans the upload data with a
+ * {@link ContentScanner} as it is committed so the scan is complete moments
+ * after the last chunk is received. If the scanner finds a threat, the upload
+ * is interrupted immediately with a {@link ContentRejectedException} as the
+ * reason so no more chunks are accepted and a
+ * {@link com.vaadin.ui.Upload.FailedEvent} is fired. A threat found in the
+ * last data of the file fails the upload when it completes.
+ * </p>
+ * <p>
+ * Scanning is done on a bounded pool of worker threads shared by all uploads
+ * so the number of threads doesn't grow with the number of uploads. Rather
+ * than holding a worker for the duration of an upload, committed data is
+ * queued and a worker scans the queued data of one upload at a time, in
+ * order. The data queued for each upload is bounded; if the scanner falls
+ * behind, the processor isn't ready and chunks fail until there is room so
+ * the thread receiving the upload never waits for the scanner. The client
+ * retries the failed chunks. At most the buffer size plus the data of one
+ * chunk is queued.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ContentScanProcessor implements UploadProcessor {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default maximum number of bytes queued for scanning per upload.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * The number of threads in the shared pool used when an executor isn't
+   * provided which is the number of processors.
+   */
+  public static final int DEFAULT_THREADS = java.lang.Runtime.getRuntime().
+      availableProcessors();
+
+  /**
+   * The executor used when one isn't provided.
+   */
+  private static final ExecutorService DEFAULT_EXECUTOR = Executors.
+      newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "plupload-content-scan");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final ContentScanner scanner;
+  private transient Executor executor;
+  private final int bufferSize;
+  private transient ScanTask task;
+
+  /**
+   * Constructs the processor using the default buffer size and a shared
+   * bounded pool.
+   *
+   * @param scanner the scanner used to scan each upload
+   */
+  public ContentScanProcessor(ContentScanner scanner) {
+    this(scanner, DEFAULT_EXECUTOR, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs the processor.
+   *
+   * @param scanner the scanner used to scan each upload
+   * @param executor the executor used to run the scan. The executor should be
+   * bounded and may be shared by many processors because a worker is only
+   * used while there is queued data to scan. The executor isn't serialized;
+   * the shared pool is used after the processor is deserialized.
+   * @param bufferSize the number of bytes queued for scanning at which the
+   * processor stops accepting chunks
+   */
+  public ContentScanProcessor(ContentScanner scanner, Executor executor,
+      int bufferSize) {
+    this.scanner = scanner;
+    this.executor = executor;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Restores the processor after it is deserialized. A scan in progress
+   * isn't serialized and the shared pool is used.
+   *
+   * @param in the stream to read from
+   *
+   * @throws IOException if the processor cannot be read
+   * @throws ClassNotFoundException if a class of the processor is missing
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    executor = DEFAULT_EXECUTOR;
+  }
+
+  @Override
+  public void start(Context context) throws IOException {
+    task = new ScanTask(context, scanner.startScan(context));
+  }
+
+  @Override
+  public boolean isReady() {
+    return task == null || task.isReady();
+  }
+
+  @Override
+  public void process(byte[] data, int off, int len) throws IOException {
+    task.offer(data, off, len);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    try {
+      task.finish();
+    }
+    finally {
+      task = null;
+    }
+  }
+
+  @Override
+  public void abort(Exception reason) {
+    if (task != null) {
+      task.cancel();
+      task = null;
+    }
+  }
+
+  /**
+   * The scan of a single upload. The task is submitted to the executor when
+   * data is queued and runs until the queue is empty or it has scanned the
+   * buffer size, at which point it is resubmitted so other uploads sharing
+   * the executor get a turn.
+   */
+  private class ScanTask implements Runnable {
+
+    private final Context context;
+    private final ContentScanner.Scan scan;
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private int queued;
+    private boolean running;
+    private boolean cancelled;
+    private boolean closed;
+    private ContentRejectedException rejection;
+    private Exception failure;
+
+    /**
+     * Constructs the task.
+     *
+     * @param context the information about the upload
+     * @param scan the scan of the upload
+     */
+    ScanTask(Context context, ContentScanner.Scan scan) {
+      this.context = context;
+      this.scan = scan;
+    }
+
+    /**
+     * Returns true if there is room in the queue or scanning is done so the
+     * next data offered fails with the result.
+     *
+     * @return true if more data can be queued
+     */
+    synchronized boolean isReady() {
+      return queued < bufferSize || isDone();
+    }
+
+    /**
+     * Queues a copy of the given data for scanning without waiting for room
+     * in the queue. The data of a chunk is always accepted once
+     * {@link #isReady()} returned true.
+     *
+     * @param data the data buffer
+     * @param off the offset of the first byte in the buffer
+     * @param len the number of bytes to queue
+     *
+     * @throws IOException if the content was rejected or the scan failed
+     */
+    synchronized void offer(byte[] data, int off, int len) throws
+        IOException {
+      checkResult();
+
+      queue.add(Arrays.copyOfRange(data, off, off + len));
+      queued += len;
+
+      if (!running && !submit()) {
+        checkResult();
+      }
+    }
+
+    /**
+     * Waits for all queued data to be scanned and finishes the scan.
+     *
+     * @throws IOException if the content was rejected, the scan failed, or
+     * the thread was interrupted
+     */
+    void finish() throws IOException {
+      try {
+        synchronized (this) {
+          while (running && !isDone()) {
+            await();
+          }
+          checkResult();
+        }
+
+        String threat = scan.finish();
+        if (threat != null) {
+          throw reject(threat);
+        }
+      }
+      finally {
+        cancel();
+      }
+    }
+
+    /**
+     * Discards any queued data and closes the scan once no worker is using
+     * it.
+     */
+    synchronized void cancel() {
+      cancelled = true;
+      queue.clear();
+      queued = 0;
+      notifyAll();
+
+      if (!running) {
+        close();
+      }
+    }
+
+    @Override
+    public void run() {
+      int budget = bufferSize;
+      while (true) {
+        byte[] block;
+        synchronized (this) {
+          block = isDone() ? null : queue.poll();
+          if (block == null) {
+            running = false;
+            if (cancelled) {
+              close();
+            }
+            notifyAll();
+            return;
+          }
+          if (budget <= 0) {
+            // Put the block back and give other uploads a turn.
+            queue.addFirst(block);
+            if (!submit() && cancelled) {
+              close();
+            }
+            return;
+          }
+        }
+
+        String threat = null;
+        Exception ex = null;
+        try {
+          threat = scan.scan(block, 0, block.length);
+        }
+        catch (IOException | RuntimeException ex2) {
+          ex = ex2;
+        }
+        budget -= block.length;
+
+        synchronized (this) {
+          if (!cancelled) {
+            queued -= block.length;
+          }
+          if (threat != null) {
+            rejection = reject(threat);
+          }
+          else if (ex != null) {
+            failure = ex;
+          }
+          notifyAll();
+        }
+
+        if (threat != null) {
+          // Stop accepting chunks as soon as possible.
+          context.interrupt(rejection);
+        }
+        else if (ex != null) {
+          log.warn("Content scan of file {} failed. The upload will be "
+              + "interrupted.", context.getFilename(), ex);
+          context.interrupt(ex);
+        }
+      }
+    }
+
+    /**
+     * Submits this task to the executor. If the executor rejects the task,
+     * the scan fails. Must be called while holding the lock.
+     *
+     * @return true if the task was submitted
+     */
+    private boolean submit() {
+      try {
+        running = true;
+        executor.execute(this);
+        return true;
+      }
+      catch (RejectedExecutionException ex) {
+        running = false;
+        failure = ex;
+        notifyAll();
+        return false;
+      }
+    }
+
+    /**
+     * Returns true if scanning is done because it was cancelled, the content
+     * was rejected, or the scan failed. Must be called while holding the
+     * lock.
+     *
+     * @return true if scanning is done
+     */
+    private boolean isDone() {
+      return cancelled || rejection != null || failure != null;
+    }
+
+    /**
+     * Throws the result of the scan if the content was rejected, the scan
+     * failed, or it was cancelled. Must be called while holding the lock.
+     *
+     * @throws IOException if the scan is done
+     */
+    private void checkResult() throws IOException {
+      if (rejection != null) {
+        throw rejection;
+      }
+      else if (failure != null) {
+        throw new IOException("Content scan failed.", failure);
+      }
+      else if (cancelled) {
+        throw new IOException("Content scan aborted.");
+      }
+    }
+
+    /**
+     * Returns the exception rejecting the content and logs the threat.
+     *
+     * @param threat the name of the threat found
+     *
+     * @return the rejection
+     */
+    private ContentRejectedException reject(String threat) {
+      log.warn("Content scanner found {} in file {}.", threat, context.
+          getFilename());
+      return new ContentRejectedException(context.getFilename(), threat);
+    }
+
+    /**
+     * Closes the scan if it isn't already closed. Must be called while
+     * holding the lock.
+     */
+    private void close() {
+      if (!closed) {
+        closed = true;
+        try {
+          scan.close();
+        }
+        catch (RuntimeException ex) {
+          log.warn("Failed to close content scan.", ex);
+        }
+      }
+    }
+
+    /**
+     * Waits for the state of the task to change.
+     *
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    private void await() throws InterruptedIOException {
+      try {
+        wait();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for content scan.");
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * <p>
+ * A scanner that inspects upload content for threats (e.g. viruses) or
+ * disallowed content as it streams in. The scanner is used by a
+ * {@link ContentScanProcessor} which feeds it the upload data as each chunk
+ * is committed so a file can be vetoed before the upload completes rather
+ * than re-read and scanned after it succeeds.
+ * </p>
+ * <p>
+ * The scanner creates a {@link Scan} for each upload. The methods of a scan
+ * are called by one thread at a time but not necessarily the same thread.
+ * The scanner is serialized with the processor but a scan is not.
+ * </p>
+ *
+ * @author mpilone
+ * @see EicarContentScanner
+ */
+public interface ContentScanner extends Serializable {
+
+  /**
+   * Starts a scan of a new upload.
+   *
+   * @param context the information about the upload
+   *
+   * @return the scan of the upload
+   *
+   * @throws IOException if the scan cannot be started
+   */
+  Scan startScan(UploadProcessor.Context context) throws IOException;
+
+  /**
+   * The scan of a single upload.
+   */
+  interface Scan {
+
+    /**
+     * Scans the next block of data of the upload.
+     *
+     * @param data the data buffer
+     * @param off the offset of the first byte in the buffer
+     * @param len the number of bytes to scan
+     *
+     * @return the name of the threat found or null if the content is clean
+     * so far
+     *
+     * @throws IOException if the scan fails
+     */
+    String scan(byte[] data, int off, int len) throws IOException;
+
+    /**
+     * Called when all the data of the upload has been scanned.
+     *
+     * @return the name of the threat found or null if the content is clean
+     *
+     * @throws IOException if the scan fails
+     */
+    String finish() throws IOException;
+
+    /**
+     * Releases any resources held by the scan. This method is called exactly
+     * once whether the scan finished, found a threat, or was aborted.
+     */
+    void close();
+  }
+}
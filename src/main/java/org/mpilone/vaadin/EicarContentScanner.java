@@ -0,0 +1,95 @@
+package org.mpilone.vaadin;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * A content scanner that only detects the EICAR anti-virus test file. It can
+ * be used to verify that uploads are scanned and vetoed end to end (e.g. in
+ * development or integration tests) without a real anti-virus engine. Unlike
+ * a real engine, the signature is matched anywhere in the file.
+ * </p>
+ * <p>
+ * The signature is matched with a precomputed automaton so each byte is
+ * inspected once, a match spanning blocks is found, and no data is retained
+ * between blocks.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class EicarContentScanner implements ContentScanner {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The name of the threat reported when the test file is found.
+   */
+  public static final String THREAT = "EICAR-Test-File";
+
+  /**
+   * The EICAR test signature.
+   */
+  private static final byte[] SIGNATURE = ("X5O!P%@AP[4\\PZX54(P^)7CC)7}"
+      + "$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*").getBytes(
+          StandardCharsets.US_ASCII);
+
+  /**
+   * The failure function of the signature: the length of the longest proper
+   * prefix of the signature that is also a suffix of the first i + 1 bytes.
+   */
+  private static final int[] FAILURE = new int[SIGNATURE.length];
+
+  static {
+    for (int i = 1, k = 0; i < SIGNATURE.length; ++i) {
+      while (k > 0 && SIGNATURE[i] != SIGNATURE[k]) {
+        k = FAILURE[k - 1];
+      }
+      if (SIGNATURE[i] == SIGNATURE[k]) {
+        k++;
+      }
+      FAILURE[i] = k;
+    }
+  }
+
+  @Override
+  public Scan startScan(UploadProcessor.Context context) {
+    return new EicarScan();
+  }
+
+  /**
+   * The scan of a single upload.
+   */
+  private static class EicarScan implements Scan {
+
+    private int matched;
+
+    @Override
+    public String scan(byte[] data, int off, int len) {
+      for (int i = off; i < off + len; ++i) {
+        while (matched > 0 && data[i] != SIGNATURE[matched]) {
+          matched = FAILURE[matched - 1];
+        }
+        if (data[i] == SIGNATURE[matched]) {
+          matched++;
+        }
+        if (matched == SIGNATURE.length) {
+          return THREAT;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String finish() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      // no op
+    }
+  }
+}
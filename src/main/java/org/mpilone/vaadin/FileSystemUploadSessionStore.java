@@ -0,0 +1,201 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.Streams.tryClose;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An upload session store that keeps each record as a properties file in a
+ * directory. When the directory is on a file system shared by all nodes in a
+ * cluster, any node that has the Vaadin session (e.g. through session
+ * replication or after a failover) can continue an upload started on another
+ * node.
+ * </p>
+ * <p>
+ * Records are written to a temporary file and atomically moved into place so
+ * a reader never sees a partially written record.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class FileSystemUploadSessionStore implements UploadSessionStore {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private static final String RECORD_SUFFIX = ".upload";
+  private static final String FILE_ID = "fileId";
+  private static final String FILENAME = "filename";
+  private static final String MIME_TYPE = "mimeType";
+  private static final String CONTENT_LENGTH = "contentLength";
+  private static final String COMMITTED_OFFSET = "committedOffset";
+  private static final String RECEIVER_TARGET = "receiverTarget";
+  private static final String RESUME_TOKEN = "resumeToken";
+  private static final String OWNER = "owner";
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final File directory;
+
+  /**
+   * Constructs the store which will keep records in the given directory. The
+   * directory will be created if it doesn't exist.
+   *
+   * @param directory the directory to write records to
+   */
+  public FileSystemUploadSessionStore(File directory) {
+    this.directory = directory;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Unable to create upload session "
+          + "directory " + directory);
+    }
+  }
+
+  @Override
+  public UploadSessionRecord load(String fileId) {
+    File file = getRecordFile(fileId);
+    if (!file.isFile()) {
+      return null;
+    }
+
+    Properties props = new Properties();
+    InputStream instream = null;
+    try {
+      instream = new FileInputStream(file);
+      props.load(instream);
+    }
+    catch (IOException ex) {
+      log.warn("Unable to read upload session record {}.", file, ex);
+      return null;
+    }
+    finally {
+      if (instream != null) {
+        tryClose(instream);
+      }
+    }
+
+    UploadSessionRecord record = new UploadSessionRecord();
+    record.setFileId(props.getProperty(FILE_ID));
+    record.setFilename(props.getProperty(FILENAME));
+    record.setMimeType(props.getProperty(MIME_TYPE));
+    record.setContentLength(Long.parseLong(props.getProperty(CONTENT_LENGTH,
+        "-1")));
+    record.setCommittedOffset(Long.parseLong(props.getProperty(
+        COMMITTED_OFFSET, "0")));
+    record.setReceiverTarget(props.getProperty(RECEIVER_TARGET));
+    record.setResumeToken(props.getProperty(RESUME_TOKEN));
+    record.setOwner(props.getProperty(OWNER));
+
+    return record;
+  }
+
+  @Override
+  public void save(UploadSessionRecord record) {
+    Properties props = new Properties();
+    setProperty(props, FILE_ID, record.getFileId());
+    setProperty(props, FILENAME, record.getFilename());
+    setProperty(props, MIME_TYPE, record.getMimeType());
+    setProperty(props, CONTENT_LENGTH, String.valueOf(
+        record.getContentLength()));
+    setProperty(props, COMMITTED_OFFSET, String.valueOf(
+        record.getCommittedOffset()));
+    setProperty(props, RECEIVER_TARGET, record.getReceiverTarget());
+    setProperty(props, RESUME_TOKEN, record.getResumeToken());
+    setProperty(props, OWNER, record.getOwner());
+
+    File file = getRecordFile(record.getFileId());
+    OutputStream outstream = null;
+    try {
+      File tmpFile = File.createTempFile("session", ".tmp", directory);
+      try {
+        outstream = new FileOutputStream(tmpFile);
+        props.store(outstream, null);
+        outstream.close();
+        outstream = null;
+
+        Files.move(tmpFile.toPath(), file.toPath(),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      finally {
+        if (outstream != null) {
+          tryClose(outstream);
+        }
+        Files.deleteIfExists(tmpFile.toPath());
+      }
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to write upload session record "
+          + file, ex);
+    }
+  }
+
+  @Override
+  public void remove(String fileId) {
+    File file = getRecordFile(fileId);
+    if (file.exists() && !file.delete()) {
+      log.warn("Unable to delete upload session record {}.", file);
+    }
+  }
+
+  /**
+   * Returns the directory that records are written to.
+   *
+   * @return the record directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the file used to store the record for the given file ID. The
+   * file is named with a hex encoded SHA-256 hash of the ID so it is always
+   * safe to use as a file name and distinct IDs never share a file.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   *
+   * @return the record file
+   */
+  private File getRecordFile(String fileId) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(fileId.
+          getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b));
+      }
+      return new File(directory, sb.append(RECORD_SUFFIX).toString());
+    }
+    catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Sets the given property if the value is not null.
+   *
+   * @param props the properties to update
+   * @param name the name of the property
+   * @param value the value of the property or null
+   */
+  private static void setProperty(Properties props, String name, String value) {
+    if (value != null) {
+      props.setProperty(name, value);
+    }
+  }
+}
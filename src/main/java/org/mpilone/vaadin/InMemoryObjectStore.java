@@ -0,0 +1,151 @@
+package org.mpilone.vaadin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * An object store that keeps objects and pending multipart uploads in memory.
+ * The store follows the multipart semantics of S3 (parts are replaced by
+ * number, completed parts must match their entity tags, aborted parts are
+ * discarded) which makes it a local stand-in for testing an
+ * {@link ObjectStoreReceiver} without network access.
+ *
+ * @author mpilone
+ */
+public class InMemoryObjectStore implements ObjectStore {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+
+  @Override
+  public String createMultipartUpload(String key, String mimeType) {
+    String uploadId = UUID.randomUUID().toString();
+    uploads.put(uploadId, new PendingUpload(key));
+    return uploadId;
+  }
+
+  @Override
+  public String uploadPart(String key, String uploadId, int partNumber,
+      byte[] data, int len) throws IOException {
+    PendingUpload upload = getUpload(key, uploadId);
+
+    byte[] part = Arrays.copyOf(data, len);
+    upload.parts.put(partNumber, part);
+    return etag(part);
+  }
+
+  @Override
+  public void completeMultipartUpload(String key, String uploadId,
+      SortedMap<Integer, String> partETags) throws IOException {
+    PendingUpload upload = getUpload(key, uploadId);
+
+    ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+    for (Map.Entry<Integer, String> entry : partETags.entrySet()) {
+      byte[] part = upload.parts.get(entry.getKey());
+      if (part == null || !etag(part).equals(entry.getValue())) {
+        throw new IOException("Invalid part " + entry.getKey()
+            + " in multipart upload " + uploadId + ".");
+      }
+      outstream.write(part);
+    }
+
+    uploads.remove(uploadId);
+    objects.put(key, outstream.toByteArray());
+  }
+
+  @Override
+  public void abortMultipartUpload(String key, String uploadId) throws
+      IOException {
+    getUpload(key, uploadId);
+    uploads.remove(uploadId);
+  }
+
+  /**
+   * Returns the content of the object with the given key.
+   *
+   * @param key the key of the object
+   *
+   * @return the object content or null if there is no such object
+   */
+  public byte[] getObject(String key) {
+    return objects.get(key);
+  }
+
+  /**
+   * Returns the number of multipart uploads that have been started but not
+   * completed or aborted.
+   *
+   * @return the number of pending uploads
+   */
+  public int getPendingUploadCount() {
+    return uploads.size();
+  }
+
+  /**
+   * Returns the pending upload with the given ID.
+   *
+   * @param key the key of the object
+   * @param uploadId the unique ID of the multipart upload
+   *
+   * @return the pending upload
+   *
+   * @throws IOException if there is no such upload for the key
+   */
+  private PendingUpload getUpload(String key, String uploadId) throws
+      IOException {
+    PendingUpload upload = uploads.get(uploadId);
+    if (upload == null || !upload.key.equals(key)) {
+      throw new IOException("No such multipart upload " + uploadId + ".");
+    }
+    return upload;
+  }
+
+  /**
+   * Returns the entity tag of the given part data.
+   *
+   * @param part the part data
+   *
+   * @return the entity tag
+   */
+  private static String etag(byte[] part) {
+    CRC32 crc = new CRC32();
+    crc.update(part, 0, part.length);
+    return Long.toHexString(crc.getValue()) + "-" + part.length;
+  }
+
+  /**
+   * A multipart upload that has been started but not completed.
+   */
+  private static class PendingUpload implements Serializable {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    final String key;
+    final Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+
+    /**
+     * Constructs the upload.
+     *
+     * @param key the key of the object
+     */
+    PendingUpload(String key) {
+      this.key = key;
+    }
+  }
+}
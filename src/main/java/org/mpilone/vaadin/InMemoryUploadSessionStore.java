@@ -0,0 +1,38 @@
+package org.mpilone.vaadin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An upload session store that keeps records in memory. This is the default
+ * store and is only suitable for a single node or a cluster using sticky
+ * sessions without failover.
+ *
+ * @author mpilone
+ */
+public class InMemoryUploadSessionStore implements UploadSessionStore {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private final Map<String, UploadSessionRecord> records =
+      new ConcurrentHashMap<>();
+
+  @Override
+  public UploadSessionRecord load(String fileId) {
+    return records.get(fileId);
+  }
+
+  @Override
+  public void save(UploadSessionRecord record) {
+    records.put(record.getFileId(), record);
+  }
+
+  @Override
+  public void remove(String fileId) {
+    records.remove(fileId);
+  }
+
+}
@@ -0,0 +1,52 @@
+package org.mpilone.vaadin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An upload tracer that logs each span as a single line of key/value pairs.
+ * Upload spans are logged at info level and chunk spans at debug level so
+ * the per-chunk detail can be enabled only when investigating a slow upload.
+ * Spans that ended with a failure are logged at warn level.
+ *
+ * @author mpilone
+ */
+public class LoggingUploadTracer implements UploadTracer {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  @Override
+  public void spanEnded(Span span) {
+    boolean chunk = span.getChunkIndex() != -1 || span.getType()
+        == SpanType.COMMIT;
+    if (span.getFailure() == null && (chunk ? !log.isDebugEnabled()
+        : !log.isInfoEnabled())) {
+      return;
+    }
+
+    String message = String.format("span=%s fileId=%s file=%s chunk=%d "
+        + "bytes=%d runtime=%s duration=%.3fms", span.getType(), span.
+        getFileId(), span.getFilename(), span.getChunkIndex(), span.getBytes(),
+        span.getRuntime(), span.getDuration() / NANOS_PER_MILLI);
+
+    if (span.getFailure() != null) {
+      log.warn("{} failure={}", message, span.getFailure().toString());
+    }
+    else if (chunk) {
+      log.debug(message);
+    }
+    else {
+      log.info(message);
+    }
+  }
+}
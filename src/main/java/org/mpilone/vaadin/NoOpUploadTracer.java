@@ -0,0 +1,20 @@
+package org.mpilone.vaadin;
+
+/**
+ * An upload tracer that ignores all spans. This is the default tracer of the
+ * {@link Plupload} component.
+ *
+ * @author mpilone
+ */
+public class NoOpUploadTracer implements UploadTracer {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public void spanEnded(Span span) {
+    // no op
+  }
+}
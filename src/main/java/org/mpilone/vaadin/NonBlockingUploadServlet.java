@@ -0,0 +1,555 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.Streams.tryClose;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.server.NoOutputStreamException;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.WrappedSession;
+import com.vaadin.server.communication.FileUploadHandler;
+
+/**
+ * <p>
+ * An upload endpoint that reads chunk data using Servlet 3.1 asynchronous,
+ * non-blocking IO. Unlike the standard Vaadin {@link FileUploadHandler}, a
+ * container thread is only used while data is actually available so slow
+ * clients do not each hold a thread for the duration of their upload.
+ * </p>
+ * <p>
+ * The servlet must be mapped in the application with
+ * <code>asyncSupported</code> enabled and the mapped URL configured on each
+ * component via {@link Plupload#setNonBlockingUploadUrl(java.lang.String)}.
+ * The client must send the chunk as a raw binary body (i.e. not multipart)
+ * which is supported by the HTML5, Flash, and Silverlight runtimes but not by
+ * the HTML4 runtime.
+ * </p>
+ * <p>
+ * Each request must belong to the same HTTP session as the component that
+ * registered the target, the same as the standard stream variable URL, so
+ * the runtime must send the session cookie with the upload. Each request is
+ * limited to the async timeout which can be configured with the
+ * {@value #ASYNC_TIMEOUT_PARAMETER} init parameter in milliseconds.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class NonBlockingUploadServlet extends HttpServlet {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The request parameter that identifies the registered upload target.
+   */
+  static final String TARGET_PARAMETER = "target";
+
+  /**
+   * The request parameter that contains the file name. This parameter is
+   * automatically added by Plupload when not using multipart requests.
+   */
+  private static final String NAME_PARAMETER = "name";
+
+  /**
+   * The servlet init parameter that sets the maximum time in milliseconds a
+   * single upload request may take.
+   */
+  public static final String ASYNC_TIMEOUT_PARAMETER = "asyncTimeout";
+
+  /**
+   * The default maximum time in milliseconds a single upload request may
+   * take.
+   */
+  public static final long DEFAULT_ASYNC_TIMEOUT = 5 * 60 * 1000;
+
+  /**
+   * The minimum time in milliseconds between progress notifications of a
+   * single request which matches the interval of the standard Vaadin upload.
+   */
+  private static final long PROGRESS_INTERVAL = 500;
+
+  /**
+   * The size of the buffer used to move data from the request to the stream
+   * variable.
+   */
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /**
+   * The registered upload targets mapped by the unique target ID.
+   */
+  private static final Map<String, Target> TARGETS = new ConcurrentHashMap<>();
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
+  /**
+   * Registers the given stream variable as an upload target. The returned ID
+   * must be passed as the {@link #TARGET_PARAMETER} on each upload request.
+   *
+   * @param session the session that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   *
+   * @return the unique ID of the target
+   */
+  static String register(VaadinSession session, StreamVariable streamVariable) {
+    String id = UUID.randomUUID().toString();
+    TARGETS.put(id, new Target(session, streamVariable));
+    return id;
+  }
+
+  /**
+   * Unregisters the upload target with the given ID. Any further requests for
+   * the target will be rejected.
+   *
+   * @param id the unique ID of the target
+   */
+  static void unregister(String id) {
+    TARGETS.remove(id);
+  }
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+
+    String value = getInitParameter(ASYNC_TIMEOUT_PARAMETER);
+    if (value != null) {
+      try {
+        asyncTimeout = Long.parseLong(value.trim());
+      }
+      catch (NumberFormatException ex) {
+        throw new ServletException("Invalid " + ASYNC_TIMEOUT_PARAMETER
+            + " init parameter " + value + ".", ex);
+      }
+      if (asyncTimeout <= 0) {
+        throw new ServletException("The " + ASYNC_TIMEOUT_PARAMETER
+            + " init parameter must be positive.");
+      }
+    }
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    String id = req.getParameter(TARGET_PARAMETER);
+    Target target = id == null ? null : TARGETS.get(id);
+    if (target == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    // Like the stream variable URL, the target may only be used by the
+    // session that owns it.
+    if (!isOwner(target, req.getSession(false))) {
+      log.warn("Rejecting upload to target {} from a different session.", id);
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    if (!req.isAsyncSupported()) {
+      log.warn("Async support is not enabled on the servlet mapping. "
+          + "Non-blocking uploads will be rejected.");
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    AsyncContext asyncContext = req.startAsync();
+    asyncContext.setTimeout(asyncTimeout);
+
+    ServletInputStream instream = req.getInputStream();
+    ChunkReadListener listener = new ChunkReadListener(target, req,
+        asyncContext, instream, req.getParameter(NAME_PARAMETER), req.
+        getContentType(), req.getContentLengthLong());
+    asyncContext.addListener(listener);
+    instream.setReadListener(listener);
+  }
+
+  /**
+   * Returns true if the given HTTP session is the session of the Vaadin
+   * session that owns the target.
+   *
+   * @param target the upload target
+   * @param httpSession the session of the request or null if there is none
+   *
+   * @return true if the session owns the target
+   */
+  private static boolean isOwner(Target target, HttpSession httpSession) {
+    WrappedSession session = target.session.getSession();
+    return httpSession != null && session != null && httpSession.getId().
+        equals(session.getId());
+  }
+
+  /**
+   * A registered upload target.
+   */
+  private static class Target {
+
+    final VaadinSession session;
+    final StreamVariable streamVariable;
+
+    /**
+     * Constructs the target.
+     *
+     * @param session the session that owns the stream variable
+     * @param streamVariable the stream variable to receive the data
+     */
+    Target(VaadinSession session, StreamVariable streamVariable) {
+      this.session = session;
+      this.streamVariable = streamVariable;
+    }
+  }
+
+  /**
+   * A read listener that moves data from the request to the stream variable of
+   * the target as it becomes available. All calls to the stream variable
+   * (except for writes to the output stream) are done while holding the lock
+   * of the owning session. The listener also fails the upload if the request
+   * times out. The container may report a timeout or error on a different
+   * thread than the one reading so every callback that uses the output
+   * stream holds the listener lock; the output stream is never written and
+   * closed at the same time and isn't used after the request is done.
+   */
+  private class ChunkReadListener implements ReadListener, AsyncListener {
+
+    private final Target target;
+    private final HttpServletRequest request;
+    private final AsyncContext asyncContext;
+    private final ServletInputStream instream;
+    private final StreamingEvent event;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private OutputStream outstream;
+    private boolean listenProgress;
+    private long lastProgress;
+    private boolean done;
+
+    /**
+     * Constructs the listener.
+     *
+     * @param target the upload target to receive the data
+     * @param request the upload request
+     * @param asyncContext the async context of the request
+     * @param instream the request input stream
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param contentLength the content length of the request
+     */
+    ChunkReadListener(Target target, HttpServletRequest request,
+        AsyncContext asyncContext, ServletInputStream instream, String filename,
+        String mimeType, long contentLength) {
+      this.target = target;
+      this.request = request;
+      this.asyncContext = asyncContext;
+      this.instream = instream;
+      this.event = new StreamingEvent(filename, mimeType, contentLength);
+    }
+
+    @Override
+    public synchronized void onDataAvailable() throws IOException {
+      if (isDone()) {
+        return;
+      }
+
+      if (outstream == null) {
+        outstream = startStreaming();
+        if (outstream == null) {
+          fail(new NoOutputStreamException());
+          return;
+        }
+      }
+
+      while (instream.isReady() && !instream.isFinished()) {
+        int len = instream.read(buf);
+        if (len == -1) {
+          break;
+        }
+        outstream.write(buf, 0, len);
+        event.bytesReceived += len;
+
+        if (target.streamVariable.isInterrupted()) {
+          fail(new FileUploadHandler.UploadInterruptedException());
+          return;
+        }
+      }
+
+      fireProgress();
+    }
+
+    @Override
+    public synchronized void onAllDataRead() throws IOException {
+      if (isDone()) {
+        return;
+      }
+
+      // An empty body will never trigger a data available call.
+      if (outstream == null) {
+        outstream = startStreaming();
+        if (outstream == null) {
+          fail(new NoOutputStreamException());
+          return;
+        }
+      }
+
+      // Claim the request before closing the stream so a request that was
+      // already failed doesn't acquire a commit permit that is never
+      // released.
+      if (!markDone()) {
+        return;
+      }
+
+      tryClose(outstream);
+
+      lock();
+      try {
+        target.streamVariable.streamingFinished(event);
+      }
+      catch (RuntimeException ex) {
+        failed(ex);
+        return;
+      }
+      finally {
+        unlock();
+      }
+
+      ((HttpServletResponse) asyncContext.getResponse()).setStatus(
+          HttpServletResponse.SC_OK);
+      asyncContext.complete();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      log.info("Non-blocking upload failed.", t);
+
+      fail(t instanceof Exception ? (Exception) t : new RuntimeException(t));
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      log.info("Non-blocking upload timed out after {} ms.", asyncTimeout);
+
+      fail(new IOException("Upload request timed out."));
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+      // no op
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+      onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+      // no op
+    }
+
+    /**
+     * Returns true if the request has been completed or failed.
+     *
+     * @return true if the request is done
+     */
+    private synchronized boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Marks the request as done. The timeout may be handled on a different
+     * thread than the read listener so only the first caller completes the
+     * request.
+     *
+     * @return true if the request wasn't already done
+     */
+    private synchronized boolean markDone() {
+      if (done) {
+        return false;
+      }
+      done = true;
+      return true;
+    }
+
+    /**
+     * Locks the owning session and makes the request available to the stream
+     * variable via {@link ChunkRequests}.
+     */
+    private void lock() {
+      target.session.lock();
+      ChunkRequests.setCurrent(request);
+    }
+
+    /**
+     * Clears the current request and unlocks the owning session.
+     */
+    private void unlock() {
+      ChunkRequests.setCurrent(null);
+      target.session.unlock();
+    }
+
+    /**
+     * Notifies the stream variable that streaming has started and returns the
+     * output stream to write to.
+     *
+     * @return the output stream or null if the stream variable didn't provide
+     * one
+     */
+    private OutputStream startStreaming() {
+      lock();
+      try {
+        target.streamVariable.streamingStarted(event);
+        listenProgress = target.streamVariable.listenProgress();
+        return target.streamVariable.getOutputStream();
+      }
+      finally {
+        unlock();
+      }
+    }
+
+    /**
+     * Notifies the stream variable of progress if it was listening when
+     * streaming started. Notifications are throttled so the session isn't
+     * locked every time data is available.
+     */
+    private void fireProgress() {
+      long now = System.currentTimeMillis();
+      if (!listenProgress || now - lastProgress < PROGRESS_INTERVAL) {
+        return;
+      }
+      lastProgress = now;
+
+      lock();
+      try {
+        target.streamVariable.onProgress(event);
+      }
+      finally {
+        unlock();
+      }
+    }
+
+    /**
+     * Notifies the stream variable of the failure and completes the request
+     * with an error status.
+     *
+     * @param ex the root cause of the failure
+     */
+    private synchronized void fail(Exception ex) {
+      if (markDone()) {
+        failed(ex);
+      }
+    }
+
+    /**
+     * Notifies the stream variable of the failure and completes the request
+     * with an error status once the request has been marked as done. Must be
+     * called while holding the listener lock.
+     *
+     * @param ex the root cause of the failure
+     */
+    private void failed(Exception ex) {
+      if (outstream != null) {
+        tryClose(outstream);
+      }
+
+      lock();
+      try {
+        event.exception = ex;
+        target.streamVariable.streamingFailed(event);
+      }
+      finally {
+        unlock();
+      }
+
+      ((HttpServletResponse) asyncContext.getResponse()).setStatus(
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      asyncContext.complete();
+    }
+  }
+
+  /**
+   * A single mutable event implementation used for all stream variable
+   * callbacks of a single request.
+   */
+  private static class StreamingEvent implements
+      StreamVariable.StreamingStartEvent, StreamVariable.StreamingEndEvent,
+      StreamVariable.StreamingErrorEvent,
+      StreamVariable.StreamingProgressEvent {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final String mimeType;
+    private final long contentLength;
+    private long bytesReceived;
+    private Exception exception;
+
+    /**
+     * Constructs the event.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param contentLength the content length of the request
+     */
+    StreamingEvent(String filename, String mimeType, long contentLength) {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.contentLength = contentLength;
+    }
+
+    @Override
+    public String getFileName() {
+      return filename;
+    }
+
+    @Override
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    @Override
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    @Override
+    public long getBytesReceived() {
+      return bytesReceived;
+    }
+
+    @Override
+    public Exception getException() {
+      return exception;
+    }
+
+    @Override
+    public void disposeStreamVariable() {
+      // no op. The target is unregistered when the component is detached.
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.SortedMap;
+
+/**
+ * The subset of an S3-compatible object store API needed to upload an object
+ * in parts. Implementations adapt a specific client library (or an in-process
+ * fake such as {@link InMemoryObjectStore}) for use by the
+ * {@link ObjectStoreReceiver}. Implementations must be safe for concurrent use
+ * because parts are uploaded in parallel. The store is serialized with the
+ * receiver so a client that isn't serializable must be held in a transient
+ * field and recreated (e.g. from the serialized configuration) when
+ * deserialized.
+ *
+ * @author mpilone
+ */
+public interface ObjectStore extends Serializable {
+
+  /**
+   * Starts a new multipart upload of the object with the given key.
+   *
+   * @param key the key of the object
+   * @param mimeType the content type of the object or null if not known
+   *
+   * @return the unique ID of the multipart upload
+   *
+   * @throws IOException if the upload cannot be started
+   */
+  String createMultipartUpload(String key, String mimeType) throws IOException;
+
+  /**
+   * Uploads a single part of a multipart upload. Uploading a part with the
+   * same number again replaces the previous part.
+   *
+   * @param key the key of the object
+   * @param uploadId the unique ID of the multipart upload
+   * @param partNumber the number of the part starting at 1
+   * @param data the part data
+   * @param len the number of bytes of the data to upload
+   *
+   * @return the entity tag of the uploaded part
+   *
+   * @throws IOException if the part cannot be uploaded
+   */
+  String uploadPart(String key, String uploadId, int partNumber, byte[] data,
+      int len) throws IOException;
+
+  /**
+   * Completes a multipart upload by assembling the given parts into the
+   * object.
+   *
+   * @param key the key of the object
+   * @param uploadId the unique ID of the multipart upload
+   * @param partETags the entity tags of the parts mapped by part number
+   *
+   * @throws IOException if the upload cannot be completed
+   */
+  void completeMultipartUpload(String key, String uploadId,
+      SortedMap<Integer, String> partETags) throws IOException;
+
+  /**
+   * Aborts a multipart upload and discards all the uploaded parts.
+   *
+   * @param key the key of the object
+   * @param uploadId the unique ID of the multipart upload
+   *
+   * @throws IOException if the upload cannot be aborted
+   */
+  void abortMultipartUpload(String key, String uploadId) throws IOException;
+}
@@ -0,0 +1,460 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A receiver that streams each upload to an object store as a multipart
+ * upload. Every committed chunk becomes a part and the parts are uploaded in
+ * parallel while the remaining chunks are still arriving, so the object is
+ * durable shortly after the last chunk is received rather than after the
+ * entire file is transferred a second time. The multipart upload is completed
+ * before the succeeded event is fired and aborted when the upload fails.
+ * </p>
+ * <p>
+ * The number of parts in memory or in flight for each upload is bounded. If
+ * the object store falls behind, the thread receiving the upload blocks until
+ * a part completes. The chunk size of the component must satisfy the minimum
+ * part size of the object store (e.g. 5MB for S3) and must not exceed the
+ * maximum part size of the receiver because each part is buffered in memory
+ * until it is uploaded. A file ID is required so the HTML4 runtime is not
+ * supported. Multipart uploads are tracked in memory so an upload cannot be
+ * resumed after a restart or after the receiver is deserialized.
+ * </p>
+ * <p>
+ * Parts are closed and the upload is ended while the {@link Plupload}
+ * component holds the Vaadin session lock. Waiting for a part slot and, when
+ * the upload ends, for the remaining parts to finish therefore blocks the UI
+ * of the session. Each wait is bounded by the part timeout; a part that can't
+ * be started in time fails the chunk so the client retries it, and a part
+ * that doesn't finish in time fails the upload.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ObjectStoreReceiver implements ChunkReceiver {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default maximum number of parts of a single upload in memory or in
+   * flight at once.
+   */
+  public static final int DEFAULT_MAX_PARTS_IN_FLIGHT = 4;
+
+  /**
+   * The default maximum size in bytes of a single part.
+   */
+  public static final int DEFAULT_MAX_PART_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The default time in milliseconds to wait for a part slot or a part
+   * upload.
+   */
+  public static final long DEFAULT_PART_TIMEOUT = 60 * 1000;
+
+  /**
+   * The number of threads of the shared executor.
+   */
+  private static final int DEFAULT_THREADS = 16;
+
+  /**
+   * The maximum number of parts queued in the shared executor. Parts beyond
+   * the limit fail the chunk so the client retries it.
+   */
+  private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+  /**
+   * The initial capacity of a part buffer which grows as chunk data arrives.
+   */
+  private static final int INITIAL_PART_CAPACITY = 64 * 1024;
+
+  /**
+   * The executor used when one isn't provided.
+   */
+  private static final ExecutorService DEFAULT_EXECUTOR =
+      createDefaultExecutor();
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final ObjectStore store;
+  private transient ExecutorService executor;
+  private final int maxPartsInFlight;
+  private final int maxPartSize;
+  private transient Map<String, MultipartUpload> uploads =
+      new ConcurrentHashMap<>();
+  private volatile long partTimeout = DEFAULT_PART_TIMEOUT;
+
+  /**
+   * Constructs the receiver using a shared executor and the default number of
+   * parts in flight.
+   *
+   * @param store the object store to upload to
+   */
+  public ObjectStoreReceiver(ObjectStore store) {
+    this(store, DEFAULT_EXECUTOR, DEFAULT_MAX_PARTS_IN_FLIGHT);
+  }
+
+  /**
+   * Constructs the receiver.
+   *
+   * @param store the object store to upload to
+   * @param executor the executor used to upload the parts. The executor
+   * isn't serialized; the shared executor is used after the receiver is
+   * deserialized.
+   * @param maxPartsInFlight the maximum number of parts of a single upload
+   * in memory or in flight at once
+   */
+  public ObjectStoreReceiver(ObjectStore store, ExecutorService executor,
+      int maxPartsInFlight) {
+    this(store, executor, maxPartsInFlight, DEFAULT_MAX_PART_SIZE);
+  }
+
+  /**
+   * Constructs the receiver.
+   *
+   * @param store the object store to upload to
+   * @param executor the executor used to upload the parts. The executor
+   * isn't serialized; the shared executor is used after the receiver is
+   * deserialized.
+   * @param maxPartsInFlight the maximum number of parts of a single upload
+   * in memory or in flight at once
+   * @param maxPartSize the maximum size in bytes of a single part (i.e. a
+   * chunk) buffered in memory
+   */
+  public ObjectStoreReceiver(ObjectStore store, ExecutorService executor,
+      int maxPartsInFlight, int maxPartSize) {
+    this.store = store;
+    this.executor = executor;
+    this.maxPartsInFlight = maxPartsInFlight;
+    this.maxPartSize = maxPartSize;
+  }
+
+  /**
+   * Creates the executor shared by receivers that aren't given one. The
+   * number of threads and queued parts are bounded.
+   *
+   * @return the executor
+   */
+  private static ExecutorService createDefaultExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS,
+        DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(DEFAULT_QUEUE_CAPACITY),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "plupload-object-store");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Restores the receiver after it is deserialized. The multipart uploads in
+   * progress are only tracked on the node that started them so they aren't
+   * serialized and the uploads fail if continued on another node. The shared
+   * executor is used.
+   *
+   * @param in the stream to read from
+   *
+   * @throws IOException if the receiver cannot be read
+   * @throws ClassNotFoundException if a class of the receiver is missing
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    executor = DEFAULT_EXECUTOR;
+    uploads = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the time to wait for a part slot or a part upload.
+   *
+   * @return the timeout in milliseconds
+   */
+  public long getPartTimeout() {
+    return partTimeout;
+  }
+
+  /**
+   * Sets the time to wait for a part slot when closing a part or for a part
+   * upload when the upload ends. The waits happen while the Vaadin session
+   * lock is held so the timeout bounds how long the UI can be blocked by a
+   * slow object store. The default is {@link #DEFAULT_PART_TIMEOUT}.
+   *
+   * @param partTimeout the timeout in milliseconds
+   */
+  public void setPartTimeout(long partTimeout) {
+    this.partTimeout = partTimeout;
+  }
+
+  @Override
+  public WritableByteChannel receiveChunk(Chunk chunk) throws IOException {
+    String fileId = chunk.getFileId();
+    if (fileId == null) {
+      throw new IOException("A file ID is required for a multipart upload.");
+    }
+
+    MultipartUpload upload = uploads.get(fileId);
+    if (upload == null) {
+      if (chunk.getOffset() != 0) {
+        throw new IOException("No multipart upload exists for file " + fileId
+            + " at offset " + chunk.getOffset() + ".");
+      }
+
+      String key = createKey(chunk);
+      upload = new MultipartUpload(key, store.createMultipartUpload(key,
+          chunk.getMimeType()));
+      uploads.put(fileId, upload);
+
+      log.debug("Started multipart upload {} of object {}.", upload.uploadId,
+          key);
+    }
+
+    // Fail fast so the client stops sending data that can't be used. A
+    // failure of this part is replaced by the retry.
+    int partNumber = (int) chunk.getIndex() + 1;
+    for (Map.Entry<Integer, IOException> entry : upload.failures.entrySet()) {
+      if (entry.getKey() != partNumber) {
+        throw new IOException("Part " + entry.getKey() + " of the upload "
+            + "failed.", entry.getValue());
+      }
+    }
+
+    return new PartChannel(upload, partNumber);
+  }
+
+  @Override
+  public void uploadEnded(String fileId, boolean succeeded) throws
+      IOException {
+    MultipartUpload upload = fileId == null ? null : uploads.remove(fileId);
+    if (upload == null) {
+      return;
+    }
+
+    // Wait for all the parts so an abort doesn't race with a part upload.
+    SortedMap<Integer, String> partETags = new TreeMap<>();
+    IOException failure = null;
+    for (Map.Entry<Integer, Future<String>> entry : upload.parts.entrySet()) {
+      try {
+        partETags.put(entry.getKey(), entry.getValue().get(partTimeout,
+            TimeUnit.MILLISECONDS));
+      }
+      catch (ExecutionException ex) {
+        failure = failure != null ? failure : new IOException("Failed to "
+            + "upload part " + entry.getKey() + ".", ex.getCause());
+      }
+      catch (TimeoutException ex) {
+        entry.getValue().cancel(true);
+        failure = failure != null ? failure : new IOException("Timed out "
+            + "uploading part " + entry.getKey() + ".", ex);
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        failure = failure != null ? failure : new InterruptedIOException(
+            "Interrupted waiting for part uploads.");
+      }
+    }
+
+    if (succeeded && failure == null) {
+      try {
+        store.completeMultipartUpload(upload.key, upload.uploadId, partETags);
+
+        log.debug("Completed multipart upload {} of object {} with {} parts.",
+            upload.uploadId, upload.key, partETags.size());
+        return;
+      }
+      catch (IOException ex) {
+        failure = ex;
+      }
+    }
+
+    try {
+      store.abortMultipartUpload(upload.key, upload.uploadId);
+    }
+    catch (IOException ex) {
+      log.warn("Failed to abort multipart upload {} of object {}.",
+          upload.uploadId, upload.key, ex);
+    }
+
+    if (succeeded) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Creates the key of the object for the file of the given chunk. The default
+   * implementation uses the file ID and the filename. Subclasses may override
+   * this method to add a prefix or use a different naming scheme.
+   *
+   * @param chunk the first chunk of the file
+   *
+   * @return the key of the object
+   */
+  protected String createKey(Chunk chunk) {
+    return chunk.getFileId() + "/" + chunk.getFilename();
+  }
+
+  /**
+   * A multipart upload in progress.
+   */
+  private class MultipartUpload {
+
+    final String key;
+    final String uploadId;
+    final Semaphore permits = new Semaphore(maxPartsInFlight);
+    final Map<Integer, Future<String>> parts = new ConcurrentHashMap<>();
+    final Map<Integer, IOException> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the upload.
+     *
+     * @param key the key of the object
+     * @param uploadId the unique ID of the multipart upload
+     */
+    MultipartUpload(String key, String uploadId) {
+      this.key = key;
+      this.uploadId = uploadId;
+    }
+  }
+
+  /**
+   * A channel that buffers the data of a single chunk and uploads it as a
+   * part when closed.
+   */
+  private class PartChannel implements WritableByteChannel {
+
+    private final MultipartUpload upload;
+    private final int partNumber;
+    private byte[] buf = new byte[INITIAL_PART_CAPACITY];
+    private int count;
+    private boolean open = true;
+
+    /**
+     * Constructs the channel.
+     *
+     * @param upload the multipart upload the part belongs to
+     * @param partNumber the number of the part starting at 1
+     */
+    PartChannel(MultipartUpload upload, int partNumber) {
+      this.upload = upload;
+      this.partNumber = partNumber;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int len = src.remaining();
+      if (len > maxPartSize - count) {
+        throw new IOException("Part " + partNumber + " exceeds the maximum "
+            + "part size of " + maxPartSize + " bytes. Chunking must be "
+            + "enabled with a chunk size no larger than the maximum part "
+            + "size.");
+      }
+      if (count + len > buf.length) {
+        buf = Arrays.copyOf(buf, Math.min(Math.max(buf.length * 2, count
+            + len), maxPartSize));
+      }
+      src.get(buf, count, len);
+      count += len;
+      return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!open) {
+        return;
+      }
+      open = false;
+
+      // A retried chunk replaces the part so make sure a previous attempt
+      // can't complete after this one.
+      Future<String> previous = upload.parts.get(partNumber);
+      if (previous != null) {
+        try {
+          previous.get(partTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException ex) {
+          // Ignore. This attempt replaces the failed part.
+        }
+        catch (TimeoutException ex) {
+          throw new IOException("Timed out waiting for the previous attempt "
+              + "at part " + partNumber + ".", ex);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for part "
+              + partNumber + ".");
+        }
+        upload.failures.remove(partNumber);
+      }
+
+      // Wait if too many parts are already in memory or in flight. Fail the
+      // chunk rather than blocking the session indefinitely so the client
+      // retries it.
+      try {
+        if (!upload.permits.tryAcquire(partTimeout, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Timed out waiting to upload part "
+              + partNumber + ".");
+        }
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to upload part "
+            + partNumber + ".");
+      }
+
+      final byte[] data = buf;
+      final int len = count;
+      buf = null;
+
+      try {
+        upload.parts.put(partNumber, executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            try {
+              return store.uploadPart(upload.key, upload.uploadId, partNumber,
+                  data, len);
+            }
+            catch (IOException ex) {
+              upload.failures.put(partNumber, ex);
+              throw ex;
+            }
+            finally {
+              upload.permits.release();
+            }
+          }
+        }));
+      }
+      catch (RejectedExecutionException ex) {
+        upload.permits.release();
+        throw new IOException("Unable to upload part " + partNumber + ".", ex);
+      }
+    }
+  }
+}
@@ -4,9 +4,22 @@ import static org.mpilone.vaadin.Streams.tryClose;
 
 import java.io.*;
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.mpilone.vaadin.shared.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,14 +47,21 @@ import com.vaadin.util.FileTypeResolver;
  * with a filename of "blob".
  * </p>
  * <p>
- * When using retries, the incoming data must be buffered in order to reset the
- * input stream in the event of a partial upload. Therefore it is recommend that
- * only small files be supported or chunking is used to limit the file size.
+ * The client sends the offset of each chunk so a retry of a partially received
+ * chunk only writes the data that wasn't already received. To also discard a
+ * chunk that fails checksum verification, the incoming data is buffered on
+ * the heap, off-heap, or on disk depending on the budgets of the
+ * {@link RetryBufferArena}.
+ * </p>
+ * <p>
+ * The Plupload script is loaded lazily by the client on the first interaction
+ * with or visibility of the component so pages that never upload don't pay for
+ * the Plupload runtime.
  * </p>
  *
  * @author mpilone
  */
-@JavaScript({"plupload_connector.js", "plupload/plupload.full.min.js"})
+@JavaScript({"plupload_connector.js"})
 public class Plupload extends AbstractJavaScriptComponent {
 
   /**
@@ -59,6 +79,12 @@ public class Plupload extends AbstractJavaScriptComponent {
   private final static Method FINISHED_METHOD;
   private final static Method FAILED_METHOD;
 
+  /**
+   * The generic type of the event list in a batch RPC call used to decode
+   * events piggybacked on a chunk request.
+   */
+  private final static Type EVENT_LIST_TYPE;
+
   static {
     try {
       SUCCEEDED_METHOD = SucceededListener.class.getMethod("uploadSucceeded",
@@ -69,20 +95,115 @@ public class Plupload extends AbstractJavaScriptComponent {
           StartedEvent.class);
       FINISHED_METHOD = FinishedListener.class.getMethod("uploadFinished",
           FinishedEvent.class);
+      EVENT_LIST_TYPE = PluploadServerRpc.class.getMethod("onBatch",
+          String.class, List.class).getGenericParameterTypes()[1];
     }
     catch (NoSuchMethodException | SecurityException ex) {
       throw new RuntimeException("Unable to find listener event method.", ex);
     }
   }
 
+  /**
+   * The default time in milliseconds that an upload may be idle before it is
+   * reaped.
+   */
+  private final static long DEFAULT_UPLOAD_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+  /**
+   * The request attribute that holds the chunk stream given to the request so
+   * it can be verified and reused when the request ends.
+   */
+  private final static String CHUNK_OUTSTREAM_ATTRIBUTE = Plupload.class.
+      getName() + ".chunkOutstream";
+
+  /**
+   * The scheduler shared by all components used to reap idle uploads and to
+   * pre-warm the upload path.
+   */
+  private final static ScheduledExecutorService REAPER_EXECUTOR = Executors.
+      newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "plupload-upload-reaper");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * The classes used to receive the first chunk which are loaded and
+   * initialized in the background when the first component is pre-warmed.
+   */
+  private final static String[] UPLOAD_PATH_CLASSES = {
+    "com.vaadin.server.communication.FileUploadHandler",
+    "com.vaadin.server.communication.FileUploadHandler$SimpleMultiPartInputStream",
+    "com.vaadin.server.communication.StreamingStartEventImpl",
+    "com.vaadin.server.communication.StreamingProgressEventImpl",
+    "com.vaadin.server.communication.StreamingEndEventImpl",
+    "com.vaadin.server.communication.StreamingErrorEventImpl",
+    "org.mpilone.vaadin.Plupload$UploadSession",
+    "org.mpilone.vaadin.ChunkRequests",
+    "org.mpilone.vaadin.ChunkWriter",
+    "org.mpilone.vaadin.ChunkOutputStream",
+    "org.mpilone.vaadin.ChunkReceiverOutputStream",
+    "org.mpilone.vaadin.ProcessorOutputStream",
+    "org.mpilone.vaadin.TransactionalOutputStream",
+    "org.mpilone.vaadin.PriorityGate",
+    "org.mpilone.vaadin.UploadSessionRecord"
+  };
+
+  /**
+   * The flag which indicates if the upload path classes have been loaded.
+   */
+  private final static AtomicBoolean UPLOAD_PATH_WARMED = new AtomicBoolean();
+
+  /**
+   * The Plupload script loaded by the client when the uploader is activated.
+   */
+  private final static String PLUPLOAD_SCRIPT_PATH =
+      "plupload/plupload.full.min.js";
+
+  /**
+   * The Flash runtime binary which is only referenced if the Flash runtime is
+   * configured.
+   */
+  private final static String FLASH_SWF_PATH = "plupload/Moxie.swf";
+
+  /**
+   * The Silverlight runtime binary which is only referenced if the Silverlight
+   * runtime is configured.
+   */
+  private final static String SILVERLIGHT_XAP_PATH = "plupload/Moxie.xap";
+
   private final PluploadServerRpc rpc = new PluploadServerRpcImpl();
   private StreamVariable streamVariable;
   private Upload.Receiver receiver;
+  private ChunkReceiver chunkReceiver;
   private Runtime runtime;
   private int maxRetryBufferSize = 0;
+  private boolean retryBufferCompressed;
+  private transient RetryBufferArena retryBufferArena;
+  private transient RetryBufferArena prewarmedArena;
+  private transient List<byte[]> prewarmedBlocks;
+  private Priority priority = Priority.NORMAL;
+  private transient PriorityGate priorityGate;
+  private transient ChunkTelemetry chunkTelemetry;
+  private long uploadIdleTimeout = DEFAULT_UPLOAD_IDLE_TIMEOUT;
+  private transient ScheduledFuture<?> reaper;
+  private String reapedFileId;
+  private String endedFileId;
+  private String nonBlockingUploadUrl;
+  private String nonBlockingTargetId;
   private final List<Upload.ProgressListener> progressListeners =
       new ArrayList<>();
-  private UploadSession uploadSession;
+  private final List<UploadProcessor> processors = new ArrayList<>();
+  private UploadSessionStore sessionStore = new InMemoryUploadSessionStore();
+  private ChunkJournal journal;
+  private final Map<String, Resource> assetResources = new HashMap<>();
+  private UploadTracer tracer = new NoOpUploadTracer();
+  private transient UploadSession uploadSession;
+  private String eventClientId;
+  private int lastEventSeq;
 
   /**
    * Constructs the upload component.
@@ -116,11 +237,6 @@ public class Plupload extends AbstractJavaScriptComponent {
       FileTypeResolver.addExtension("xap", "application/x-silverlight-app");
     }
 
-    setResource("flashSwfUrl", new ClassResource(getClass(),
-        "plupload/Moxie.swf"));
-    setResource("silverlightSwfUrl", new ClassResource(getClass(),
-        "plupload/Moxie.xap"));
-
     setRuntimes(Runtime.HTML5, Runtime.FLASH, Runtime.SILVERLIGHT, Runtime.HTML4);
     setReceiver(receiver);
   }
@@ -129,12 +245,12 @@ public class Plupload extends AbstractJavaScriptComponent {
   public void attach() {
     super.attach();
 
-    // Get the URL for the stream variable which will also register
-    // it in the connector tracker.
-    String url = getSession().getCommunicationManager().
-        getStreamVariableTargetUrl(this, "plupload", getStreamVariable());
+    updateUploadUrl();
+    updateResources();
 
-    getState().url = url;
+    if (isPrewarmEnabled()) {
+      prewarm();
+    }
   }
 
   @Override
@@ -143,9 +259,115 @@ public class Plupload extends AbstractJavaScriptComponent {
     getUI().getConnectorTracker().cleanStreamVariable(getConnectorId(),
         "plupload");
 
+    if (nonBlockingTargetId != null) {
+      NonBlockingUploadServlet.unregister(nonBlockingTargetId);
+      nonBlockingTargetId = null;
+    }
+
+    releasePrewarmedBlocks();
+
     super.detach();
   }
 
+  /**
+   * Pre-warms the upload path so the first upload starts as quickly as later
+   * ones. The stream variable is already registered when the upload URL is
+   * updated. The upload path classes are loaded in the background the first
+   * time any component is pre-warmed and, if retries are enabled, the heap
+   * blocks of the retry buffer for the first chunk are leased.
+   */
+  private void prewarm() {
+    if (UPLOAD_PATH_WARMED.compareAndSet(false, true)) {
+      REAPER_EXECUTOR.execute(new Runnable() {
+        @Override
+        public void run() {
+          ClassLoader loader = Plupload.class.getClassLoader();
+          for (String name : UPLOAD_PATH_CLASSES) {
+            try {
+              Class.forName(name, true, loader);
+            }
+            catch (ClassNotFoundException | LinkageError ex) {
+              // The class will be loaded when it is first used.
+              log.debug("Unable to pre-load class {}.", name, ex);
+            }
+          }
+        }
+      });
+    }
+
+    // The heap tier only holds whole blocks.
+    RetryBufferArena arena = getRetryBufferArena();
+    long heapLength = maxRetryBufferSize - maxRetryBufferSize % arena.
+        getBlockSize();
+    int chunkSize = getState(false).chunkSize;
+    long length = chunkSize > 0 ? Math.min(chunkSize, heapLength) : heapLength;
+    if (prewarmedBlocks == null && getState(false).maxRetries > 0
+        && length > 0) {
+      prewarmedArena = arena;
+      prewarmedBlocks = prewarmedArena.leaseHeapBlocks(length);
+
+      log.debug("Leased {} retry buffer blocks for the first chunk.",
+          prewarmedBlocks.size());
+    }
+  }
+
+  /**
+   * Returns the retry buffer blocks leased when the component was pre-warmed
+   * to the arena if they haven't been used by an upload.
+   */
+  private void releasePrewarmedBlocks() {
+    if (prewarmedBlocks != null) {
+      for (byte[] block : prewarmedBlocks) {
+        prewarmedArena.releaseHeapBlock(block);
+      }
+      prewarmedBlocks = null;
+      prewarmedArena = null;
+    }
+  }
+
+  /**
+   * Updates the URL that the client will upload data to. If a shared uploader
+   * is used, the URL of the {@link PluploadUploadRouter} of the UI will be
+   * used. If a non-blocking upload URL is configured, the stream variable will
+   * be registered with the {@link NonBlockingUploadServlet}. Otherwise the
+   * standard Vaadin file upload handler will be used.
+   */
+  private void updateUploadUrl() {
+    if (nonBlockingTargetId != null) {
+      NonBlockingUploadServlet.unregister(nonBlockingTargetId);
+      nonBlockingTargetId = null;
+    }
+
+    String url;
+    boolean multipart = true;
+    if (getState(false).sharedUploader) {
+      url = PluploadUploadRouter.get(getUI()).getUploadUrl();
+    }
+    else if (nonBlockingUploadUrl != null) {
+      multipart = false;
+      nonBlockingTargetId = NonBlockingUploadServlet.register(getSession(),
+          getStreamVariable());
+
+      url = nonBlockingUploadUrl + (nonBlockingUploadUrl.contains("?") ? "&"
+          : "?") + NonBlockingUploadServlet.TARGET_PARAMETER + "="
+          + nonBlockingTargetId;
+    }
+    else {
+      // Get the URL for the stream variable which will also register
+      // it in the connector tracker.
+      url = getSession().getCommunicationManager().
+          getStreamVariableTargetUrl(this, "plupload", getStreamVariable());
+    }
+
+    // Only mark the state dirty if the values actually changed.
+    PluploadState state = getState(false);
+    if (!url.equals(state.url) || multipart != state.multipart) {
+      state = getState();
+      state.url = url;
+      state.multipart = multipart;
+    }
+  }
+
   /**
    * Fires the upload success event to all registered listeners.
    *
@@ -219,6 +441,17 @@ public class Plupload extends AbstractJavaScriptComponent {
     progressListeners.add(listener);
   }
 
+  /**
+   * Adds the given processor which will receive upload data incrementally as
+   * it is committed to the receiver. Processors are called in the order they
+   * are added.
+   *
+   * @param processor the processor to add
+   */
+  public void addProcessor(UploadProcessor processor) {
+    processors.add(processor);
+  }
+
   /**
    * Adds the given listener for upload started events.
    *
@@ -264,6 +497,16 @@ public class Plupload extends AbstractJavaScriptComponent {
     progressListeners.remove(listener);
   }
 
+  /**
+   * Removes the given processor. If an upload is in progress, the processor
+   * will continue to receive data until the upload completes.
+   *
+   * @param processor the processor to remove
+   */
+  public void removeProcessor(UploadProcessor processor) {
+    processors.remove(processor);
+  }
+
   /**
    * Removes the given listener for upload started events.
    *
@@ -344,7 +587,7 @@ public class Plupload extends AbstractJavaScriptComponent {
    * @return the caption of the submit button
    */
   public String getButtonCaption() {
-    return getState().buttonCaption;
+    return getState(false).buttonCaption;
   }
 
   /**
@@ -364,7 +607,7 @@ public class Plupload extends AbstractJavaScriptComponent {
    * @return the number of retries
    */
   public long getMaxRetries() {
-    return getState().maxRetries;
+    return getState(false).maxRetries;
   }
 
   /**
@@ -401,12 +644,38 @@ public class Plupload extends AbstractJavaScriptComponent {
    * starts uploading. The file data will be written to the returned stream. If
    * not set, the uploaded data will be ignored. The receiver may be called
    * multiple times with different file names if there are multiple files in the
-   * upload queue.
+   * upload queue. If it implements {@link ResumableReceiver}, the target will
+   * be reopened to resume an upload. Setting a receiver replaces any chunk
+   * receiver.
    *
    * @param receiver the receiver to use for creating file output streams
+   *
+   * @see #setChunkReceiver(org.mpilone.vaadin.ChunkReceiver)
    */
   public void setReceiver(Upload.Receiver receiver) {
     this.receiver = receiver;
+    this.chunkReceiver = null;
+  }
+
+  /**
+   * Returns the receiver that is given each chunk of a file.
+   *
+   * @return the chunk receiver or null if a stream receiver is used
+   */
+  public ChunkReceiver getChunkReceiver() {
+    return chunkReceiver;
+  }
+
+  /**
+   * Sets the receiver that is given each chunk of a file with its offset
+   * rather than a single output stream. Setting a chunk receiver replaces any
+   * receiver set with {@link #setReceiver(com.vaadin.ui.Upload.Receiver)}.
+   *
+   * @param chunkReceiver the receiver of the file chunks
+   */
+  public void setChunkReceiver(ChunkReceiver chunkReceiver) {
+    this.chunkReceiver = chunkReceiver;
+    this.receiver = null;
   }
 
   /**
@@ -427,23 +696,369 @@ public class Plupload extends AbstractJavaScriptComponent {
    * @return the size of each data chunk
    */
   public int getChunkSize() {
-    return getState().chunkSize;
+    return getState(false).chunkSize;
   }
 
   /**
    * Sets the size of the memory buffer used when retries are enabled. Incoming
    * data is first written to the buffer and committed to the receiver only when
-   * the upload (or chunk) successfully completes. This allows the data to be
-   * abandoned in the event of a partial upload and failure. This value should
-   * always be equal to or greater than the chunk size or the buffer will not be
-   * used.
+   * the upload (or chunk) successfully completes. This allows a chunk that
+   * fails checksum verification to be abandoned and retried. Retries of a
+   * partially received chunk are deduplicated by offset with or without the
+   * buffer. The buffer holds up to this many bytes of each upload on the heap
+   * and spills the rest of a larger chunk to the off-heap and disk tiers of
+   * the retry buffer arena. The heap tier is made up of whole blocks of the
+   * arena so the size is rounded down to a multiple of the block size (64KB
+   * by default); a smaller size enables the buffer without using the heap
+   * tier.
+   *
+   * @param maxRetryBufferSize the heap buffer size in bytes or 0 to disable
+   * the buffer
    *
-   * @param maxRetryBufferSize the buffer size in bytes
+   * @see #setRetryBufferArena(org.mpilone.vaadin.RetryBufferArena)
+   * @see #setRetryBufferCompressed(boolean)
    */
   public void setMaxRetryBufferSize(int maxRetryBufferSize) {
     this.maxRetryBufferSize = maxRetryBufferSize;
   }
 
+  /**
+   * Sets the flag which indicates if the data in the retry buffer is
+   * compressed. The data is compressed at the fastest deflate level as it is
+   * received and decompressed straight into the receiver when the chunk is
+   * committed, so compressible data, such as CSV or JSON, uses several times
+   * less of the heap size and arena budgets. Incompressible data is stored at
+   * roughly its original size but still pays for the compression. Each upload
+   * holds a deflater, pooled by the arena, while a chunk is buffered. The
+   * default is false.
+   *
+   * @param compressed true to compress the retry buffer
+   */
+  public void setRetryBufferCompressed(boolean compressed) {
+    this.retryBufferCompressed = compressed;
+  }
+
+  /**
+   * Returns the flag which indicates if the data in the retry buffer is
+   * compressed.
+   *
+   * @return true if the retry buffer is compressed
+   */
+  public boolean isRetryBufferCompressed() {
+    return retryBufferCompressed;
+  }
+
+  /**
+   * Sets the arena that provides the storage of the retry buffer. By default
+   * the arena shared by the entire JVM is used so the budgets of each storage
+   * tier apply to all uploads.
+   *
+   * @param retryBufferArena the arena or null to use the default arena
+   */
+  public void setRetryBufferArena(RetryBufferArena retryBufferArena) {
+    this.retryBufferArena = retryBufferArena;
+  }
+
+  /**
+   * Returns the arena that provides the storage of the retry buffer.
+   *
+   * @return the arena
+   */
+  public RetryBufferArena getRetryBufferArena() {
+    return retryBufferArena == null ? RetryBufferArena.getDefault()
+        : retryBufferArena;
+  }
+
+  /**
+   * Sets the priority of the uploads of this component. Receiver writes and
+   * commits of all components are admitted through a shared
+   * {@link PriorityGate} so, under contention, the data of high priority
+   * uploads (e.g. small interactive uploads) is written before the data of
+   * lower priority uploads (e.g. bulk imports). The priority may be changed
+   * while an upload is in progress and applies from the next chunk.
+   *
+   * @param priority the priority of the uploads
+   *
+   * @see #setPriorityGate(org.mpilone.vaadin.PriorityGate)
+   */
+  public void setPriority(Priority priority) {
+    if (priority == null) {
+      throw new IllegalArgumentException("Priority cannot be null.");
+    }
+    this.priority = priority;
+  }
+
+  /**
+   * Returns the priority of the uploads of this component.
+   *
+   * @return the priority of the uploads
+   */
+  public Priority getPriority() {
+    return priority;
+  }
+
+  /**
+   * Sets the gate that admits the receiver writes and commits of this
+   * component. By default the gate shared by the entire JVM is used so
+   * uploads of all components are scheduled together.
+   *
+   * @param priorityGate the gate or null to use the default gate
+   */
+  public void setPriorityGate(PriorityGate priorityGate) {
+    this.priorityGate = priorityGate;
+  }
+
+  /**
+   * Returns the gate that admits the receiver writes and commits of this
+   * component.
+   *
+   * @return the gate
+   */
+  public PriorityGate getPriorityGate() {
+    return priorityGate == null ? PriorityGate.getDefault() : priorityGate;
+  }
+
+  /**
+   * Sets the flag which indicates if the client reports the time spent
+   * sending each chunk, the number of retries, and the final HTTP status to
+   * the {@link ChunkTelemetry} of this component. The reports are sent with
+   * the other upload events so they don't require additional requests. The
+   * default is true.
+   *
+   * @param enabled true to report chunk timings
+   */
+  public void setTelemetryEnabled(boolean enabled) {
+    getState().telemetry = enabled;
+  }
+
+  /**
+   * Returns the flag which indicates if the client reports chunk timings.
+   *
+   * @return true if chunk timings are reported
+   */
+  public boolean isTelemetryEnabled() {
+    return getState(false).telemetry;
+  }
+
+  /**
+   * Sets the flag which indicates if the upload path is pre-warmed when the
+   * component is attached so the time to the first byte of the first upload
+   * matches later uploads. The client initializes the uploader and its
+   * runtime immediately rather than on the first interaction with the
+   * component, the server loads the classes used to receive a chunk in the
+   * background and, if retries are enabled, leases the retry buffer of the
+   * first chunk from the retry buffer arena until the first upload or until
+   * the component is detached. The default is false.
+   *
+   * @param enabled true to pre-warm the upload path
+   */
+  public void setPrewarmEnabled(boolean enabled) {
+    getState().prewarm = enabled;
+
+    if (!enabled) {
+      releasePrewarmedBlocks();
+    }
+    else if (isAttached()) {
+      prewarm();
+    }
+  }
+
+  /**
+   * Returns the flag which indicates if the upload path is pre-warmed when
+   * the component is attached.
+   *
+   * @return true if the upload path is pre-warmed
+   */
+  public boolean isPrewarmEnabled() {
+    return getState(false).prewarm;
+  }
+
+  /**
+   * Sets the telemetry that aggregates the chunk timings reported by the
+   * client. By default the telemetry shared by the entire JVM is used so the
+   * timings of all components are aggregated together.
+   *
+   * @param chunkTelemetry the telemetry or null to use the default telemetry
+   */
+  public void setChunkTelemetry(ChunkTelemetry chunkTelemetry) {
+    this.chunkTelemetry = chunkTelemetry;
+  }
+
+  /**
+   * Returns the telemetry that aggregates the chunk timings reported by the
+   * client.
+   *
+   * @return the telemetry
+   */
+  public ChunkTelemetry getChunkTelemetry() {
+    return chunkTelemetry == null ? ChunkTelemetry.getDefault()
+        : chunkTelemetry;
+  }
+
+  /**
+   * Returns the time in milliseconds that an upload may be idle before it is
+   * reaped.
+   *
+   * @return the idle timeout in milliseconds or 0 if disabled
+   */
+  public long getUploadIdleTimeout() {
+    return uploadIdleTimeout;
+  }
+
+  /**
+   * Sets the time in milliseconds that an upload may be idle (i.e. no chunk
+   * data or upload RPC calls received) before it is reaped. If the client
+   * vanishes during an upload (e.g. the tab is closed or the network is lost),
+   * the upload is never completed by the client. Reaping releases the retry
+   * buffer, closes the receiver stream, and fires a {@link FailedEvent}. An
+   * upload is never reaped while a chunk is being received. The default is 10
+   * minutes.
+   *
+   * @param timeout the idle timeout in milliseconds or 0 to disable reaping
+   */
+  public void setUploadIdleTimeout(long timeout) {
+    this.uploadIdleTimeout = timeout;
+  }
+
+  /**
+   * Returns the store used to record the state of in-progress uploads.
+   *
+   * @return the upload session store
+   */
+  public UploadSessionStore getSessionStore() {
+    return sessionStore;
+  }
+
+  /**
+   * Sets the store used to record the state of in-progress uploads. The store
+   * is updated after every chunk with the committed offset so that, when the
+   * store is shared between nodes and the receiver is a
+   * {@link ChunkReceiver} or implements {@link ResumableReceiver}, the next
+   * chunk of a file can be accepted by any node in a cluster that has the
+   * Vaadin session. The Vaadin session must still be replicated or the
+   * requests routed to a node that has it; the store only ensures the upload
+   * continues from the committed offset on that node. Uploads to any other
+   * receiver aren't recorded and an upload that can't be continued is
+   * interrupted rather than truncated. The default is an
+   * {@link InMemoryUploadSessionStore}.
+   *
+   * @param sessionStore the upload session store
+   */
+  public void setSessionStore(UploadSessionStore sessionStore) {
+    if (sessionStore == null) {
+      throw new IllegalArgumentException("Session store cannot be null.");
+    }
+    this.sessionStore = sessionStore;
+  }
+
+  /**
+   * Returns the tracer that receives the timed spans of each upload.
+   *
+   * @return the upload tracer
+   */
+  public UploadTracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Sets the tracer that receives the timed spans of each upload and chunk.
+   * The default is a {@link NoOpUploadTracer}. Use a
+   * {@link LoggingUploadTracer} or a custom implementation to find out where
+   * the time of a slow upload is spent.
+   *
+   * @param tracer the upload tracer
+   */
+  public void setTracer(UploadTracer tracer) {
+    if (tracer == null) {
+      throw new IllegalArgumentException("Tracer cannot be null.");
+    }
+    this.tracer = tracer;
+  }
+
+  /**
+   * Returns the journal that committed chunks are recorded in.
+   *
+   * @return the chunk journal or null if journaling is disabled
+   */
+  public ChunkJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Sets the journal that committed chunks are recorded in. When set, the
+   * offset and length of each chunk committed to the receiver is
+   * durably recorded so in-progress uploads can be restored after a server
+   * restart using {@link ChunkJournal#replay(org.mpilone.vaadin.UploadSessionStore)}.
+   * A restored upload is resumed when the client retries with the same file
+   * ID or when the same file is selected again and the client sends its
+   * resume token. The journal may be shared by many components. If set to
+   * null (the default), journaling is disabled.
+   *
+   * @param journal the chunk journal or null to disable journaling
+   */
+  public void setJournal(ChunkJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Returns the URL of the {@link NonBlockingUploadServlet} used to receive
+   * upload data or null if the standard Vaadin file upload handler is used.
+   *
+   * @return the non-blocking upload URL or null
+   */
+  public String getNonBlockingUploadUrl() {
+    return nonBlockingUploadUrl;
+  }
+
+  /**
+   * Sets the URL of the {@link NonBlockingUploadServlet} used to receive
+   * upload data. When set, the data will be sent by the client as a raw binary
+   * stream and read by the servlet using non-blocking IO so slow clients don't
+   * hold a container thread for the duration of the upload. The HTML4 runtime
+   * doesn't support binary uploads and should not be used in this mode. If set
+   * to null (the default), the standard Vaadin file upload handler will be
+   * used.
+   *
+   * @param url the URL (usually relative to the application) of the servlet or
+   * null to use the standard file upload handler
+   */
+  public void setNonBlockingUploadUrl(String url) {
+    this.nonBlockingUploadUrl = url;
+
+    if (isAttached()) {
+      updateUploadUrl();
+    }
+  }
+
+  /**
+   * Returns true if the component uses the uploader shared by all components in
+   * the UI.
+   *
+   * @return true if the shared uploader is used
+   */
+  public boolean isSharedUploader() {
+    return getState(false).sharedUploader;
+  }
+
+  /**
+   * Sets whether the component uses a single client side uploader shared by
+   * all components in the UI rather than building its own. The shared
+   * uploader greatly reduces the memory and DOM work on the client when there
+   * are many upload components in a UI. Files are uploaded one at a time
+   * through a single upload URL and routed to the owning component. The shared
+   * uploader only supports the HTML5 runtime and the non-blocking upload URL
+   * is ignored. The default is false.
+   *
+   * @param shared true to use the shared uploader
+   */
+  public void setSharedUploader(boolean shared) {
+    getState().sharedUploader = shared;
+
+    if (isAttached()) {
+      updateUploadUrl();
+    }
+  }
+
   /**
    * Sets the maximum size in bytes of files that may be selected and uploaded.
    *
@@ -481,29 +1096,477 @@ public class Plupload extends AbstractJavaScriptComponent {
    * done by the receiving tread so this method will return immediately and the
    * actual interrupt will happen a bit later.
    */
-  public void interruptUpload() {
-    if (uploadSession != null) {
-      uploadSession.interrupted = true;
+  public void interruptUpload() {
+    if (uploadSession != null) {
+      uploadSession.interrupted = true;
+    }
+  }
+
+  /**
+   * Go into upload state. Due to buffering of RPC calls by Vaadin, it is
+   * possible that the upload could be started by the data stream or the RPC
+   * call. It is safe to call this method multiple times and additional calls
+   * will simply be ignored.
+   *
+   * Warning: this is an internal method used by the framework and should not be
+   * used by user of the Upload component. Using it results in the Upload
+   * component going in wrong state and not working. It is currently public
+   * because it is used by another class.
+   *
+   * @param fileId the unique ID of the file assigned by the client or null if
+   * not known
+   */
+  private void startUpload(String fileId) {
+    // An idle session of another file was abandoned by the client, such as
+    // one recreated by a late request of a failed upload, so release it
+    // rather than adopting it for this file.
+    if (uploadSession != null && !uploadSession.streaming && fileId != null
+        && uploadSession.fileId != null && !fileId.equals(
+            uploadSession.fileId) && !fileId.equals(endedFileId)) {
+      log.debug("Abandoning upload session of file {} for file {}.",
+          uploadSession.fileId, fileId);
+      abortProcessors(null);
+      endUpload();
+    }
+
+    if (uploadSession == null) {
+      uploadSession = restoreUploadSession(fileId);
+    }
+    if (uploadSession == null) {
+      uploadSession = new UploadSession();
+    }
+    if (uploadSession.startNanos == 0) {
+      uploadSession.startNanos = System.nanoTime();
+    }
+    if (uploadSession.fileId == null) {
+      uploadSession.fileId = fileId;
+    }
+    uploadSession.lastActivity = System.currentTimeMillis();
+
+    // Reject any data for an upload that was already reaped.
+    if (fileId != null && fileId.equals(reapedFileId)) {
+      uploadSession.interrupted = true;
+    }
+
+    scheduleReaper();
+
+    if (getState(false).submitUpload) {
+      getState().submitUpload = false;
+    }
+  }
+
+  /**
+   * Schedules the reaper of the current upload session if reaping is enabled
+   * and it isn't already scheduled. The reaper checks for an idle upload at
+   * half the idle timeout.
+   */
+  private void scheduleReaper() {
+    if (reaper != null || uploadIdleTimeout <= 0 || getSession() == null) {
+      return;
+    }
+
+    final VaadinSession session = getSession();
+    long period = Math.max(uploadIdleTimeout / 2, 1);
+    reaper = REAPER_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        // Access through the session rather than the UI so the upload is
+        // still reaped if the UI has been detached.
+        session.access(new Runnable() {
+          @Override
+          public void run() {
+            reapIdleUpload();
+          }
+        });
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Cancels the reaper of the current upload session if one is scheduled.
+   */
+  private void cancelReaper() {
+    if (reaper != null) {
+      reaper.cancel(false);
+      reaper = null;
+    }
+  }
+
+  /**
+   * Reaps the current upload session if it has been idle longer than the idle
+   * timeout. The session resources are released and a failed event is fired.
+   */
+  private void reapIdleUpload() {
+    if (uploadSession == null) {
+      cancelReaper();
+      return;
+    }
+
+    long idle = System.currentTimeMillis() - uploadSession.lastActivity;
+    if (uploadSession.streaming || idle < uploadIdleTimeout) {
+      return;
+    }
+
+    log.warn("Reaping upload of file {} after {} ms of inactivity.",
+        uploadSession.filename, idle);
+
+    FailedEvent evt = new FailedEvent(this, uploadSession.filename,
+        uploadSession.mimeType, uploadSession.contentLength, new IOException(
+            "Upload idle timeout exceeded."));
+
+    reapedFileId = uploadSession.fileId;
+    abortProcessors(evt.getReason());
+    endUpload();
+
+    fireUploadInterrupted(evt);
+  }
+
+  /**
+   * Restores the upload session for the given file from the session store.
+   * This happens when a previous chunk of the file was received by another
+   * node or before the component was serialized.
+   *
+   * @param fileId the unique ID of the file assigned by the client or null if
+   * not known
+   *
+   * @return the restored session or null if there is no stored session
+   */
+  private UploadSession restoreUploadSession(String fileId) {
+    UploadSessionRecord record = fileId == null ? null : sessionStore.load(
+        fileId);
+    if (record == null) {
+      return null;
+    }
+
+    // The file IDs are only unique to the page so an upload of another HTTP
+    // session must never be continued.
+    String owner = getSessionOwner();
+    if (owner == null ? record.getOwner() != null : !owner.equals(record.
+        getOwner())) {
+      log.warn("Ignoring upload session of file {} owned by another session.",
+          record.getFilename());
+      return null;
+    }
+
+    log.info("Restored upload session of file {} at offset {}.",
+        record.getFilename(), record.getCommittedOffset());
+
+    // The upload is continuing under its file ID so it can no longer be
+    // resumed by token.
+    if (journal != null) {
+      journal.claimRestored(fileId);
+    }
+
+    UploadSession session = new UploadSession();
+    session.fileId = record.getFileId();
+    session.filename = record.getFilename();
+    session.mimeType = record.getMimeType();
+    session.contentLength = record.getContentLength();
+    session.bytesRead = record.getCommittedOffset();
+    session.receiverTarget = record.getReceiverTarget();
+    session.resumeToken = record.getResumeToken();
+    session.record = record;
+
+    // Only a chunk receiver or a resumable receiver with a target can
+    // continue at the committed offset. Any other receiver would be given a
+    // new stream without the data already received so the upload is
+    // interrupted rather than silently truncated.
+    if (session.bytesRead > 0 && !canResume(session.receiverTarget)) {
+      log.warn("Unable to continue upload of file {} at offset {} because "
+          + "the receiver can't be resumed.", session.filename,
+          session.bytesRead);
+      sessionStore.remove(fileId);
+      session.bytesRead = 0;
+      session.receiverTarget = null;
+      session.interruptReason = new IOException("Upload of file "
+          + session.filename + " can't be continued after "
+          + record.getCommittedOffset() + " bytes.");
+      session.interrupted = true;
+    }
+    return session;
+  }
+
+  /**
+   * Returns true if the configured receiver can continue an upload at the
+   * committed offset from a stored record, such as after the component is
+   * deserialized or on another node.
+   *
+   * @param receiverTarget the receiver target of the upload or null if not
+   * known
+   *
+   * @return true if the upload can be continued
+   */
+  private boolean canResume(String receiverTarget) {
+    return chunkReceiver != null || (receiver instanceof ResumableReceiver
+        && receiverTarget != null);
+  }
+
+  /**
+   * Resumes an upload restored by the journal that has the given resume
+   * token if the current upload session hasn't received any data yet. This
+   * happens when the user selects the same file again after the upload was
+   * interrupted by a server restart so the client assigned a new file ID. The
+   * client sends the file from the first byte but the data already committed
+   * to the receiver is skipped. The restored upload is ended under its old
+   * file ID so it is only resumed once. The owner of the record isn't checked
+   * because the client proves it started the upload with the token and the
+   * HTTP session may not survive the restart.
+   *
+   * @param resumeToken the resume token sent by the client or null if not
+   * known
+   */
+  private void resumeUploadSession(String resumeToken) {
+    if (resumeToken == null || uploadSession.resumeToken != null) {
+      return;
+    }
+    uploadSession.resumeToken = resumeToken;
+
+    if (journal == null || uploadSession.fileId == null
+        || uploadSession.writer != null || uploadSession.bytesRead > 0) {
+      return;
+    }
+
+    String restoredFileId = journal.claimRestoredByToken(resumeToken);
+    UploadSessionRecord record = restoredFileId == null ? null : sessionStore.
+        load(restoredFileId);
+    if (record == null) {
+      return;
+    }
+    sessionStore.remove(restoredFileId);
+    journal.ended(restoredFileId);
+
+    // Only a resumable receiver can reopen the target at the committed
+    // offset.
+    if (record.getReceiverTarget() == null || (uploadSession.filename != null
+        && !uploadSession.filename.equals(record.getFilename()))) {
+      log.warn("Not resuming upload session of file {} for file {}.",
+          record.getFilename(), uploadSession.filename);
+      return;
+    }
+
+    log.info("Resumed upload session of file {} at offset {}.",
+        record.getFilename(), record.getCommittedOffset());
+
+    uploadSession.bytesRead = record.getCommittedOffset();
+    uploadSession.receiverTarget = record.getReceiverTarget();
+    if (uploadSession.contentLength < record.getContentLength()) {
+      uploadSession.contentLength = record.getContentLength();
+    }
+    if (uploadSession.filename == null) {
+      uploadSession.filename = record.getFilename();
+    }
+    if (uploadSession.mimeType == null) {
+      uploadSession.mimeType = record.getMimeType();
+    }
+  }
+
+  /**
+   * Saves the current upload session to the session store if the file ID is
+   * known and the receiver can continue the upload from the record.
+   */
+  private void saveUploadSession() {
+    if (uploadSession == null || uploadSession.fileId == null
+        || !canResume(uploadSession.receiverTarget)) {
+      return;
+    }
+
+    sessionStore.save(getUploadSessionRecord());
+  }
+
+  /**
+   * Returns the record of the current upload session updated with the current
+   * state. The record is reused for the life of the session so saving the
+   * session after each chunk doesn't allocate.
+   *
+   * @return the updated record
+   */
+  private UploadSessionRecord getUploadSessionRecord() {
+    UploadSessionRecord record = uploadSession.record;
+    if (record == null) {
+      record = uploadSession.record = new UploadSessionRecord();
+    }
+    record.setFileId(uploadSession.fileId);
+    record.setFilename(uploadSession.filename);
+    record.setMimeType(uploadSession.mimeType);
+    record.setContentLength(uploadSession.contentLength);
+    record.setCommittedOffset(uploadSession.bytesRead);
+    record.setReceiverTarget(uploadSession.receiverTarget);
+    record.setResumeToken(uploadSession.resumeToken);
+    record.setOwner(getSessionOwner());
+    return record;
+  }
+
+  /**
+   * Returns the ID of the HTTP session of the component which owns the
+   * uploads it receives.
+   *
+   * @return the HTTP session ID or null if the component isn't attached
+   */
+  private String getSessionOwner() {
+    VaadinSession session = getSession();
+    WrappedSession wrappedSession = session == null ? null : session.
+        getSession();
+    return wrappedSession == null ? null : wrappedSession.getId();
+  }
+
+  /**
+   * Starts all the configured processors for the current upload session and
+   * returns a stream that passes data written to the given receiver stream to
+   * the processors. If a processor fails to start, the upload will be
+   * interrupted.
+   *
+   * @param outstream the receiver stream
+   *
+   * @return the stream to write committed data to
+   */
+  private OutputStream startProcessors(OutputStream outstream) {
+    if (processors.isEmpty()) {
+      return outstream;
+    }
+
+    UploadProcessor.Context context = new ProcessorContext(uploadSession);
+    uploadSession.processors = new ArrayList<>();
+    for (UploadProcessor processor : processors) {
+      try {
+        processor.start(context);
+        uploadSession.processors.add(processor);
+      }
+      catch (IOException ex) {
+        log.warn("Failed to start upload processor. The upload will be "
+            + "interrupted.", ex);
+        uploadSession.interrupted = true;
+        break;
+      }
+    }
+
+    return new ProcessorOutputStream(outstream, uploadSession.processors);
+  }
+
+  /**
+   * Finishes all the processors of the current upload session.
+   *
+   * @return the first exception thrown by a processor or null if all
+   * processors finished successfully
+   */
+  private IOException finishProcessors() {
+    IOException failure = null;
+
+    if (uploadSession.processors != null) {
+      for (UploadProcessor processor : uploadSession.processors) {
+        try {
+          processor.finish();
+        }
+        catch (IOException ex) {
+          log.warn("Upload processor failed to finish.", ex);
+          failure = failure == null ? ex : failure;
+        }
+      }
+      uploadSession.processors = null;
+    }
+
+    return failure;
+  }
+
+  /**
+   * Aborts all the processors of the current upload session.
+   *
+   * @param reason the root cause of the failure if known, otherwise null
+   */
+  private void abortProcessors(Exception reason) {
+    if (uploadSession != null && uploadSession.processors != null) {
+      for (UploadProcessor processor : uploadSession.processors) {
+        processor.abort(reason);
+      }
+      uploadSession.processors = null;
+    }
+  }
+
+  /**
+   * Records the chunk just committed to the receiver in the journal if
+   * journaling is enabled and the file ID is known. The start of the upload
+   * is recorded with the first chunk so the receiver target is known.
+   *
+   * @param length the length of the chunk in bytes
+   */
+  private void journalChunk(long length) {
+    if (journal == null || uploadSession.fileId == null) {
+      return;
+    }
+
+    if (!uploadSession.journaled) {
+      journal.started(getUploadSessionRecord());
+      uploadSession.journaled = true;
+    }
+
+    journal.chunkCommitted(uploadSession.fileId, uploadSession.bytesRead,
+        length);
+  }
+
+  /**
+   * Opens the receiver output stream for the current upload session. If the
+   * receiver is a {@link ResumableReceiver}, the target is created (or
+   * reopened if it was restored from the session store) at the committed
+   * offset.
+   *
+   * @return the receiver output stream or null if the receiver didn't provide
+   * one
+   */
+  private OutputStream openReceiverStream() {
+    if (chunkReceiver != null) {
+      uploadSession.chunkReceiverOutstream = new ChunkReceiverOutputStream(
+          chunkReceiver, uploadSession.fileId);
+      return uploadSession.chunkReceiverOutstream;
+    }
+    if (!(receiver instanceof ResumableReceiver)) {
+      return receiver.receiveUpload(uploadSession.filename,
+          uploadSession.mimeType);
+    }
+
+    ResumableReceiver resumableReceiver = (ResumableReceiver) receiver;
+    try {
+      if (uploadSession.receiverTarget == null) {
+        uploadSession.receiverTarget = resumableReceiver.createTarget(
+            uploadSession.filename, uploadSession.mimeType);
+      }
+      return resumableReceiver.openTarget(uploadSession.receiverTarget,
+          uploadSession.bytesRead);
+    }
+    catch (IOException ex) {
+      log.warn("Unable to open receiver target {}.",
+          uploadSession.receiverTarget, ex);
+      return null;
     }
   }
 
   /**
-   * Go into upload state. Due to buffering of RPC calls by Vaadin, it is
-   * possible that the upload could be started by the data stream or the RPC
-   * call. It is safe to call this method multiple times and additional calls
-   * will simply be ignored.
+   * Closes the receiver stream of the current upload session after all the
+   * data has been successfully received. A {@link ChunkReceiver} is told
+   * that the upload succeeded so it can finalize the target.
    *
-   * Warning: this is an internal method used by the framework and should not be
-   * used by user of the Upload component. Using it results in the Upload
-   * component going in wrong state and not working. It is currently public
-   * because it is used by another class.
+   * @return the exception thrown while closing the stream or null if the
+   * stream was closed successfully
    */
-  private void startUpload() {
-    if (uploadSession == null) {
-      uploadSession = new UploadSession();
+  private IOException finishReceiver() {
+    if (uploadSession.receiverOutstream == null) {
+      return null;
+    }
+
+    if (uploadSession.chunkReceiverOutstream != null) {
+      uploadSession.chunkReceiverOutstream.setSucceeded(true);
     }
 
-    getState().submitUpload = false;
+    try {
+      uploadSession.receiverOutstream.close();
+      return null;
+    }
+    catch (IOException ex) {
+      log.warn("Failed to finish receiver of file {}.", uploadSession.filename,
+          ex);
+      return ex;
+    }
+    finally {
+      uploadSession.receiverOutstream = null;
+    }
   }
 
   /**
@@ -521,6 +1584,70 @@ public class Plupload extends AbstractJavaScriptComponent {
     return true;
   }
 
+  /**
+   * Processes the lifecycle events piggybacked on the chunk request currently
+   * being processed, if any. Events that were already delivered via RPC are
+   * ignored.
+   */
+  private void processChunkEvents() {
+    String clientId = ChunkRequests.getHeader(ChunkRequests.CLIENT_ID_HEADER);
+    String value = ChunkRequests.getHeader(ChunkRequests.EVENTS_HEADER);
+    if (clientId == null || value == null) {
+      return;
+    }
+
+    try {
+      @SuppressWarnings("unchecked")
+      List<PluploadEvent> events = (List<PluploadEvent>) JsonCodec.
+          decodeInternalOrCustomType(EVENT_LIST_TYPE, new JSONArray(URLDecoder.
+                  decode(value, "UTF-8")), getUI().getConnectorTracker());
+      rpc.onBatch(clientId, events);
+    }
+    catch (JSONException | UnsupportedEncodingException ex) {
+      log.warn("Ignoring malformed events on chunk request.", ex);
+    }
+  }
+
+  /**
+   * Returns the zero based index of the chunk containing the given offset
+   * using the configured chunk size.
+   *
+   * @param offset the offset in the file
+   *
+   * @return the chunk index
+   */
+  private long getChunkIndex(long offset) {
+    int chunkSize = getState(false).chunkSize;
+    return chunkSize > 0 ? offset / chunkSize : 0;
+  }
+
+  /**
+   * Reports a span that ended now to the tracer. Failures of the tracer are
+   * logged and ignored so tracing never affects the upload.
+   *
+   * @param session the upload session the span belongs to
+   * @param type the type of the span
+   * @param chunkIndex the zero based index of the chunk or -1
+   * @param bytes the number of bytes covered by the span
+   * @param startNanos the start of the span from {@link System#nanoTime()}
+   * @param failure the failure that ended the span or null
+   */
+  private void traceSpan(UploadSession session, UploadTracer.SpanType type,
+      long chunkIndex, long bytes, long startNanos, Throwable failure) {
+    if (session.span == null) {
+      session.span = new UploadTracer.Span();
+    }
+    session.span.set(type, session.fileId, session.filename, chunkIndex,
+        bytes, runtime, System.nanoTime() - startNanos, failure);
+
+    try {
+      tracer.spanEnded(session.span);
+    }
+    catch (RuntimeException ex) {
+      log.warn("Upload tracer failed to handle span {}.", type, ex);
+    }
+  }
+
   /**
    * Go into state where new uploading can begin.
    *
@@ -530,14 +1657,27 @@ public class Plupload extends AbstractJavaScriptComponent {
   private void endUpload() {
     // Cleanup the receiver stream.
     if (uploadSession != null) {
+      if (uploadSession.writer != null) {
+        uploadSession.writer.releaseBuffer();
+      }
       if (uploadSession.receiverOutstream != null) {
         tryClose(uploadSession.receiverOutstream);
       }
+      if (uploadSession.fileId != null) {
+        sessionStore.remove(uploadSession.fileId);
+        endedFileId = uploadSession.fileId;
+      }
+      if (uploadSession.journaled && journal != null) {
+        journal.ended(uploadSession.fileId);
+      }
 
       uploadSession = null;
     }
+    cancelReaper();
 
-    getState().interruptUpload = false;
+    if (getState(false).interruptUpload) {
+      getState().interruptUpload = false;
+    }
   }
 
   /**
@@ -555,8 +1695,14 @@ public class Plupload extends AbstractJavaScriptComponent {
    * next one.
    *
    * @param runtimes the list of runtimes
+   *
+   * @throws IllegalArgumentException if no runtimes are given
    */
   public void setRuntimes(Runtime... runtimes) {
+    if (runtimes.length == 0) {
+      throw new IllegalArgumentException("At least one runtime is required.");
+    }
+
     String value = "";
 
     for (Runtime r : runtimes) {
@@ -567,6 +1713,61 @@ public class Plupload extends AbstractJavaScriptComponent {
     }
 
     getState().runtimes = value;
+
+    updateResources();
+  }
+
+  /**
+   * Updates the resources referenced by the client. Only the runtime binaries
+   * that could be used by the configured runtimes are referenced. If the
+   * {@link PluploadResourceHandler} is installed in the session, the
+   * resources are served by the handler at versioned URLs. The state is only
+   * marked dirty if a resource changed so reattaching the component doesn't
+   * resend the resources.
+   */
+  private void updateResources() {
+    List<Runtime> runtimes = Arrays.asList(getRuntimes());
+
+    updateResource("pluploadScript", getAssetResource(PLUPLOAD_SCRIPT_PATH));
+    updateResource("flashSwfUrl", runtimes.contains(Runtime.FLASH) ?
+        getAssetResource(FLASH_SWF_PATH) : null);
+    updateResource("silverlightSwfUrl", runtimes.contains(Runtime.SILVERLIGHT)
+        ? getAssetResource(SILVERLIGHT_XAP_PATH) : null);
+  }
+
+  /**
+   * Sets the resource with the given key if it isn't already set.
+   *
+   * @param key the key of the resource
+   * @param resource the resource or null to remove it
+   */
+  private void updateResource(String key, Resource resource) {
+    if (getResource(key) != resource) {
+      setResource(key, resource);
+    }
+  }
+
+  /**
+   * Returns the resource for the asset at the given path. The resources are
+   * cached so the same instance is returned while the way the asset is
+   * served doesn't change.
+   *
+   * @param path the path of the asset relative to this class
+   *
+   * @return the resource used to reference the asset
+   */
+  private Resource getAssetResource(String path) {
+    boolean handled = isAttached() && PluploadResourceHandler.isInstalled(
+        getSession());
+    String key = (handled ? "handler:" : "class:") + path;
+
+    Resource resource = assetResources.get(key);
+    if (resource == null) {
+      resource = handled ? new ExternalResource(PluploadResourceHandler.
+          getAssetUrl(path)) : new ClassResource(Plupload.class, path);
+      assetResources.put(key, resource);
+    }
+    return resource;
   }
 
   /**
@@ -576,17 +1777,19 @@ public class Plupload extends AbstractJavaScriptComponent {
    */
   public Runtime[] getRuntimes() {
     String[] runtimes = new String[0];
-    if (getState().runtimes != null) {
-      runtimes = getState().runtimes.split(",");
+    String value = getState(false).runtimes;
+    if (value != null) {
+      runtimes = value.split(",");
     }
 
-    int i = 0;
-    Runtime[] values = new Runtime[runtimes.length];
+    List<Runtime> values = new ArrayList<>(runtimes.length);
     for (String r : runtimes) {
-      values[i++] = Runtime.valueOf(r.toUpperCase());
+      if (!r.isEmpty()) {
+        values.add(Runtime.valueOf(r.toUpperCase()));
+      }
     }
 
-    return values;
+    return values.toArray(new Runtime[values.size()]);
   }
 
   @Override
@@ -594,6 +1797,11 @@ public class Plupload extends AbstractJavaScriptComponent {
     return (PluploadState) super.getState();
   }
 
+  @Override
+  protected PluploadState getState(boolean markAsDirty) {
+    return (PluploadState) super.getState(markAsDirty);
+  }
+
   /**
    * The event fired when an upload completes, both success or failure.
    */
@@ -893,6 +2101,10 @@ public class Plupload extends AbstractJavaScriptComponent {
     @Override
     public void onError(PluploadError error) {
 
+      if (uploadSession == null && error.getFile() != null) {
+        uploadSession = restoreUploadSession(error.getFile().getId());
+      }
+
       FailedEvent evt = null;
       if (uploadSession != null) {
         evt = new FailedEvent(Plupload.this, uploadSession.filename,
@@ -900,9 +2112,16 @@ public class Plupload extends AbstractJavaScriptComponent {
             new RuntimeException(error.getMessage()));
       }
 
-      log.info("Error on upload. Code: {} Message: {}", error.getCode(),
+      log.debug("Error on upload. Code: {} Message: {}", error.getCode(),
           error.getMessage());
 
+      if (uploadSession != null) {
+        traceSpan(uploadSession, UploadTracer.SpanType.UPLOAD, -1,
+            uploadSession.bytesRead, uploadSession.startNanos, evt.getReason());
+      }
+
+      abortProcessors(evt == null ? null : evt.getReason());
+
       if (ErrorCode.FILE_SIZE_ERROR.getCode().equals(error.getCode())) {
         fireFileSizeExceeded(
             new FileSizeExceededEvent(Plupload.this, error.getFile().getName(),
@@ -920,43 +2139,165 @@ public class Plupload extends AbstractJavaScriptComponent {
       // no op. Might remove in the future.
     }
 
+    @Override
+    public void onBatch(String clientId, List<PluploadEvent> events) {
+      // The events of a batch without a client ID can't be deduplicated.
+      if (clientId == null || events == null) {
+        log.warn("Ignoring malformed event batch from client {}.", clientId);
+        return;
+      }
+
+      // Sequence numbers are scoped to the client connector instance which
+      // changes if the page is reloaded.
+      if (!clientId.equals(eventClientId)) {
+        eventClientId = clientId;
+        lastEventSeq = 0;
+      }
+
+      for (PluploadEvent event : events) {
+        // The same event may be delivered both on a chunk request and via
+        // RPC so only process it once.
+        if (event.getSeq() <= lastEventSeq) {
+          continue;
+        }
+        lastEventSeq = event.getSeq();
+
+        switch (event.getType()) {
+          case PluploadEvent.UPLOAD_FILE:
+            onUploadFile(event.getFile());
+            break;
+
+          case PluploadEvent.ERROR:
+            onError(event.getError());
+            break;
+
+          case PluploadEvent.FILE_UPLOADED:
+            onFileUploaded(event.getFile());
+            break;
+
+          case PluploadEvent.INIT:
+            onInit(event.getRuntime());
+            break;
+
+          case PluploadEvent.PROGRESS:
+            onProgress(event.getPercent());
+            break;
+
+          case PluploadEvent.CHUNK:
+            onChunk(event);
+            break;
+
+          default:
+            log.warn("Ignoring unknown event type {}.", event.getType());
+            break;
+        }
+      }
+    }
+
     @Override
     public void onUploadFile(PluploadFile file) {
+      long start = System.nanoTime();
 
-      startUpload();
+      startUpload(file.getId());
 
       if (file.getSize() != -1) {
         uploadSession.contentLength = file.getSize();
       }
       uploadSession.filename = file.getName();
 
-      log.info("Started upload of file {} with length {}.",
-          uploadSession.filename, uploadSession.contentLength);
+      saveUploadSession();
 
+      UploadSession session = uploadSession;
       fireStarted(uploadSession.filename, null);
+
+      traceSpan(session, UploadTracer.SpanType.UPLOAD_START, -1,
+          session.bytesRead, start, null);
     }
 
     @Override
     public void onFileUploaded(PluploadFile file) {
+      long start = System.nanoTime();
+
+      if (uploadSession == null) {
+        uploadSession = restoreUploadSession(file.getId());
+      }
+      if (uploadSession == null) {
+        log.warn("Upload of file {} completed but no upload session exists.",
+            file.getName());
+        return;
+      }
 
       boolean interrupted = uploadSession.interrupted;
+      Exception interruptReason = uploadSession.interruptReason;
+
+      // Processing or receiver failures turn the upload into a failure
+      // because the content can't be fully used.
+      IOException failure = null;
+      if (interrupted) {
+        abortProcessors(null);
+      }
+      else {
+        failure = finishProcessors();
+      }
+      if (!interrupted && failure == null) {
+        failure = finishReceiver();
+      }
 
       // Use bytesRead rather than the given contentLength because it is
       // unreliable. For example, HTML4 on IE8 will always send null/-1.
       SucceededEvent evt = new SucceededEvent(Plupload.this,
           uploadSession.filename, uploadSession.mimeType,
           uploadSession.bytesRead);
+      FailedEvent failedEvt = new FailedEvent(Plupload.this,
+          uploadSession.filename, uploadSession.mimeType,
+          uploadSession.bytesRead, interrupted ? interruptReason : failure);
 
+      UploadSession session = uploadSession;
       endUpload();
 
       // Ignore if the upload was interrupted because the content can't
-      // be trusted.
-      if (!interrupted) {
-        log.info("Completed upload of file {} with length {}.", file.getName(),
-            file.getSize());
-
+      // be trusted. A processor may interrupt the upload with a reason
+      // after all the data was received so no chunk reported it.
+      if (interrupted && interruptReason != null) {
+        fireUploadInterrupted(failedEvt);
+      }
+      else if (!interrupted && failure != null) {
+        fireUploadInterrupted(failedEvt);
+      }
+      else if (!interrupted) {
         fireUploadSuccess(evt);
       }
+
+      Exception reason = failedEvt.getReason() != null ? failedEvt.
+          getReason() : interrupted ? new FileUploadHandler.
+          UploadInterruptedException() : null;
+      traceSpan(session, UploadTracer.SpanType.UPLOAD_FINISH, -1,
+          session.bytesRead, start, reason);
+      traceSpan(session, UploadTracer.SpanType.UPLOAD, -1, session.bytesRead,
+          session.startNanos, reason);
+    }
+
+    /**
+     * Records the client side timing of a chunk in the telemetry.
+     *
+     * @param event the chunk event
+     */
+    private void onChunk(PluploadEvent event) {
+      Runtime chunkRuntime = runtime;
+      if (event.getRuntime() != null) {
+        try {
+          chunkRuntime = Runtime.valueOf(event.getRuntime().toUpperCase());
+        }
+        catch (IllegalArgumentException ex) {
+          log.debug("Ignoring chunk event with unknown runtime {}.", event.
+              getRuntime());
+          return;
+        }
+      }
+
+      getChunkTelemetry().record(chunkRuntime, event.getChunkSize(), event.
+          getBytes(), event.getDuration(), event.getRetries(), event.
+          getStatus());
     }
 
     @Override
@@ -980,8 +2321,6 @@ public class Plupload extends AbstractJavaScriptComponent {
   private class StreamVariableImpl implements
       com.vaadin.server.StreamVariable {
 
-    private long chunkContentLength;
-
     @Override
     public boolean listenProgress() {
       return (progressListeners != null && !progressListeners
@@ -1001,48 +2340,78 @@ public class Plupload extends AbstractJavaScriptComponent {
 
     @Override
     public OutputStream getOutputStream() {
-      if (uploadSession.receiverOutstream == null) {
-        uploadSession.receiverOutstream = receiver.receiveUpload(
-            uploadSession.filename, uploadSession.mimeType);
+      if (uploadSession.writer == null) {
+        OutputStream outstream = openReceiverStream();
+        if (outstream == null) {
+          return null;
+        }
+
+        // A chunk receiver can be truncated to rewrite a retried chunk so it
+        // is also given to the writer directly.
+        uploadSession.receiverOutstream = startProcessors(outstream);
+        uploadSession.writer = new ChunkWriter(uploadSession.receiverOutstream,
+            uploadSession.chunkReceiverOutstream, uploadSession.bytesRead,
+            getPriorityGate());
+      }
+      ChunkWriter writer = uploadSession.writer;
+      writer.setPriority(priority);
+
+      // If retries are configured we buffer the incoming chunk so a corrupt
+      // chunk can be thrown away. Chunks larger than the heap capacity spill
+      // to the other tiers of the arena. Retries of a partially received chunk are
+      // deduplicated by offset so they are safe without the buffer.
+      boolean retryEnabled = getState(false).maxRetries > 0 && maxRetryBufferSize > 0;
+
+      if (retryEnabled && writer.getTransactionalOutputStream() == null) {
+        log.debug("Constructing new retry buffer with heap capacity {}.",
+            maxRetryBufferSize);
+        writer.setTransactionalOutputStream(newTransactionalOutputStream());
       }
 
-      // If retries are configured we need to write all incoming input into a
-      // buffer so we can throw it away in the event of a failure.
-      boolean retryEnabled = getState().maxRetries > 0 && maxRetryBufferSize > 0;
-
-      if (retryEnabled && uploadSession.txOutstream == null) {
-        if (chunkContentLength <= maxRetryBufferSize) {
-          log.info("Constructing new retry buffer with capacity {}.",
-              maxRetryBufferSize);
-          uploadSession.txOutstream = new TransactionalOutputStream(
-              maxRetryBufferSize,
-              uploadSession.receiverOutstream);
-        }
-        else {
-          log.warn("Retries are enabled but the content length {} is larger "
-              + "than the maximum data buffer of {}. Duplicate data may be "
-              + "written to the receiver in the event of a partial upload and "
-              + "retry. Configure chunking to avoid this warning.",
-              uploadSession.contentLength, maxRetryBufferSize);
+      // A chunk receiver writes each chunk at its offset so a failed attempt
+      // can be overwritten rather than skipped.
+      long offset = getChunkOffset();
+      synchronized (writer) {
+        writer.beginWrite(offset, uploadSession.chunkReceiverOutstream != null
+            && offset >= uploadSession.bytesRead);
+
+        // Tell a chunk receiver where the data of this chunk belongs.
+        if (uploadSession.chunkReceiverOutstream != null) {
+          beginReceiverChunk(writer.getCommittedOffset());
         }
       }
-      else if (uploadSession.txOutstream != null) {
-        // Make sure the existing tx stream is reset before reusing it.
-        uploadSession.txOutstream.rollback();
+
+      // Reuse an idle chunk stream of the session so a steady state chunked
+      // upload doesn't allocate per chunk. A second stream is only needed
+      // when requests for the same file overlap.
+      ChunkOutputStream chunkOutstream = uploadSession.idleChunkOutstream;
+      if (chunkOutstream == null) {
+        chunkOutstream = new ChunkOutputStream();
       }
+      uploadSession.idleChunkOutstream = null;
+
+      chunkOutstream.reset(writer, offset, getExpectedChunkChecksum(offset));
+      ChunkRequests.setAttribute(CHUNK_OUTSTREAM_ATTRIBUTE, chunkOutstream);
 
-      // We don't want to permit closing of the output stream because
-      // we may have a chunked upload that we need to write to the
-      // same output stream.
-      OutputStream outstream = uploadSession.txOutstream != null ?
-          uploadSession.txOutstream : uploadSession.receiverOutstream;
-      return new UncloseableOutputStream(outstream);
+      traceSpan(uploadSession, UploadTracer.SpanType.CHUNK_START,
+          getChunkIndex(offset), 0, uploadSession.chunkStartNanos, null);
+      chunkOutstream.setStartTime(System.nanoTime());
+      return chunkOutstream;
     }
 
     @Override
     public void streamingStarted(StreamVariable.StreamingStartEvent event) {
+      long start = System.nanoTime();
 
-      startUpload();
+      // Process any lifecycle events sent with the chunk so the upload
+      // session is known before the data arrives.
+      processChunkEvents();
+
+      startUpload(ChunkRequests.getHeader(ChunkRequests.FILE_ID_HEADER));
+      resumeUploadSession(ChunkRequests.getHeader(
+          ChunkRequests.RESUME_TOKEN_HEADER));
+      uploadSession.streaming = true;
+      uploadSession.chunkStartNanos = start;
 
       if (uploadSession.mimeType == null) {
         uploadSession.mimeType = event.getMimeType();
@@ -1060,33 +2429,288 @@ public class Plupload extends AbstractJavaScriptComponent {
         // a single blob.
         uploadSession.contentLength = event.getContentLength();
       }
-
-      chunkContentLength = event.getContentLength();
     }
 
     @Override
     public void streamingFinished(StreamVariable.StreamingEndEvent event) {
-      // Flush the retry stream if we are supporting retries.
-      if (uploadSession.txOutstream != null) {
+      long start = System.nanoTime();
+      uploadSession.streaming = false;
+      uploadSession.lastActivity = System.currentTimeMillis();
+
+      ChunkWriter writer = uploadSession.writer;
+      ChunkOutputStream chunkOutstream = releaseChunkOutputStream();
+      if (chunkOutstream == null) {
+        return;
+      }
+      if (writer == null || chunkOutstream.getWriter() != writer) {
+        // A late request of an upload that already ended must not end the
+        // chunk of the current upload.
+        chunkOutstream.releaseCommit();
+        return;
+      }
+
+      long chunkIndex = getChunkIndex(chunkOutstream.getOffset());
+      traceSpan(uploadSession, UploadTracer.SpanType.CHUNK_TRANSFER,
+          chunkIndex, chunkOutstream.getBytesReceived(), chunkOutstream.
+          getStartTime(), null);
+
+      RuntimeException failure = null;
+      try {
+        finishChunk(writer, chunkOutstream, chunkIndex);
+      }
+      catch (RuntimeException ex) {
+        failure = ex;
+        throw ex;
+      }
+      finally {
+        chunkOutstream.releaseCommit();
+        traceSpan(uploadSession, UploadTracer.SpanType.CHUNK_FINISH,
+            chunkIndex, chunkOutstream.getBytesReceived(), start, failure);
+      }
+
+      fireUpdateProgress(uploadSession.bytesRead, uploadSession.contentLength);
+    }
+
+    /**
+     * Verifies and commits the chunk received by the current request and
+     * records it in the session store and journal.
+     *
+     * @param writer the writer of the upload session
+     * @param chunkOutstream the chunk stream of the current request
+     * @param chunkIndex the zero based index of the chunk
+     *
+     * @throws RuntimeException if the chunk is corrupt or cannot be committed
+     */
+    private void finishChunk(ChunkWriter writer,
+        ChunkOutputStream chunkOutstream, long chunkIndex) {
+
+      synchronized (writer) {
+        int writers = writer.endWrite();
+
+        verifyChunk(writer, chunkOutstream);
+
+        // Flush the retry stream if we are supporting retries. The gate
+        // permit was acquired when the chunk stream was closed so the commit
+        // never waits for the gate while holding the session lock.
+        long previousOffset = writer.getCommittedOffset();
+        long commitStart = System.nanoTime();
+        long committedOffset;
         try {
-          uploadSession.txOutstream.commit();
+          committedOffset = writer.commit(chunkOutstream.isCommitAdmitted());
         }
         catch (IOException ex) {
           throw new RuntimeException("Failed to commit stream data for chunk.",
               ex);
         }
+        if (writer.getTransactionalOutputStream() != null) {
+          traceSpan(uploadSession, UploadTracer.SpanType.COMMIT, chunkIndex,
+              committedOffset - previousOffset, commitStart, null);
+        }
+
+        // Leave the chunk open if another request is still writing it.
+        if (uploadSession.chunkReceiverOutstream != null && writers == 0) {
+          try {
+            uploadSession.chunkReceiverOutstream.endChunk();
+          }
+          catch (IOException ex) {
+            throw new RuntimeException("Failed to end chunk in receiver.", ex);
+          }
+        }
+
+        // Update the total bytes read using the committed offset rather than
+        // the bytes received because a retried chunk may have been partially
+        // received already.
+        if (committedOffset > uploadSession.bytesRead) {
+          journalChunk(committedOffset - uploadSession.bytesRead);
+          uploadSession.bytesRead = committedOffset;
+        }
       }
+      saveUploadSession();
+    }
 
-      // Update the total bytes read. This is needed because this stream
-      // may only be one of many chunks.
-      uploadSession.bytesRead += event.getBytesReceived();
-      fireUpdateProgress(uploadSession.bytesRead, uploadSession.contentLength);
+    /**
+     * Constructs the retry buffer of the current upload session. The blocks
+     * leased when the component was pre-warmed are used by the first upload
+     * if they came from the current arena. The buffer is compressed if
+     * configured.
+     *
+     * @return the new retry buffer
+     */
+    private TransactionalOutputStream newTransactionalOutputStream() {
+      RetryBufferArena arena = getRetryBufferArena();
+      TransactionalOutputStream txOutstream;
+      if (prewarmedBlocks != null && prewarmedArena == arena) {
+        txOutstream = new TransactionalOutputStream(arena, maxRetryBufferSize,
+            uploadSession.receiverOutstream, prewarmedBlocks);
+        prewarmedBlocks = null;
+        prewarmedArena = null;
+      }
+      else {
+        releasePrewarmedBlocks();
+        txOutstream = new TransactionalOutputStream(arena, maxRetryBufferSize,
+            uploadSession.receiverOutstream);
+      }
+
+      txOutstream.setCompressed(retryBufferCompressed);
+      return txOutstream;
+    }
+
+    /**
+     * Returns the chunk stream of the current request to the upload session so
+     * it can be reused by the next chunk.
+     *
+     * @return the chunk stream of the current request or null if the request
+     * never received one
+     */
+    private ChunkOutputStream releaseChunkOutputStream() {
+      ChunkOutputStream chunkOutstream = (ChunkOutputStream) ChunkRequests.
+          getAttribute(CHUNK_OUTSTREAM_ATTRIBUTE);
+      if (chunkOutstream != null) {
+        ChunkRequests.setAttribute(CHUNK_OUTSTREAM_ATTRIBUTE, null);
+        uploadSession.idleChunkOutstream = chunkOutstream;
+      }
+      return chunkOutstream;
+    }
+
+    /**
+     * Returns the offset in the file of the chunk being received. The offset
+     * is sent by the client with each chunk. If it is missing, the chunk is
+     * assumed to start at the current offset of the upload.
+     *
+     * @return the offset of the chunk
+     */
+    private long getChunkOffset() {
+      String value = ChunkRequests.getHeader(ChunkRequests.CHUNK_OFFSET_HEADER);
+      if (value != null) {
+        try {
+          return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex) {
+          log.warn("Ignoring malformed chunk offset {}.", value);
+        }
+      }
+      return uploadSession.bytesRead;
+    }
+
+    /**
+     * Begins a new chunk in the chunk receiver at the given offset. The chunk
+     * index is derived from the offset and the configured chunk size.
+     *
+     * @param offset the offset in the file of the next byte committed to the
+     * receiver
+     */
+    private void beginReceiverChunk(long offset) {
+      ChunkReceiver.Chunk chunk = new ChunkReceiver.Chunk(uploadSession.fileId,
+          uploadSession.filename, uploadSession.mimeType,
+          uploadSession.contentLength, getChunkIndex(offset), offset);
+
+      try {
+        uploadSession.chunkReceiverOutstream.beginChunk(chunk);
+      }
+      catch (IOException ex) {
+        throw new RuntimeException("Failed to end previous chunk in receiver.",
+            ex);
+      }
+    }
+
+    /**
+     * Returns the checksum of the current chunk sent by the client. The
+     * checksum is only used if it was calculated for the chunk starting at
+     * the given offset.
+     *
+     * @param chunkOffset the offset in the file of the chunk being received
+     *
+     * @return the expected CRC32 checksum of the chunk or -1 if the chunk
+     * can't be verified
+     */
+    private long getExpectedChunkChecksum(long chunkOffset) {
+      // The header is in the format <offset>:<crc32 in hex>.
+      String value = ChunkRequests.getHeader(
+          ChunkRequests.CHUNK_CHECKSUM_HEADER);
+      int index = value == null ? -1 : value.indexOf(':');
+      if (index == -1) {
+        return -1;
+      }
+
+      try {
+        long offset = Long.parseLong(value.substring(0, index));
+        return offset == chunkOffset ? Long.parseLong(value.
+            substring(index + 1), 16) : -1;
+      }
+      catch (NumberFormatException ex) {
+        log.warn("Ignoring malformed chunk checksum {}.", value);
+        return -1;
+      }
+    }
+
+    /**
+     * Verifies the checksum of the received chunk against the checksum sent
+     * by the client, if any. If the chunk is corrupt and a retry buffer is in
+     * use, the uncommitted data is discarded so the client can retry it.
+     * Otherwise the data has already been written to the receiver and the
+     * upload is interrupted.
+     *
+     * @param writer the writer of the upload session
+     * @param chunkOutstream the chunk stream of the current request
+     *
+     * @throws RuntimeException if the chunk is corrupt
+     */
+    private void verifyChunk(ChunkWriter writer,
+        ChunkOutputStream chunkOutstream) {
+      if (chunkOutstream.isVerified()) {
+        return;
+      }
+
+      log.warn("Checksum mismatch for chunk at offset {} of file {}. "
+          + "Expected {} but received {}.", chunkOutstream.getOffset(),
+          uploadSession.filename, Long.toHexString(
+              chunkOutstream.getExpectedChecksum()), Long.toHexString(
+              chunkOutstream.getChecksum()));
+
+      if (!writer.rollback()) {
+        uploadSession.interrupted = true;
+      }
+
+      throw new RuntimeException("Checksum mismatch for chunk at offset "
+          + chunkOutstream.getOffset() + ".");
     }
 
     @Override
     public void streamingFailed(StreamVariable.StreamingErrorEvent event) {
       Exception exception = event.getException();
 
+      if (uploadSession != null) {
+        uploadSession.streaming = false;
+        uploadSession.lastActivity = System.currentTimeMillis();
+
+        ChunkOutputStream chunkOutstream = releaseChunkOutputStream();
+        if (chunkOutstream != null) {
+          chunkOutstream.releaseCommit();
+          traceSpan(uploadSession, UploadTracer.SpanType.CHUNK_TRANSFER,
+              getChunkIndex(chunkOutstream.getOffset()), chunkOutstream.
+              getBytesReceived(), chunkOutstream.getStartTime(), exception);
+        }
+
+        // A late request of an upload that already ended must not end the
+        // chunk of the current upload.
+        ChunkWriter writer = uploadSession.writer;
+        if (writer != null && chunkOutstream != null && chunkOutstream.
+            getWriter() == writer) {
+          synchronized (writer) {
+            // Leave the chunk open if another request is still writing it.
+            if (writer.endWrite() == 0
+                && uploadSession.chunkReceiverOutstream != null) {
+              try {
+                uploadSession.chunkReceiverOutstream.endChunk();
+              }
+              catch (IOException ex) {
+                log.warn("Failed to end chunk in receiver.", ex);
+              }
+            }
+          }
+        }
+      }
+
       if (exception instanceof NoInputStreamException) {
         fireNoInputStream(uploadSession.filename,
             uploadSession.mimeType, uploadSession.contentLength);
@@ -1096,13 +2720,14 @@ public class Plupload extends AbstractJavaScriptComponent {
             uploadSession.mimeType, uploadSession.contentLength);
       }
       else if (exception instanceof FileUploadHandler.UploadInterruptedException) {
-        if (!getState().interruptUpload) {
+        if (!getState(false).interruptUpload) {
           // Tell the uploader to stop sending chunks.
           getState().interruptUpload = true;
 
           fireUploadInterrupted(new FailedEvent(Plupload.this,
               uploadSession.filename, uploadSession.mimeType,
-              uploadSession.contentLength, exception));
+              uploadSession.contentLength, uploadSession.interruptReason
+              != null ? uploadSession.interruptReason : exception));
         }
       }
 
@@ -1116,13 +2741,75 @@ public class Plupload extends AbstractJavaScriptComponent {
    */
   private static class UploadSession {
 
-    TransactionalOutputStream txOutstream;
+    String fileId;
+    String receiverTarget;
+    String resumeToken;
+    long startNanos;
+    long chunkStartNanos;
+    UploadTracer.Span span;
+    long lastActivity;
+    volatile boolean streaming;
+    boolean journaled;
+    ChunkWriter writer;
+    ChunkOutputStream idleChunkOutstream;
+    ChunkReceiverOutputStream chunkReceiverOutstream;
+    UploadSessionRecord record;
     OutputStream receiverOutstream;
     long contentLength;
     String filename;
     String mimeType;
     long bytesRead;
-    boolean interrupted;
+    volatile boolean interrupted;
+    volatile Exception interruptReason;
+    List<UploadProcessor> processors;
+  }
+
+  /**
+   * The processor context for a single upload session.
+   */
+  private static class ProcessorContext implements UploadProcessor.Context {
+
+    private final UploadSession session;
+
+    /**
+     * Constructs the context.
+     *
+     * @param session the upload session being processed
+     */
+    ProcessorContext(UploadSession session) {
+      this.session = session;
+    }
+
+    @Override
+    public String getFileId() {
+      return session.fileId;
+    }
+
+    @Override
+    public String getFilename() {
+      return session.filename;
+    }
+
+    @Override
+    public String getMimeType() {
+      return session.mimeType;
+    }
+
+    @Override
+    public long getContentLength() {
+      return session.contentLength;
+    }
+
+    @Override
+    public void interrupt() {
+      session.interrupted = true;
+    }
+
+    @Override
+    public void interrupt(Exception reason) {
+      session.interruptReason = reason;
+      session.interrupted = true;
+    }
   }
 
   /**
@@ -1164,4 +2851,15 @@ public class Plupload extends AbstractJavaScriptComponent {
     HTML5
   }
 
+  /**
+   * The priority of the uploads of a component when writing to the receiver
+   * under contention, from highest to lowest.
+   */
+  public enum Priority {
+
+    HIGH,
+    NORMAL,
+    LOW
+  }
+
 }
@@ -0,0 +1,314 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.Streams.tryClose;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.vaadin.server.*;
+import com.vaadin.shared.ApplicationConstants;
+import com.vaadin.util.FileTypeResolver;
+
+/**
+ * <p>
+ * A request handler that serves the static Plupload assets (script, runtime
+ * binaries, i18n files, and CSS) at content-hashed URLs so they can be cached
+ * indefinitely by the browser and any intermediate caches. Responses include
+ * an immutable <code>Cache-Control</code> header and an <code>ETag</code>
+ * which is honored via <code>If-None-Match</code>.
+ * </p>
+ * <p>
+ * Compressed variants are served when accepted by the client. A precompressed
+ * <code>.br</code> or <code>.gz</code> resource next to the asset is used if
+ * available, otherwise text assets are gzipped once in memory when first
+ * requested.
+ * </p>
+ * <p>
+ * The handler is installed with {@link #install(com.vaadin.server.VaadinService)},
+ * usually from a servlet's <code>servletInitialized</code> method. When
+ * installed, {@link Plupload} components will reference their assets through
+ * the handler rather than the standard connector resource path.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class PluploadResourceHandler implements RequestHandler {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The path prefix of all assets served by the handler.
+   */
+  private static final String PATH_PREFIX = "plupload-static/";
+
+  /**
+   * The root of all assets served by the handler relative to the package of
+   * the {@link Plupload} class.
+   */
+  private static final String ASSET_ROOT = "plupload/";
+
+  /**
+   * The cache lifetime of a hashed asset in seconds.
+   */
+  private static final long MAX_AGE = 365L * 24 * 60 * 60;
+
+  /**
+   * The loaded assets mapped by path. Assets never change while the
+   * application is running so they are loaded once per class loader.
+   */
+  private static final Map<String, Asset> ASSETS = new ConcurrentHashMap<>();
+
+  /**
+   * Installs the handler in every new session of the given service.
+   *
+   * @param service the service to install the handler into
+   */
+  public static void install(VaadinService service) {
+    service.addSessionInitListener(new SessionInitListener() {
+      @Override
+      public void sessionInit(SessionInitEvent event) throws ServiceException {
+        event.getSession().addRequestHandler(new PluploadResourceHandler());
+      }
+    });
+  }
+
+  /**
+   * Returns true if the handler is installed in the given session.
+   *
+   * @param session the session to check
+   *
+   * @return true if the handler is installed
+   */
+  static boolean isInstalled(VaadinSession session) {
+    for (RequestHandler handler : session.getRequestHandlers()) {
+      if (handler instanceof PluploadResourceHandler) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the versioned, application relative URL of the given asset.
+   *
+   * @param path the path of the asset relative to the package of the
+   * {@link Plupload} class (e.g. plupload/Moxie.swf)
+   *
+   * @return the URL of the asset which contains a hash of the asset content
+   */
+  static String getAssetUrl(String path) {
+    Asset asset = getAsset(path);
+    if (asset == null) {
+      throw new IllegalArgumentException("Unknown asset " + path);
+    }
+
+    return ApplicationConstants.APP_PROTOCOL_PREFIX + PATH_PREFIX + asset.hash
+        + "/" + path;
+  }
+
+  @Override
+  public boolean handleRequest(VaadinSession session, VaadinRequest request,
+      VaadinResponse response) throws IOException {
+
+    String pathInfo = request.getPathInfo();
+    if (pathInfo == null || !pathInfo.startsWith("/" + PATH_PREFIX)) {
+      return false;
+    }
+
+    // The path is /plupload-static/<hash>/<asset path>.
+    String hashAndPath = pathInfo.substring(PATH_PREFIX.length() + 1);
+    int index = hashAndPath.indexOf('/');
+    Asset asset = index == -1 ? null : getAsset(hashAndPath.substring(index
+        + 1));
+    if (asset == null) {
+      response.sendError(404, "Asset not found.");
+      return true;
+    }
+
+    String etag = "\"" + asset.hash + "\"";
+    response.setHeader("ETag", etag);
+    response.setHeader("Vary", "Accept-Encoding");
+    if (asset.hash.equals(hashAndPath.substring(0, index))) {
+      response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE
+          + ", immutable");
+    }
+    else {
+      // An old URL from before a redeploy. Serve the current content but
+      // don't let it be cached under the old URL.
+      response.setHeader("Cache-Control", "no-cache");
+    }
+
+    if (etag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(304);
+      return true;
+    }
+
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    byte[] content = asset.content;
+    if (acceptEncoding != null && asset.brotli != null && acceptEncoding.
+        contains("br")) {
+      response.setHeader("Content-Encoding", "br");
+      content = asset.brotli;
+    }
+    else if (acceptEncoding != null && asset.gzip != null && acceptEncoding.
+        contains("gzip")) {
+      response.setHeader("Content-Encoding", "gzip");
+      content = asset.gzip;
+    }
+
+    response.setStatus(200);
+    response.setContentType(asset.mimeType);
+    response.setHeader("Content-Length", String.valueOf(content.length));
+
+    OutputStream outstream = response.getOutputStream();
+    outstream.write(content);
+    outstream.flush();
+
+    return true;
+  }
+
+  /**
+   * Returns the asset at the given path, loading it if required.
+   *
+   * @param path the path of the asset relative to the package of the
+   * {@link Plupload} class
+   *
+   * @return the asset or null if there is no such asset
+   */
+  private static Asset getAsset(String path) {
+    if (!path.startsWith(ASSET_ROOT) || path.contains("..")) {
+      return null;
+    }
+
+    Asset asset = ASSETS.get(path);
+    if (asset == null) {
+      try {
+        byte[] content = readResource(path);
+        if (content == null) {
+          return null;
+        }
+
+        asset = new Asset();
+        asset.content = content;
+        asset.hash = hash(content);
+        asset.mimeType = FileTypeResolver.getMIMEType(path);
+        asset.brotli = readResource(path + ".br");
+        asset.gzip = readResource(path + ".gz");
+        if (asset.gzip == null && isCompressible(asset.mimeType)) {
+          asset.gzip = gzip(content);
+        }
+
+        ASSETS.put(path, asset);
+      }
+      catch (IOException ex) {
+        throw new RuntimeException("Unable to load asset " + path, ex);
+      }
+    }
+
+    return asset;
+  }
+
+  /**
+   * Returns true if the content of the given mime-type is worth compressing.
+   *
+   * @param mimeType the mime-type of the content
+   *
+   * @return true if the content is text-like
+   */
+  private static boolean isCompressible(String mimeType) {
+    return mimeType.startsWith("text/") || mimeType.contains("javascript")
+        || mimeType.contains("css") || mimeType.contains("xml");
+  }
+
+  /**
+   * Reads the entire resource at the given path.
+   *
+   * @param path the path of the resource relative to the package of the
+   * {@link Plupload} class
+   *
+   * @return the resource content or null if there is no such resource
+   *
+   * @throws IOException if the resource cannot be read
+   */
+  private static byte[] readResource(String path) throws IOException {
+    InputStream instream = Plupload.class.getResourceAsStream(path);
+    if (instream == null) {
+      return null;
+    }
+
+    try {
+      ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+      byte[] buf = new byte[8 * 1024];
+      int len;
+      while ((len = instream.read(buf)) != -1) {
+        outstream.write(buf, 0, len);
+      }
+      return outstream.toByteArray();
+    }
+    finally {
+      tryClose(instream);
+    }
+  }
+
+  /**
+   * Compresses the given content using gzip.
+   *
+   * @param content the content to compress
+   *
+   * @return the compressed content
+   *
+   * @throws IOException if compression fails
+   */
+  private static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+    GZIPOutputStream gzipOutstream = new GZIPOutputStream(outstream) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    };
+    gzipOutstream.write(content);
+    gzipOutstream.close();
+    return outstream.toByteArray();
+  }
+
+  /**
+   * Returns a short, hex encoded hash of the given content.
+   *
+   * @param content the content to hash
+   *
+   * @return the hash
+   */
+  private static String hash(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 8; ++i) {
+        sb.append(String.format("%02x", digest[i]));
+      }
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * A loaded asset.
+   */
+  private static class Asset {
+
+    byte[] content;
+    byte[] gzip;
+    byte[] brotli;
+    String hash;
+    String mimeType;
+  }
+}
@@ -0,0 +1,163 @@
+package org.mpilone.vaadin;
+
+import java.io.OutputStream;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.server.AbstractJavaScriptExtension;
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.Extension;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.ui.UI;
+
+/**
+ * <p>
+ * A UI extension that provides a single upload URL for all the
+ * {@link Plupload} components in a UI that use a shared uploader. The client
+ * identifies the target component with a header on every chunk request and
+ * the router forwards all stream variable calls to the stream variable of
+ * that component.
+ * </p>
+ * <p>
+ * The router is created automatically when the first shared uploader
+ * component is attached and should not be used directly.
+ * </p>
+ *
+ * @author mpilone
+ */
+@JavaScript({"plupload_upload_router_connector.js"})
+public class PluploadUploadRouter extends AbstractJavaScriptExtension {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private final StreamVariable streamVariable = new RoutingStreamVariable();
+  private String url;
+
+  /**
+   * Returns the router for the given UI, creating it if required.
+   *
+   * @param ui the UI to get the router for
+   *
+   * @return the router of the UI
+   */
+  static PluploadUploadRouter get(UI ui) {
+    for (Extension extension : ui.getExtensions()) {
+      if (extension instanceof PluploadUploadRouter) {
+        return (PluploadUploadRouter) extension;
+      }
+    }
+
+    PluploadUploadRouter router = new PluploadUploadRouter();
+    router.extend(ui);
+    return router;
+  }
+
+  /**
+   * Returns the upload URL shared by all components in the UI.
+   *
+   * @return the shared upload URL
+   */
+  String getUploadUrl() {
+    if (url == null) {
+      // Get the URL for the stream variable which will also register
+      // it in the connector tracker.
+      url = getSession().getCommunicationManager().getStreamVariableTargetUrl(
+          this, "plupload", streamVariable);
+    }
+    return url;
+  }
+
+  @Override
+  public void detach() {
+    // Cleanup our stream variable.
+    getUI().getConnectorTracker().cleanStreamVariable(getConnectorId(),
+        "plupload");
+    url = null;
+
+    super.detach();
+  }
+
+  /**
+   * A stream variable that forwards all calls to the stream variable of the
+   * component identified in the current chunk request.
+   */
+  private class RoutingStreamVariable implements StreamVariable {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Returns the stream variable of the component identified in the current
+     * chunk request.
+     *
+     * @return the target stream variable or null if the component cannot be
+     * found
+     */
+    private StreamVariable getTarget() {
+      String connectorId = ChunkRequests.getHeader(
+          ChunkRequests.CONNECTOR_ID_HEADER);
+      if (connectorId == null || getUI() == null) {
+        return null;
+      }
+
+      ClientConnector connector = getUI().getConnectorTracker().getConnector(
+          connectorId);
+      return connector instanceof Plupload ? ((Plupload) connector).
+          getStreamVariable() : null;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      StreamVariable target = getTarget();
+      return target == null ? null : target.getOutputStream();
+    }
+
+    @Override
+    public boolean listenProgress() {
+      StreamVariable target = getTarget();
+      return target == null ? false : target.listenProgress();
+    }
+
+    @Override
+    public void onProgress(StreamingProgressEvent event) {
+      StreamVariable target = getTarget();
+      if (target != null) {
+        target.onProgress(event);
+      }
+    }
+
+    @Override
+    public void streamingStarted(StreamingStartEvent event) {
+      StreamVariable target = getTarget();
+      if (target != null) {
+        target.streamingStarted(event);
+      }
+    }
+
+    @Override
+    public void streamingFinished(StreamingEndEvent event) {
+      StreamVariable target = getTarget();
+      if (target != null) {
+        target.streamingFinished(event);
+      }
+    }
+
+    @Override
+    public void streamingFailed(StreamingErrorEvent event) {
+      StreamVariable target = getTarget();
+      if (target != null) {
+        target.streamingFailed(event);
+      }
+    }
+
+    @Override
+    public boolean isInterrupted() {
+      StreamVariable target = getTarget();
+      return target == null ? false : target.isInterrupted();
+    }
+  }
+}
@@ -0,0 +1,367 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A gate that limits the number of threads writing upload data to receivers
+ * at once and, when the limit is reached, admits waiting threads in order of
+ * the {@link Plupload.Priority} of their upload. Waiters of the same priority
+ * are admitted in arrival order. This keeps small, interactive uploads
+ * responsive when they share the server with bulk uploads: under contention a
+ * high priority upload is admitted before any normal or low priority upload
+ * that is waiting.
+ * </p>
+ * <p>
+ * Waiters age so a steady stream of high priority work can't starve low
+ * priority work: a waiter is treated as one priority level higher for each
+ * aging interval it has waited and waiters that reach the same level are
+ * admitted in arrival order. A thread that isn't admitted within the maximum
+ * wait gives up with an {@link IOException} so the chunk fails and the client
+ * retries it rather than holding the request (and any locks) indefinitely.
+ * Each admission covers a single write or commit so a long upload never
+ * holds a permit between chunks. When a permit is available and no thread is
+ * waiting, acquiring doesn't allocate.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class PriorityGate {
+
+  /**
+   * The default number of permits which is twice the number of processors.
+   */
+  public static final int DEFAULT_PERMITS = 2 * java.lang.Runtime.getRuntime().
+      availableProcessors();
+
+  /**
+   * The default time in milliseconds a waiter waits before it is treated as
+   * one priority level higher.
+   */
+  public static final long DEFAULT_AGING_INTERVAL = 1000;
+
+  /**
+   * The default maximum time in milliseconds a thread waits to be admitted.
+   */
+  public static final long DEFAULT_MAX_WAIT = 30000;
+
+  /**
+   * The gate shared by all components that don't configure their own.
+   */
+  private static final PriorityGate DEFAULT = new PriorityGate(
+      DEFAULT_PERMITS);
+
+  private final Object lock = new Object();
+  private final ArrayDeque<Waiter>[] waiters;
+  private int permits;
+  private int available;
+  private long agingInterval = DEFAULT_AGING_INTERVAL;
+  private long maxWait = DEFAULT_MAX_WAIT;
+
+  /**
+   * Constructs the gate.
+   *
+   * @param permits the maximum number of threads admitted at once
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public PriorityGate(int permits) {
+    if (permits <= 0) {
+      throw new IllegalArgumentException("Permits must be positive.");
+    }
+
+    this.permits = permits;
+    this.available = permits;
+    this.waiters = new ArrayDeque[Plupload.Priority.values().length];
+    for (int i = 0; i < waiters.length; ++i) {
+      waiters[i] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Returns the gate shared by all components that don't configure their
+   * own. Changing the permits of this gate changes them for the entire JVM.
+   *
+   * @return the default gate
+   */
+  public static PriorityGate getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Sets the maximum number of threads admitted at once. Lowering the permits
+   * takes effect as admitted threads leave.
+   *
+   * @param permits the maximum number of threads
+   */
+  public void setPermits(int permits) {
+    if (permits <= 0) {
+      throw new IllegalArgumentException("Permits must be positive.");
+    }
+
+    synchronized (lock) {
+      available += permits - this.permits;
+      this.permits = permits;
+      Waiter waiter;
+      while (available > 0 && (waiter = nextWaiter()) != null) {
+        available--;
+        waiter.grant();
+      }
+    }
+  }
+
+  /**
+   * Returns the maximum number of threads admitted at once.
+   *
+   * @return the maximum number of threads
+   */
+  public int getPermits() {
+    synchronized (lock) {
+      return permits;
+    }
+  }
+
+  /**
+   * Returns the number of threads waiting to be admitted.
+   *
+   * @return the number of waiting threads
+   */
+  public int getWaiting() {
+    synchronized (lock) {
+      int count = 0;
+      for (ArrayDeque<Waiter> queue : waiters) {
+        count += queue.size();
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Sets the time a waiter waits before it is treated as one priority level
+   * higher. A low priority waiter competes with newly arriving high priority
+   * waiters after two intervals.
+   *
+   * @param agingInterval the aging interval in milliseconds
+   */
+  public void setAgingInterval(long agingInterval) {
+    if (agingInterval <= 0) {
+      throw new IllegalArgumentException("Aging interval must be positive.");
+    }
+
+    synchronized (lock) {
+      this.agingInterval = agingInterval;
+    }
+  }
+
+  /**
+   * Returns the time a waiter waits before it is treated as one priority
+   * level higher.
+   *
+   * @return the aging interval in milliseconds
+   */
+  public long getAgingInterval() {
+    synchronized (lock) {
+      return agingInterval;
+    }
+  }
+
+  /**
+   * Sets the maximum time a thread waits to be admitted before the write or
+   * commit fails.
+   *
+   * @param maxWait the maximum wait in milliseconds
+   */
+  public void setMaxWait(long maxWait) {
+    if (maxWait <= 0) {
+      throw new IllegalArgumentException("Maximum wait must be positive.");
+    }
+
+    synchronized (lock) {
+      this.maxWait = maxWait;
+    }
+  }
+
+  /**
+   * Returns the maximum time a thread waits to be admitted before the write
+   * or commit fails.
+   *
+   * @return the maximum wait in milliseconds
+   */
+  public long getMaxWait() {
+    synchronized (lock) {
+      return maxWait;
+    }
+  }
+
+  /**
+   * Acquires a permit if one is available and no other thread is waiting.
+   *
+   * @param priority the priority of the work to be done
+   *
+   * @return true if the permit was acquired
+   */
+  boolean tryAcquire(Plupload.Priority priority) {
+    synchronized (lock) {
+      if (available > 0 && !hasWaiters()) {
+        available--;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Acquires a permit, waiting up to the maximum wait until the permit is
+   * granted if none is available or other threads are waiting.
+   *
+   * @param priority the priority of the work to be done
+   *
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   * @throws IOException if the permit isn't granted within the maximum wait
+   */
+  void acquire(Plupload.Priority priority) throws IOException {
+    Waiter waiter;
+    ArrayDeque<Waiter> queue = waiters[priority.ordinal()];
+    long timeout;
+    synchronized (lock) {
+      if (available > 0 && !hasWaiters()) {
+        available--;
+        return;
+      }
+
+      waiter = new Waiter(priority.ordinal(), System.nanoTime());
+      queue.add(waiter);
+      timeout = maxWait;
+    }
+
+    // Each waiter is signaled directly so a release only wakes the thread
+    // that was granted the permit.
+    boolean interrupted = false;
+    long deadline = waiter.since + TimeUnit.MILLISECONDS.toNanos(timeout);
+    synchronized (waiter) {
+      try {
+        long remaining;
+        while (!waiter.granted && (remaining = deadline - System.nanoTime())
+            > 0) {
+          TimeUnit.NANOSECONDS.timedWait(waiter, remaining);
+        }
+      }
+      catch (InterruptedException ex) {
+        interrupted = true;
+      }
+      if (waiter.granted && !interrupted) {
+        return;
+      }
+    }
+
+    boolean removed;
+    synchronized (lock) {
+      removed = queue.remove(waiter);
+    }
+    if (!removed) {
+      // The permit was granted while giving up.
+      release();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while waiting to write upload data.");
+    }
+    throw new IOException("Timed out after " + timeout
+        + " ms waiting to write upload data.");
+  }
+
+  /**
+   * Releases a permit acquired with {@link #acquire(Plupload.Priority)} or
+   * {@link #tryAcquire(Plupload.Priority)}. The permit is handed to the
+   * waiter with the highest aged priority, if any.
+   */
+  void release() {
+    Waiter waiter;
+    synchronized (lock) {
+      waiter = available >= 0 ? nextWaiter() : null;
+      if (waiter == null) {
+        available++;
+        return;
+      }
+    }
+    waiter.grant();
+  }
+
+  /**
+   * Removes the waiter with the highest aged priority, if any. Only the head
+   * of each queue is considered because it has waited the longest of its
+   * priority. Ties are admitted in arrival order. Must be called while
+   * holding the lock.
+   *
+   * @return the waiter or null if no thread is waiting
+   */
+  private Waiter nextWaiter() {
+    long now = System.nanoTime();
+    long interval = TimeUnit.MILLISECONDS.toNanos(agingInterval);
+    ArrayDeque<Waiter> next = null;
+    long nextLevel = 0;
+    long nextSince = 0;
+    for (ArrayDeque<Waiter> queue : waiters) {
+      Waiter waiter = queue.peek();
+      if (waiter != null) {
+        long level = Math.max(0, waiter.priority - (now - waiter.since)
+            / interval);
+        if (next == null || level < nextLevel || (level == nextLevel
+            && waiter.since - nextSince < 0)) {
+          next = queue;
+          nextLevel = level;
+          nextSince = waiter.since;
+        }
+      }
+    }
+    return next == null ? null : next.poll();
+  }
+
+  /**
+   * Returns true if any thread is waiting. Must be called while holding the
+   * lock.
+   *
+   * @return true if a thread is waiting
+   */
+  private boolean hasWaiters() {
+    for (ArrayDeque<Waiter> queue : waiters) {
+      if (!queue.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A thread waiting for a permit.
+   */
+  private static class Waiter {
+
+    private final int priority;
+    private final long since;
+    private boolean granted;
+
+    /**
+     * Constructs the waiter.
+     *
+     * @param priority the ordinal of the priority of the waiter
+     * @param since the time the waiter started waiting from
+     * {@link System#nanoTime()}
+     */
+    Waiter(int priority, long since) {
+      this.priority = priority;
+      this.since = since;
+    }
+
+    /**
+     * Grants the permit to the waiting thread and wakes it.
+     */
+    synchronized void grant() {
+      granted = true;
+      notify();
+    }
+  }
+}
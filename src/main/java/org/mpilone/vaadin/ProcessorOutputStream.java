@@ -0,0 +1,73 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * An output stream that writes to a delegate and then passes the same data to
+ * a list of upload processors.
+ *
+ * @author mpilone
+ */
+class ProcessorOutputStream extends OutputStream {
+
+  private final OutputStream delegate;
+  private final List<UploadProcessor> processors;
+  private final byte[] single = new byte[1];
+
+  /**
+   * Constructs the stream.
+   *
+   * @param delegate the delegate stream to write to
+   * @param processors the processors to pass the written data to
+   */
+  public ProcessorOutputStream(OutputStream delegate,
+      List<UploadProcessor> processors) {
+    this.delegate = delegate;
+    this.processors = processors;
+  }
+
+  /**
+   * Checks that all the processors can accept more data without blocking.
+   *
+   * @throws IOException if a processor isn't ready
+   */
+  public void checkReady() throws IOException {
+    for (UploadProcessor processor : processors) {
+      if (!processor.isReady()) {
+        throw new IOException("Upload processor isn't ready for more data.");
+      }
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    delegate.write(b, off, len);
+
+    for (UploadProcessor processor : processors) {
+      processor.process(b, off, len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    delegate.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+}
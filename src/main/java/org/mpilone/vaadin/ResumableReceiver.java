@@ -0,0 +1,46 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.vaadin.ui.Upload;
+
+/**
+ * A receiver that writes to a target that can be identified by a string and
+ * reopened later, possibly on another node in a cluster. When the receiver of
+ * a {@link Plupload} implements this interface, the target is recorded in the
+ * {@link UploadSessionStore} so the upload can continue on any node that can
+ * reach the target and has the Vaadin session.
+ *
+ * @author mpilone
+ */
+public interface ResumableReceiver extends Upload.Receiver {
+
+  /**
+   * Creates a new target for an upload. The target is an opaque string such
+   * as a path on a shared file system or an object key.
+   *
+   * @param filename the name of the file provided by the client
+   * @param mimeType the mime-type provided by the client
+   *
+   * @return the identifier of the target
+   *
+   * @throws IOException if the target cannot be created
+   */
+  String createTarget(String filename, String mimeType) throws IOException;
+
+  /**
+   * Opens an output stream to the given target. Any data in the target beyond
+   * the given offset must be discarded so that writing resumes at exactly the
+   * offset.
+   *
+   * @param target the identifier returned by
+   * {@link #createTarget(java.lang.String, java.lang.String)}
+   * @param offset the number of bytes already committed to the target
+   *
+   * @return the stream to write the remaining data to
+   *
+   * @throws IOException if the target cannot be opened
+   */
+  OutputStream openTarget(String target, long offset) throws IOException;
+}
@@ -0,0 +1,422 @@
+package org.mpilone.vaadin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * The shared storage used by the retry buffers of uploads. A retry buffer
+ * holds the data of a chunk until it is verified and committed to the
+ * receiver. Data is stored in three tiers: fixed size heap blocks, then fixed
+ * size direct (off-heap) blocks, then a temporary file per upload. Each tier
+ * has a byte budget shared by every upload using the arena. When a tier's
+ * budget is exhausted, new data spills to the next tier so a chunk of any size
+ * can be buffered while memory use stays bounded.
+ * </p>
+ * <p>
+ * Blocks are returned to the arena when a chunk is committed or rolled back
+ * and are reused by the next chunk of any upload so a steady state chunked
+ * upload doesn't allocate. The budgets may be changed at any time; blocks
+ * allocated above a lowered budget are dropped when they are returned.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class RetryBufferArena {
+
+  /**
+   * The default size in bytes of a heap or direct block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The default heap budget in bytes which is 1/16th of the maximum heap up
+   * to 64MB.
+   */
+  public static final long DEFAULT_HEAP_BUDGET = Math.min(64 * 1024 * 1024,
+      Runtime.getRuntime().maxMemory() / 16);
+
+  /**
+   * The default direct memory budget in bytes which is 1/8th of the maximum
+   * heap up to 256MB.
+   */
+  public static final long DEFAULT_DIRECT_BUDGET = Math.min(256 * 1024 * 1024,
+      Runtime.getRuntime().maxMemory() / 8);
+
+  /**
+   * The default disk budget in bytes.
+   */
+  public static final long DEFAULT_DISK_BUDGET = 4L * 1024 * 1024 * 1024;
+
+  /**
+   * The maximum number of idle deflaters and inflaters kept for reuse by
+   * compressed retry buffers. Each one holds native memory so additional
+   * idle codecs are released.
+   */
+  private static final int MAX_IDLE_CODECS = 64;
+
+  /**
+   * The arena shared by all components that don't configure their own.
+   */
+  private static final RetryBufferArena DEFAULT = new RetryBufferArena(
+      DEFAULT_BLOCK_SIZE);
+
+  private final int blockSize;
+  private final ArrayDeque<byte[]> heapBlocks = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> directBlocks = new ArrayDeque<>();
+  private final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+  private final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+  private final AtomicLong heapAllocated = new AtomicLong();
+  private final AtomicLong directAllocated = new AtomicLong();
+  private final AtomicLong diskUsed = new AtomicLong();
+  private volatile long heapBudget = DEFAULT_HEAP_BUDGET;
+  private volatile long directBudget = DEFAULT_DIRECT_BUDGET;
+  private volatile long diskBudget = DEFAULT_DISK_BUDGET;
+  private volatile File tempDirectory;
+
+  /**
+   * Constructs the arena with the default budgets.
+   *
+   * @param blockSize the size in bytes of a heap or direct block
+   */
+  public RetryBufferArena(int blockSize) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Block size must be positive.");
+    }
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns the arena shared by all components that don't configure their
+   * own. Changing the budgets of this arena changes them for the entire JVM.
+   *
+   * @return the default arena
+   */
+  public static RetryBufferArena getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns the size in bytes of a heap or direct block.
+   *
+   * @return the block size
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes of heap blocks allocated by the arena.
+   *
+   * @param heapBudget the budget in bytes or 0 to disable the heap tier
+   */
+  public void setHeapBudget(long heapBudget) {
+    this.heapBudget = heapBudget;
+  }
+
+  /**
+   * Returns the maximum number of bytes of heap blocks allocated by the
+   * arena.
+   *
+   * @return the budget in bytes
+   */
+  public long getHeapBudget() {
+    return heapBudget;
+  }
+
+  /**
+   * Sets the maximum number of bytes of direct blocks allocated by the arena.
+   *
+   * @param directBudget the budget in bytes or 0 to disable the direct tier
+   */
+  public void setDirectBudget(long directBudget) {
+    this.directBudget = directBudget;
+  }
+
+  /**
+   * Returns the maximum number of bytes of direct blocks allocated by the
+   * arena.
+   *
+   * @return the budget in bytes
+   */
+  public long getDirectBudget() {
+    return directBudget;
+  }
+
+  /**
+   * Sets the maximum number of bytes in temporary files at once.
+   *
+   * @param diskBudget the budget in bytes or 0 to disable the disk tier
+   */
+  public void setDiskBudget(long diskBudget) {
+    this.diskBudget = diskBudget;
+  }
+
+  /**
+   * Returns the maximum number of bytes in temporary files at once.
+   *
+   * @return the budget in bytes
+   */
+  public long getDiskBudget() {
+    return diskBudget;
+  }
+
+  /**
+   * Sets the directory in which temporary files are created.
+   *
+   * @param tempDirectory the directory or null to use the system default
+   */
+  public void setTempDirectory(File tempDirectory) {
+    this.tempDirectory = tempDirectory;
+  }
+
+  /**
+   * Returns the directory in which temporary files are created.
+   *
+   * @return the directory or null if the system default is used
+   */
+  public File getTempDirectory() {
+    return tempDirectory;
+  }
+
+  /**
+   * Returns the number of bytes of heap blocks currently allocated, including
+   * idle blocks available for reuse.
+   *
+   * @return the allocated bytes
+   */
+  public long getHeapAllocated() {
+    return heapAllocated.get();
+  }
+
+  /**
+   * Returns the number of bytes of direct blocks currently allocated,
+   * including idle blocks available for reuse.
+   *
+   * @return the allocated bytes
+   */
+  public long getDirectAllocated() {
+    return directAllocated.get();
+  }
+
+  /**
+   * Returns the number of bytes currently in temporary files.
+   *
+   * @return the used bytes
+   */
+  public long getDiskUsed() {
+    return diskUsed.get();
+  }
+
+  /**
+   * Returns an idle heap block or allocates a new one if the budget permits.
+   *
+   * @return the block or null if the heap budget is exhausted
+   */
+  byte[] acquireHeapBlock() {
+    synchronized (heapBlocks) {
+      byte[] block = heapBlocks.poll();
+      if (block != null) {
+        return block;
+      }
+    }
+    return reserve(heapAllocated, blockSize, heapBudget) ? new byte[blockSize]
+        : null;
+  }
+
+  /**
+   * Acquires the heap blocks needed to buffer the given number of bytes ahead
+   * of time so the first chunk of an upload doesn't allocate. Fewer blocks
+   * are returned if the heap budget is exhausted. The blocks must be returned
+   * with {@link #releaseHeapBlock(byte[])} or passed to a
+   * {@link TransactionalOutputStream} of this arena.
+   *
+   * @param length the number of bytes to lease
+   *
+   * @return the leased blocks
+   */
+  List<byte[]> leaseHeapBlocks(long length) {
+    List<byte[]> blocks = new ArrayList<>();
+    for (long leased = 0; leased < length; leased += blockSize) {
+      byte[] block = acquireHeapBlock();
+      if (block == null) {
+        break;
+      }
+      blocks.add(block);
+    }
+    return blocks;
+  }
+
+  /**
+   * Returns a heap block to the arena for reuse.
+   *
+   * @param block the block
+   */
+  void releaseHeapBlock(byte[] block) {
+    if (heapAllocated.get() > heapBudget) {
+      heapAllocated.addAndGet(-blockSize);
+      return;
+    }
+    synchronized (heapBlocks) {
+      heapBlocks.push(block);
+    }
+  }
+
+  /**
+   * Returns an idle, cleared direct block or allocates a new one if the
+   * budget permits.
+   *
+   * @return the block or null if the direct budget is exhausted
+   */
+  ByteBuffer acquireDirectBlock() {
+    synchronized (directBlocks) {
+      ByteBuffer block = directBlocks.poll();
+      if (block != null) {
+        block.clear();
+        return block;
+      }
+    }
+    return reserve(directAllocated, blockSize, directBudget) ? ByteBuffer.
+        allocateDirect(blockSize) : null;
+  }
+
+  /**
+   * Returns a direct block to the arena for reuse.
+   *
+   * @param block the block
+   */
+  void releaseDirectBlock(ByteBuffer block) {
+    if (directAllocated.get() > directBudget) {
+      directAllocated.addAndGet(-blockSize);
+      return;
+    }
+    synchronized (directBlocks) {
+      directBlocks.push(block);
+    }
+  }
+
+  /**
+   * Reserves the given number of bytes of the disk budget.
+   *
+   * @param length the number of bytes
+   *
+   * @return true if the bytes were reserved or false if the disk budget is
+   * exhausted
+   */
+  boolean reserveDisk(long length) {
+    return reserve(diskUsed, length, diskBudget);
+  }
+
+  /**
+   * Releases the given number of bytes of the disk budget.
+   *
+   * @param length the number of bytes
+   */
+  void releaseDisk(long length) {
+    diskUsed.addAndGet(-length);
+  }
+
+  /**
+   * Creates a new temporary file in the temporary directory.
+   *
+   * @return the new file
+   *
+   * @throws IOException if the file cannot be created
+   */
+  File createTempFile() throws IOException {
+    return File.createTempFile("plupload-retry", ".tmp", tempDirectory);
+  }
+
+  /**
+   * Returns an idle deflater or creates a new one. Deflaters use the fastest
+   * compression level because the data is only held until the chunk is
+   * committed.
+   *
+   * @return the deflater
+   */
+  Deflater acquireDeflater() {
+    synchronized (deflaters) {
+      Deflater deflater = deflaters.poll();
+      if (deflater != null) {
+        return deflater;
+      }
+    }
+    return new Deflater(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * Returns a deflater to the arena for reuse.
+   *
+   * @param deflater the deflater
+   */
+  void releaseDeflater(Deflater deflater) {
+    deflater.reset();
+    synchronized (deflaters) {
+      if (deflaters.size() < MAX_IDLE_CODECS) {
+        deflaters.push(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  /**
+   * Returns an idle inflater or creates a new one.
+   *
+   * @return the inflater
+   */
+  Inflater acquireInflater() {
+    synchronized (inflaters) {
+      Inflater inflater = inflaters.poll();
+      if (inflater != null) {
+        return inflater;
+      }
+    }
+    return new Inflater();
+  }
+
+  /**
+   * Returns an inflater to the arena for reuse.
+   *
+   * @param inflater the inflater
+   */
+  void releaseInflater(Inflater inflater) {
+    inflater.reset();
+    synchronized (inflaters) {
+      if (inflaters.size() < MAX_IDLE_CODECS) {
+        inflaters.push(inflater);
+        return;
+      }
+    }
+    inflater.end();
+  }
+
+  /**
+   * Adds the given length to the given counter if the result doesn't exceed
+   * the budget.
+   *
+   * @param counter the counter to add to
+   * @param length the number of bytes to add
+   * @param budget the maximum value of the counter
+   *
+   * @return true if the length was added
+   */
+  private static boolean reserve(AtomicLong counter, long length, long budget) {
+    while (true) {
+      long current = counter.get();
+      if (current + length > budget) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + length)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.Streams.tryClose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A receiver that writes each upload to a temporary file in the destination
+ * directory and atomically moves it into place when the upload succeeds. The
+ * destination file therefore either doesn't exist or is complete, even if
+ * the server crashes part way through an upload. The temporary file is
+ * deleted when the upload fails or is interrupted. Because the temporary file
+ * is on the same file system as the destination, the move is a rename and the
+ * data is never copied.
+ * </p>
+ * <p>
+ * Chunks are written positionally through a direct buffer so the file is
+ * written in large blocks aligned to {@link #BLOCK_SIZE} regardless of the
+ * size of the writes from the request or retry buffer, and the memory used is
+ * fixed regardless of the file size. The file is forced to disk before it is
+ * moved into place. A file ID is required so the HTML4 runtime is not
+ * supported. Uploads are tracked in memory so temporary files left behind by
+ * a crash can be removed with {@link #deleteStaleTempFiles(long)}.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class TempFileReceiver implements ChunkReceiver {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The size and alignment of the blocks written to the temporary file.
+   */
+  public static final int BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The prefix of the temporary files in the destination directory.
+   */
+  private static final String TEMP_FILE_PREFIX = ".plupload-";
+
+  /**
+   * The suffix of the temporary files in the destination directory.
+   */
+  private static final String TEMP_FILE_SUFFIX = ".part";
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final File directory;
+  private transient Map<String, TempFile> uploads = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs the receiver.
+   *
+   * @param directory the directory to write the uploaded files to
+   */
+  public TempFileReceiver(Path directory) {
+    this.directory = directory.toFile();
+  }
+
+  /**
+   * Returns the directory the uploaded files are written to.
+   *
+   * @return the destination directory
+   */
+  public Path getDirectory() {
+    return directory.toPath();
+  }
+
+  /**
+   * Restores the receiver after the session is deserialized. The temp files
+   * of uploads in progress are only open on the node that wrote them so they
+   * aren't serialized and the uploads fail if continued on another node.
+   *
+   * @param in the stream to read from
+   *
+   * @throws IOException if the receiver cannot be read
+   * @throws ClassNotFoundException if a class of the receiver is missing
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    uploads = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public WritableByteChannel receiveChunk(Chunk chunk) throws IOException {
+    String fileId = chunk.getFileId();
+    if (fileId == null) {
+      throw new IOException("A file ID is required to write a temp file.");
+    }
+
+    TempFile tempFile = uploads.get(fileId);
+    if (tempFile == null) {
+      if (chunk.getOffset() != 0) {
+        throw new IOException("No temp file exists for file " + fileId
+            + " at offset " + chunk.getOffset() + ".");
+      }
+
+      Path target = resolveTarget(chunk.getFilename());
+      Path path = Files.createTempFile(target.getParent(), TEMP_FILE_PREFIX,
+          TEMP_FILE_SUFFIX);
+      tempFile = new TempFile(path, target, FileChannel.open(path,
+          StandardOpenOption.WRITE));
+      uploads.put(fileId, tempFile);
+
+      log.debug("Writing upload of file {} to temp file {}.", target, path);
+    }
+
+    return new BlockChannel(tempFile, chunk.getOffset());
+  }
+
+  @Override
+  public void uploadEnded(String fileId, boolean succeeded) throws
+      IOException {
+    TempFile tempFile = fileId == null ? null : uploads.remove(fileId);
+    if (tempFile == null) {
+      return;
+    }
+
+    IOException failure = null;
+    if (succeeded) {
+      try {
+        tempFile.channel.force(true);
+        tempFile.channel.close();
+        Files.move(tempFile.path, tempFile.target,
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(tempFile.target.getParent());
+
+        log.debug("Moved temp file {} to {}.", tempFile.path,
+            tempFile.target);
+        return;
+      }
+      catch (IOException ex) {
+        failure = ex;
+      }
+    }
+
+    tryClose(tempFile.channel);
+    try {
+      Files.deleteIfExists(tempFile.path);
+    }
+    catch (IOException ex) {
+      log.warn("Failed to delete temp file {}.", tempFile.path, ex);
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Returns the path of the destination file for the given filename. The
+   * default implementation uses the name of the file, without any directory
+   * components provided by the client, in the destination directory and
+   * replaces any existing file. Subclasses may override this method to use a
+   * different naming scheme but the destination must be in a directory on the
+   * same file system as the destination directory.
+   *
+   * @param filename the name of the file provided by the client
+   *
+   * @return the path of the destination file
+   *
+   * @throws IOException if the filename is not allowed
+   */
+  public Path resolveTarget(String filename) throws IOException {
+    Path name = filename == null ? null : Paths.get(filename).getFileName();
+    String value = name == null ? null : name.toString();
+    if (value == null || value.isEmpty() || value.equals(".")
+        || value.equals("..")) {
+      throw new IOException("Invalid filename " + filename + ".");
+    }
+    return directory.toPath().resolve(name);
+  }
+
+  /**
+   * Deletes the temporary files in the destination directory that are older
+   * than the given age and don't belong to an upload in progress. Temporary
+   * files are normally deleted when an upload fails but may be left behind if
+   * the server is stopped during an upload.
+   *
+   * @param maxAge the minimum age in milliseconds of a file to delete
+   *
+   * @return the number of files deleted
+   *
+   * @throws IOException if the directory cannot be read
+   */
+  public int deleteStaleTempFiles(long maxAge) throws IOException {
+    long cutoff = System.currentTimeMillis() - maxAge;
+    int count = 0;
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory.
+        toPath(), TEMP_FILE_PREFIX + "*" + TEMP_FILE_SUFFIX)) {
+      for (Path path : paths) {
+        if (Files.getLastModifiedTime(path).toMillis() < cutoff
+            && !isInProgress(path) && Files.deleteIfExists(path)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns true if the given temporary file belongs to an upload in
+   * progress.
+   *
+   * @param path the temporary file
+   *
+   * @return true if the file is in use
+   */
+  private boolean isInProgress(Path path) {
+    for (TempFile tempFile : uploads.values()) {
+      if (tempFile.path.equals(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Forces the given directory to disk so a move into it survives a crash.
+   * Not all platforms support opening a directory so failures are ignored.
+   *
+   * @param dir the directory to sync
+   */
+  private void syncDirectory(Path dir) {
+    try (FileChannel channel = FileChannel.open(dir,
+        StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+    catch (IOException ex) {
+      log.debug("Unable to sync directory {}.", dir, ex);
+    }
+  }
+
+  /**
+   * A temporary file of an upload in progress.
+   */
+  private static class TempFile {
+
+    private final Path path;
+    private final Path target;
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    /**
+     * Constructs the temporary file.
+     *
+     * @param path the path of the temporary file
+     * @param target the path of the destination file
+     * @param channel the open channel of the temporary file
+     */
+    TempFile(Path path, Path target, FileChannel channel) {
+      this.path = path;
+      this.target = target;
+      this.channel = channel;
+    }
+
+    /**
+     * Returns the write buffer of the file, allocating it if required. The
+     * buffer is reused for every chunk because the chunks of an upload are
+     * written one at a time.
+     *
+     * @return the empty write buffer
+     */
+    ByteBuffer getBuffer() {
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+      }
+      buffer.clear();
+      return buffer;
+    }
+  }
+
+  /**
+   * The channel that writes a single chunk to a temporary file. Data is
+   * buffered until the next block boundary in the file so each write to the
+   * file, except at the end of a chunk, is a full aligned block.
+   */
+  private static class BlockChannel implements WritableByteChannel {
+
+    private final TempFile tempFile;
+    private final ByteBuffer buffer;
+    private long bufferPosition;
+    private boolean open = true;
+
+    /**
+     * Constructs the channel.
+     *
+     * @param tempFile the temporary file to write to
+     * @param offset the offset in the file of the first byte of the chunk
+     */
+    BlockChannel(TempFile tempFile, long offset) {
+      this.tempFile = tempFile;
+      this.buffer = tempFile.getBuffer();
+      this.bufferPosition = offset;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+
+      int count = src.remaining();
+      while (src.hasRemaining()) {
+        // Fill the buffer up to the next block boundary in the file.
+        int limit = BLOCK_SIZE - (int) (bufferPosition % BLOCK_SIZE);
+        int len = Math.min(src.remaining(), limit - buffer.position());
+
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + len);
+        buffer.put(slice);
+        src.position(src.position() + len);
+
+        if (buffer.position() == limit) {
+          flush();
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Writes the buffered data to the file.
+     *
+     * @throws IOException if the write fails
+     */
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        bufferPosition += tempFile.channel.write(buffer, bufferPosition);
+      }
+      buffer.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (open) {
+        open = false;
+        flush();
+      }
+    }
+  }
+}
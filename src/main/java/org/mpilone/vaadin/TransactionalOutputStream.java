@@ -1,63 +1,290 @@
-
 package org.mpilone.vaadin;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
- * An output stream that buffers the data in memory and only writes to the
- * delegate output stream when committed. The stream can be reused after calling
- * commit or rollback which provides an efficient in-memory buffer.
+ * An output stream that buffers the data and only writes to the delegate
+ * output stream when committed. The data is stored in the tiers of a
+ * {@link RetryBufferArena}: heap blocks up to a per stream limit, then direct
+ * blocks, then a temporary file, moving to the next tier when a tier's budget
+ * is exhausted. The stream can be reused after calling commit or rollback
+ * which returns the blocks to the arena. The stream must be closed to release
+ * the temporary file, if any. The data may optionally be compressed as it is
+ * buffered and decompressed as it is committed so compressible data uses less
+ * of the arena budgets.
  *
  * @author mpilone
  */
 class TransactionalOutputStream extends OutputStream {
 
-  private final ByteBuffer buffer;
+  private static final int TIER_HEAP = 0;
+  private static final int TIER_DIRECT = 1;
+  private static final int TIER_DISK = 2;
+
+  private final RetryBufferArena arena;
   private final OutputStream delegate;
+  private final int maxHeapBlocks;
+  private final List<byte[]> heapBlocks = new ArrayList<>();
+  private final List<byte[]> leasedBlocks = new ArrayList<>();
+  private final List<ByteBuffer> directBlocks = new ArrayList<>();
+  private final byte[] single = new byte[1];
+  private int tier;
+  private int blockCount;
+  private File file;
+  private FileChannel channel;
+  private long fileLength;
+  private byte[] scratch;
+  private ByteBuffer scratchBuffer;
+  private boolean compressed;
+  private Deflater deflater;
+  private byte[] codecBuffer;
 
   /**
-   * Constructs the output stream which will buffer incoming data up to the
-   * given capacity.
+   * Constructs the output stream which will buffer incoming data in the
+   * given arena.
    *
-   * @param capacity the maximum capacity in bytes
+   * @param arena the arena that provides the buffer storage
+   * @param maxHeapSize the maximum number of bytes buffered in heap blocks
+   * before spilling to the next tier, rounded down to whole blocks so the
+   * heap tier never exceeds it
    * @param delegate the delegate stream to write to
    */
-  public TransactionalOutputStream(int capacity, OutputStream delegate) {
-    this.buffer = ByteBuffer.allocate(capacity);
+  public TransactionalOutputStream(RetryBufferArena arena, int maxHeapSize,
+      OutputStream delegate) {
+    this.arena = arena;
     this.delegate = delegate;
+    this.maxHeapBlocks = maxHeapSize / arena.getBlockSize();
+  }
+
+  /**
+   * Constructs the output stream which will buffer incoming data in the
+   * given arena, starting with heap blocks leased ahead of time. The leased
+   * blocks are used before any are acquired from the arena and are returned
+   * to the arena with the rest when the first chunk is committed or rolled
+   * back.
+   *
+   * @param arena the arena that provides the buffer storage
+   * @param maxHeapSize the maximum number of bytes buffered in heap blocks
+   * before spilling to the next tier
+   * @param delegate the delegate stream to write to
+   * @param leasedBlocks the heap blocks leased from the arena
+   *
+   * @see RetryBufferArena#leaseHeapBlocks(long)
+   */
+  TransactionalOutputStream(RetryBufferArena arena, int maxHeapSize,
+      OutputStream delegate, List<byte[]> leasedBlocks) {
+    this(arena, maxHeapSize, delegate);
+    this.leasedBlocks.addAll(leasedBlocks);
+  }
+
+  /**
+   * Sets the flag which indicates if the buffered data is compressed. The
+   * data is compressed with a deflater at the fastest level as it is written
+   * and decompressed straight into the delegate stream when committed so the
+   * tiers hold the compressed data. A deflater is only held while the stream
+   * isn't empty. Must only be called while the stream is empty.
+   *
+   * @param compressed true to compress the buffered data
+   */
+  void setCompressed(boolean compressed) {
+    this.compressed = compressed;
+  }
+
+  /**
+   * Returns the flag which indicates if the buffered data is compressed.
+   *
+   * @return true if the buffered data is compressed
+   */
+  boolean isCompressed() {
+    return compressed;
   }
 
   @Override
   public void write(byte[] b) throws IOException {
-    buffer.put(b);
+    write(b, 0, b.length);
   }
 
   @Override
   public void write(int b) throws IOException {
-    buffer.put((byte) b);
+    single[0] = (byte) b;
+    write(single, 0, 1);
   }
 
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
-    buffer.put(b, off, len);
+    if (!compressed) {
+      store(b, off, len);
+      return;
+    }
+
+    if (deflater == null) {
+      deflater = arena.acquireDeflater();
+      if (codecBuffer == null) {
+        codecBuffer = new byte[arena.getBlockSize()];
+      }
+    }
+    deflater.setInput(b, off, len);
+    while (!deflater.needsInput()) {
+      deflate();
+    }
   }
 
   /**
-   * Rolls back the written data.
+   * Stores the output of the deflater that is currently available.
+   *
+   * @throws IOException if the store fails
    */
-  public void rollback() {
-    buffer.rewind();
+  private void deflate() throws IOException {
+    int n = deflater.deflate(codecBuffer, 0, codecBuffer.length);
+    store(codecBuffer, 0, n);
   }
 
   /**
-   * Returns the capacity that this stream was configured with.
+   * Stores the given data in the tiers of the arena, spilling to the next
+   * tier when the current one is full.
    *
-   * @return the in-memory storage capacity in bytes
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to store
+   *
+   * @throws IOException if the budgets are exhausted or a write fails
    */
-  public int getCapacity() {
-    return buffer.capacity();
+  private void store(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int written;
+      switch (tier) {
+        case TIER_HEAP:
+          written = writeHeap(b, off, len);
+          break;
+
+        case TIER_DIRECT:
+          written = writeDirect(b, off, len);
+          break;
+
+        default:
+          written = writeDisk(b, off, len);
+          break;
+      }
+
+      if (written == 0) {
+        // The tier is full so the rest of the data spills to the next tier.
+        tier++;
+        blockCount = 0;
+      }
+      off += written;
+      len -= written;
+    }
+  }
+
+  /**
+   * Writes as much of the given data as fits in the current heap block,
+   * acquiring a new block if needed.
+   *
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   *
+   * @return the number of bytes written or 0 if the heap tier is full
+   */
+  private int writeHeap(byte[] b, int off, int len) {
+    int blockSize = arena.getBlockSize();
+    if (heapBlocks.isEmpty() || blockCount == blockSize) {
+      byte[] block = heapBlocks.size() >= maxHeapBlocks ? null
+          : !leasedBlocks.isEmpty() ? leasedBlocks.remove(leasedBlocks.size()
+                  - 1) : arena.acquireHeapBlock();
+      if (block == null) {
+        return 0;
+      }
+      heapBlocks.add(block);
+      blockCount = 0;
+    }
+
+    int n = Math.min(len, blockSize - blockCount);
+    System.arraycopy(b, off, heapBlocks.get(heapBlocks.size() - 1),
+        blockCount, n);
+    blockCount += n;
+    return n;
+  }
+
+  /**
+   * Writes as much of the given data as fits in the current direct block,
+   * acquiring a new block if needed.
+   *
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   *
+   * @return the number of bytes written or 0 if the direct tier is full
+   */
+  private int writeDirect(byte[] b, int off, int len) {
+    int blockSize = arena.getBlockSize();
+    if (directBlocks.isEmpty() || blockCount == blockSize) {
+      ByteBuffer block = arena.acquireDirectBlock();
+      if (block == null) {
+        return 0;
+      }
+      directBlocks.add(block);
+      blockCount = 0;
+    }
+
+    int n = Math.min(len, blockSize - blockCount);
+    directBlocks.get(directBlocks.size() - 1).put(b, off, n);
+    blockCount += n;
+    return n;
+  }
+
+  /**
+   * Writes the given data to the end of the temporary file, creating the file
+   * if needed.
+   *
+   * @param b the data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   *
+   * @return the number of bytes written
+   *
+   * @throws IOException if the disk budget is exhausted or the write fails
+   */
+  private int writeDisk(byte[] b, int off, int len) throws IOException {
+    if (!arena.reserveDisk(len)) {
+      throw new IOException("The retry buffer budgets are exhausted.");
+    }
+
+    try {
+      if (channel == null) {
+        file = arena.createTempFile();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+      }
+
+      ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+      while (buf.hasRemaining()) {
+        channel.write(buf, fileLength + buf.position() - off);
+      }
+    }
+    catch (IOException ex) {
+      arena.releaseDisk(len);
+      throw ex;
+    }
+
+    fileLength += len;
+    return len;
+  }
+
+  /**
+   * Rolls back the written data.
+   */
+  public void rollback() {
+    release();
   }
 
   /**
@@ -66,18 +293,157 @@ class TransactionalOutputStream extends OutputStream {
    * @throws IOException if a write to the delegate stream fails
    */
   public void commit() throws IOException {
-    int available = buffer.position();
-    buffer.rewind();
+    Inflater inflater = null;
+    try {
+      if (deflater != null) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          deflate();
+        }
+        inflater = arena.acquireInflater();
+      }
+
+      int blockSize = arena.getBlockSize();
+
+      // Write directly from the heap blocks to avoid a copy.
+      for (int i = 0; i < heapBlocks.size(); ++i) {
+        boolean last = tier == TIER_HEAP && i == heapBlocks.size() - 1;
+        commitWrite(inflater, heapBlocks.get(i), 0, last ? blockCount
+            : blockSize);
+      }
+
+      if (!directBlocks.isEmpty() || fileLength > 0) {
+        if (scratch == null) {
+          scratch = new byte[blockSize];
+          scratchBuffer = ByteBuffer.wrap(scratch);
+        }
+      }
+
+      for (int i = 0; i < directBlocks.size(); ++i) {
+        ByteBuffer block = directBlocks.get(i);
+        block.flip();
+        while (block.hasRemaining()) {
+          int n = Math.min(block.remaining(), scratch.length);
+          block.get(scratch, 0, n);
+          commitWrite(inflater, scratch, 0, n);
+        }
+      }
+
+      long position = 0;
+      while (position < fileLength) {
+        scratchBuffer.clear();
+        if (fileLength - position < scratch.length) {
+          scratchBuffer.limit((int) (fileLength - position));
+        }
+        int n = channel.read(scratchBuffer, position);
+        if (n == -1) {
+          throw new IOException("Unexpected end of retry buffer file.");
+        }
+        commitWrite(inflater, scratch, 0, n);
+        position += n;
+      }
+
+      if (inflater != null && !inflater.finished()) {
+        throw new IOException("Unexpected end of compressed retry buffer.");
+      }
+    }
+    finally {
+      if (inflater != null) {
+        arena.releaseInflater(inflater);
+      }
+      release();
+    }
+  }
+
+  /**
+   * Writes the given buffered data to the delegate stream, decompressing it
+   * with the given inflater if the data is compressed.
+   *
+   * @param inflater the inflater or null if the data isn't compressed
+   * @param b the buffered data
+   * @param off the start offset in the data
+   * @param len the number of bytes to write
+   *
+   * @throws IOException if the data is corrupt or a write to the delegate
+   * stream fails
+   */
+  private void commitWrite(Inflater inflater, byte[] b, int off, int len)
+      throws IOException {
+    if (inflater == null) {
+      delegate.write(b, off, len);
+      return;
+    }
+
+    inflater.setInput(b, off, len);
+    try {
+      while (!inflater.needsInput() && !inflater.finished()) {
+        int n = inflater.inflate(codecBuffer);
+        if (n == 0 && inflater.needsDictionary()) {
+          throw new DataFormatException("Unexpected dictionary.");
+        }
+        delegate.write(codecBuffer, 0, n);
+      }
+    }
+    catch (DataFormatException ex) {
+      throw new IOException("Corrupt compressed retry buffer.", ex);
+    }
+  }
+
+  /**
+   * Releases the written data and deletes the temporary file, if any.
+   */
+  @Override
+  public void close() {
+    release();
 
-    byte[] buf = new byte[1024];
-    while (available > 0) {
-      int len = Math.min(buf.length, available);
-      available -= len;
+    if (channel != null) {
+      Streams.tryClose(channel);
+      channel = null;
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+      file = null;
+    }
+  }
+
+  /**
+   * Returns all blocks to the arena and truncates the temporary file so the
+   * stream is empty.
+   */
+  private void release() {
+    // Indexed loops so releasing doesn't allocate an iterator per chunk.
+    for (int i = 0; i < heapBlocks.size(); ++i) {
+      arena.releaseHeapBlock(heapBlocks.get(i));
+    }
+    heapBlocks.clear();
+
+    for (int i = 0; i < leasedBlocks.size(); ++i) {
+      arena.releaseHeapBlock(leasedBlocks.get(i));
+    }
+    leasedBlocks.clear();
+
+    for (int i = 0; i < directBlocks.size(); ++i) {
+      arena.releaseDirectBlock(directBlocks.get(i));
+    }
+    directBlocks.clear();
+
+    if (fileLength > 0) {
+      arena.releaseDisk(fileLength);
+      fileLength = 0;
+      try {
+        channel.truncate(0);
+      }
+      catch (IOException ex) {
+        // Ignore because the file is overwritten from the start.
+      }
+    }
 
-      buffer.get(buf, 0, len);
-      delegate.write(buf, 0, len);
+    if (deflater != null) {
+      arena.releaseDeflater(deflater);
+      deflater = null;
     }
 
-    buffer.rewind();
+    tier = TIER_HEAP;
+    blockCount = 0;
   }
 }
@@ -0,0 +1,134 @@
+package org.mpilone.vaadin;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * <p>
+ * A pipeline stage that processes upload data incrementally as it is
+ * committed to the receiver rather than waiting for the upload to complete.
+ * For example, a processor could parse CSV records or extract archive entries
+ * while the rest of the file is still being uploaded.
+ * </p>
+ * <p>
+ * When retries are enabled with a retry buffer of any size, processors only
+ * see the data of a chunk after the chunk has been committed so a partial
+ * chunk that is retried by the client is never processed. Without a retry
+ * buffer, data is processed as it arrives. In both cases the data of a
+ * retried chunk that was already received is not processed again so each
+ * byte is processed exactly once and in order. A failed upload is reported
+ * via {@link #abort(java.lang.Exception)}.
+ * </p>
+ * <p>
+ * All methods are called by the thread receiving the upload data and must not
+ * block for long periods of time (see {@link #isReady()}). A processor instance is used for one upload
+ * at a time. Processors are serialized with the component so any state of
+ * the upload in progress (e.g. worker threads) must be transient.
+ * </p>
+ *
+ * @author mpilone
+ */
+public interface UploadProcessor extends Serializable {
+
+  /**
+   * Called when the first data of a new upload is about to be committed.
+   *
+   * @param context the information about the upload
+   *
+   * @throws IOException if the processor cannot be started
+   */
+  void start(Context context) throws IOException;
+
+  /**
+   * Returns true if the processor can accept more data without blocking.
+   * This method is called before committed data is passed to the processor.
+   * If the processor isn't ready, the chunk fails before any of its data is
+   * processed and the client retries it later. A processor that falls behind
+   * must apply backpressure this way rather than blocking in
+   * {@link #process(byte[], int, int)}, which may be called while holding
+   * the session lock. Once ready, the processor must accept all the data of the
+   * chunk.
+   *
+   * @return true if the processor is ready for more data
+   */
+  boolean isReady();
+
+  /**
+   * Called with each block of committed data in the order received.
+   *
+   * @param data the data buffer
+   * @param off the offset of the first byte in the buffer
+   * @param len the number of bytes to process
+   *
+   * @throws IOException if processing fails. The exception will fail the
+   * current chunk.
+   */
+  void process(byte[] data, int off, int len) throws IOException;
+
+  /**
+   * Called when the upload completed successfully and all data has been
+   * processed.
+   *
+   * @throws IOException if processing fails. The upload will be reported as
+   * failed rather than succeeded.
+   */
+  void finish() throws IOException;
+
+  /**
+   * Called when the upload fails or is interrupted. Any partial results should
+   * be discarded.
+   *
+   * @param reason the root cause of the failure if known, otherwise null
+   */
+  void abort(Exception reason);
+
+  /**
+   * The information about an upload being processed.
+   */
+  interface Context {
+
+    /**
+     * Returns the unique ID of the file assigned by the client.
+     *
+     * @return the file ID or null if not known
+     */
+    String getFileId();
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the file name
+     */
+    String getFilename();
+
+    /**
+     * Returns the mime-type provided by the client.
+     *
+     * @return the mime-type
+     */
+    String getMimeType();
+
+    /**
+     * Returns the content length in bytes provided by the client.
+     *
+     * @return the content length or -1 if not known
+     */
+    long getContentLength();
+
+    /**
+     * Interrupts the upload. This method may be called from any thread and
+     * has the same effect as {@link Plupload#interruptUpload()}.
+     */
+    void interrupt();
+
+    /**
+     * Interrupts the upload with the given reason. This method may be called
+     * from any thread. The reason is reported in the
+     * {@link com.vaadin.ui.Upload.FailedEvent} fired for the upload, even if
+     * all the data has already been received.
+     *
+     * @param reason the reason the upload was interrupted
+     */
+    void interrupt(Exception reason);
+  }
+}
@@ -0,0 +1,143 @@
+package org.mpilone.vaadin;
+
+import java.io.Serializable;
+
+/**
+ * The persistent state of an in-progress upload as saved in an
+ * {@link UploadSessionStore}.
+ *
+ * @author mpilone
+ */
+public class UploadSessionRecord implements Serializable {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  private String fileId;
+  private String filename;
+  private String mimeType;
+  private long contentLength = -1;
+  private long committedOffset;
+  private String receiverTarget;
+  private String resumeToken;
+  private String owner;
+
+  /**
+   * @return the unique ID of the file assigned by the client
+   */
+  public String getFileId() {
+    return fileId;
+  }
+
+  /**
+   * @param fileId the unique ID of the file assigned by the client
+   */
+  public void setFileId(String fileId) {
+    this.fileId = fileId;
+  }
+
+  /**
+   * @return the name of the file provided by the client
+   */
+  public String getFilename() {
+    return filename;
+  }
+
+  /**
+   * @param filename the name of the file provided by the client
+   */
+  public void setFilename(String filename) {
+    this.filename = filename;
+  }
+
+  /**
+   * @return the mime-type provided by the client
+   */
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * @param mimeType the mime-type provided by the client
+   */
+  public void setMimeType(String mimeType) {
+    this.mimeType = mimeType;
+  }
+
+  /**
+   * @return the content length in bytes provided by the client or -1 if not
+   * known
+   */
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * @param contentLength the content length in bytes provided by the client
+   */
+  public void setContentLength(long contentLength) {
+    this.contentLength = contentLength;
+  }
+
+  /**
+   * @return the number of bytes committed to the receiver
+   */
+  public long getCommittedOffset() {
+    return committedOffset;
+  }
+
+  /**
+   * @param committedOffset the number of bytes committed to the receiver
+   */
+  public void setCommittedOffset(long committedOffset) {
+    this.committedOffset = committedOffset;
+  }
+
+  /**
+   * @return the receiver target returned by a {@link ResumableReceiver} or
+   * null if the receiver isn't resumable
+   */
+  public String getReceiverTarget() {
+    return receiverTarget;
+  }
+
+  /**
+   * @param receiverTarget the receiver target returned by a
+   * {@link ResumableReceiver}
+   */
+  public void setReceiverTarget(String receiverTarget) {
+    this.receiverTarget = receiverTarget;
+  }
+
+  /**
+   * @return the resume token provided by the client or null if not known
+   */
+  public String getResumeToken() {
+    return resumeToken;
+  }
+
+  /**
+   * @param resumeToken the resume token provided by the client
+   */
+  public void setResumeToken(String resumeToken) {
+    this.resumeToken = resumeToken;
+  }
+
+  /**
+   * @return the ID of the HTTP session that started the upload or null if
+   * not known
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * @param owner the ID of the HTTP session that started the upload. Only the
+   * same session may continue the upload from the record.
+   */
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+}
@@ -0,0 +1,63 @@
+package org.mpilone.vaadin;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * A store of upload session records. The store allows the state of an
+ * in-progress upload to be shared so that the next chunk of a file can be
+ * accepted by a node other than the one that received the previous chunk,
+ * without relying on the in-memory state of the component on that node.
+ * </p>
+ * <p>
+ * The store does not remove the need for session affinity or replication.
+ * Every chunk request is addressed to the component through the Vaadin
+ * session (the stream variable URL or a target of the
+ * {@link NonBlockingUploadServlet}) so the node that receives a chunk must
+ * have the Vaadin session, either because the sessions are replicated or
+ * because the chunk was routed to the same node. What the store provides is
+ * that the upload itself continues correctly in those cases: the node that
+ * takes over (e.g. after a failover or when the replicated component has no
+ * upload state because the session is replicated without transient fields)
+ * restores the committed offset and receiver target from the store rather
+ * than starting the file over.
+ * </p>
+ * <p>
+ * The store is only useful in a cluster if it is shared between the nodes
+ * (e.g. a shared file system or database) and the receiver implements
+ * {@link ResumableReceiver} so the receiver target can be reopened on another
+ * node. Implementations must be thread-safe and must keep every field of the
+ * record, including the owner which is checked when the record is loaded.
+ * The file IDs assigned by the client are only unique to the page so a
+ * record with a different owner is ignored.
+ * </p>
+ *
+ * @author mpilone
+ */
+public interface UploadSessionStore extends Serializable {
+
+  /**
+   * Loads the record for the upload of the file with the given ID.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   *
+   * @return the record or null if no upload session is stored for the file
+   */
+  UploadSessionRecord load(String fileId);
+
+  /**
+   * Saves the given record replacing any existing record for the same file
+   * ID.
+   *
+   * @param record the record to save
+   */
+  void save(UploadSessionRecord record);
+
+  /**
+   * Removes the record for the upload of the file with the given ID. If no
+   * record exists, this method does nothing.
+   *
+   * @param fileId the unique ID of the file assigned by the client
+   */
+  void remove(String fileId);
+}
@@ -0,0 +1,217 @@
+package org.mpilone.vaadin;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * A tracer that receives timed spans covering the lifecycle of each upload
+ * and each of its chunks. The spans make it possible to tell where the time
+ * of a slow upload is spent: waiting for the client between chunks, receiving
+ * and parsing the chunk request, committing the retry buffer, or writing to
+ * the receiver.
+ * </p>
+ * <p>
+ * Spans are reported when they end, on the thread that ended them, while
+ * holding the session lock. The {@link Span} instance is reused for every span
+ * of an upload so it is only valid for the duration of the call and must be
+ * copied if it is retained. Implementations must be fast and must not throw.
+ * </p>
+ *
+ * @author mpilone
+ * @see NoOpUploadTracer
+ * @see LoggingUploadTracer
+ */
+public interface UploadTracer extends Serializable {
+
+  /**
+   * Called when a span ends.
+   *
+   * @param span the span which is only valid for the duration of the call
+   */
+  void spanEnded(Span span);
+
+  /**
+   * The type of a span.
+   */
+  enum SpanType {
+
+    /**
+     * The entire upload of a file from the first upload file event or chunk
+     * until the file uploaded or error event.
+     */
+    UPLOAD,
+
+    /**
+     * The processing of the upload file event sent by the client when it
+     * starts uploading a file.
+     */
+    UPLOAD_START,
+
+    /**
+     * The processing of the file uploaded event sent by the client after the
+     * last chunk, including finishing processors and the receiver and firing
+     * the succeeded or failed event.
+     */
+    UPLOAD_FINISH,
+
+    /**
+     * The preparation of a chunk request from streaming started until the
+     * output stream is returned, including opening the receiver.
+     */
+    CHUNK_START,
+
+    /**
+     * The transfer of the chunk data from the time the output stream is
+     * returned until streaming finishes or fails. This includes reading the
+     * request body and writing to the retry buffer or receiver.
+     */
+    CHUNK_TRANSFER,
+
+    /**
+     * The processing of a received chunk including checksum verification,
+     * committing the retry buffer, and recording the chunk in the journal.
+     */
+    CHUNK_FINISH,
+
+    /**
+     * The commit of the retry buffer to the receiver, including the time
+     * waiting for the priority gate.
+     */
+    COMMIT
+  }
+
+  /**
+   * A completed span of an upload.
+   */
+  public static class Span {
+
+    private SpanType type;
+    private String fileId;
+    private String filename;
+    private long chunkIndex;
+    private long bytes;
+    private Plupload.Runtime runtime;
+    private long endTime;
+    private long duration;
+    private Throwable failure;
+
+    /**
+     * Sets the values of the span so the instance can be reused.
+     *
+     * @param type the type of the span
+     * @param fileId the unique ID of the file assigned by the client
+     * @param filename the name of the file provided by the client
+     * @param chunkIndex the zero based index of the chunk or -1
+     * @param bytes the number of bytes covered by the span
+     * @param runtime the client side runtime
+     * @param duration the duration of the span in nanoseconds
+     * @param failure the failure that ended the span or null
+     */
+    void set(SpanType type, String fileId, String filename, long chunkIndex,
+        long bytes, Plupload.Runtime runtime, long duration,
+        Throwable failure) {
+      this.type = type;
+      this.fileId = fileId;
+      this.filename = filename;
+      this.chunkIndex = chunkIndex;
+      this.bytes = bytes;
+      this.runtime = runtime;
+      this.endTime = System.currentTimeMillis();
+      this.duration = duration;
+      this.failure = failure;
+    }
+
+    /**
+     * Returns the type of the span.
+     *
+     * @return the span type
+     */
+    public SpanType getType() {
+      return type;
+    }
+
+    /**
+     * Returns the unique ID of the file assigned by the client.
+     *
+     * @return the file ID or null if the client didn't provide one
+     */
+    public String getFileId() {
+      return fileId;
+    }
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the filename or null if not known yet
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Returns the zero based index of the chunk for chunk spans.
+     *
+     * @return the chunk index or -1 if the span isn't for a chunk
+     */
+    public long getChunkIndex() {
+      return chunkIndex;
+    }
+
+    /**
+     * Returns the number of bytes covered by the span. For chunk spans this is
+     * the number of bytes received in the request, for a commit it is the
+     * number of bytes committed, and for upload spans it is the number of
+     * bytes of the file received so far.
+     *
+     * @return the number of bytes
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Returns the client side runtime used for the upload.
+     *
+     * @return the runtime or null if the uploader hasn't reported it yet
+     */
+    public Plupload.Runtime getRuntime() {
+      return runtime;
+    }
+
+    /**
+     * Returns the time the span started.
+     *
+     * @return the start time in milliseconds since the epoch
+     */
+    public long getStartTime() {
+      return endTime - duration / 1000000;
+    }
+
+    /**
+     * Returns the time the span ended.
+     *
+     * @return the end time in milliseconds since the epoch
+     */
+    public long getEndTime() {
+      return endTime;
+    }
+
+    /**
+     * Returns the duration of the span.
+     *
+     * @return the duration in nanoseconds
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     * Returns the failure that ended the span.
+     *
+     * @return the failure or null if the span ended normally
+     */
+    public Throwable getFailure() {
+      return failure;
+    }
+  }
+}
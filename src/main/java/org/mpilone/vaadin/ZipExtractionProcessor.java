@@ -0,0 +1,277 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.Streams.tryClose;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An upload processor that extracts the entries of a zip file as the upload
+ * data is committed. Each entry is passed to an {@link EntryListener} as soon
+ * as its data arrives so the entries are available moments after the last
+ * chunk is received and the zip never needs to be written to and re-read from
+ * disk.
+ * </p>
+ * <p>
+ * Committed data is passed to a worker thread through a bounded in-memory
+ * pipe so the memory used is fixed regardless of the size of the zip. The
+ * thread receiving the upload never waits for the worker: if the listener
+ * falls behind and the pipe is full, the processor isn't ready and chunks fail
+ * until there is room. The client retries the failed chunks.
+ * </p>
+ * <p>
+ * The listener is called on the worker thread and must return promptly
+ * because the last chunk of the upload waits, while holding the session lock,
+ * for the listener to handle the entries still in the pipe. A slow listener
+ * stalls the session for that time. The listener must never wait for the
+ * session lock (e.g. with
+ * {@link com.vaadin.ui.UI#accessSynchronously(java.lang.Runnable)}) which
+ * would deadlock the session; any UI updates must be done using
+ * {@link com.vaadin.ui.UI#access(java.lang.Runnable)}.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ZipExtractionProcessor implements UploadProcessor {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default capacity of the pipe between the upload and the extraction
+   * worker.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * The executor used when one isn't provided.
+   */
+  private static final ExecutorService DEFAULT_EXECUTOR = Executors.
+      newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "plupload-zip-extraction");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * The log for this class.
+   */
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final EntryListener listener;
+  private transient ExecutorService executor;
+  private final int bufferSize;
+  private transient BoundedPipe pipe;
+  private transient Future<Void> extraction;
+
+  /**
+   * Constructs the processor using the default buffer size and a shared
+   * executor.
+   *
+   * @param listener the listener to notify of each entry
+   */
+  public ZipExtractionProcessor(EntryListener listener) {
+    this(listener, DEFAULT_EXECUTOR, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs the processor.
+   *
+   * @param listener the listener to notify of each entry
+   * @param executor the executor used to run the extraction worker. A worker
+   * is used for the duration of each upload. The executor isn't serialized;
+   * the shared executor is used after the processor is deserialized.
+   * @param bufferSize the capacity in bytes of the pipe between the upload and
+   * the extraction worker
+   */
+  public ZipExtractionProcessor(EntryListener listener,
+      ExecutorService executor, int bufferSize) {
+    this.listener = listener;
+    this.executor = executor;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Restores the processor after it is deserialized. An extraction in
+   * progress isn't serialized and the shared executor is used.
+   *
+   * @param in the stream to read from
+   *
+   * @throws IOException if the processor cannot be read
+   * @throws ClassNotFoundException if a class of the processor is missing
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    executor = DEFAULT_EXECUTOR;
+  }
+
+  @Override
+  public void start(final Context context) throws IOException {
+    final BoundedPipe p = new BoundedPipe(bufferSize);
+    pipe = p;
+
+    try {
+      extraction = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          extract(context, p.getInputStream());
+          return null;
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      throw new IOException("Unable to start zip extraction worker.", ex);
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    return pipe == null || !pipe.isFull();
+  }
+
+  @Override
+  public void process(byte[] data, int off, int len) throws IOException {
+    try {
+      pipe.write(data, off, len);
+    }
+    catch (IOException ex) {
+      // The worker closes the pipe if it fails so report the real cause.
+      throw new IOException("Zip extraction failed.", getFailure(ex));
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    pipe.closeWrite();
+
+    try {
+      extraction.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for zip extraction.",
+          ex);
+    }
+    catch (ExecutionException ex) {
+      throw new IOException("Zip extraction failed.", ex.getCause());
+    }
+    finally {
+      pipe = null;
+      extraction = null;
+    }
+  }
+
+  @Override
+  public void abort(Exception reason) {
+    if (pipe != null) {
+      pipe.abort(reason);
+      pipe = null;
+      extraction = null;
+    }
+  }
+
+  /**
+   * Extracts all the entries from the given zip stream. Any data after the
+   * last entry (i.e. the central directory) is drained so the pipe never
+   * stays full.
+   *
+   * @param context the information about the upload
+   * @param instream the stream of zip data
+   *
+   * @throws IOException if the zip data cannot be read or the listener fails
+   */
+  private void extract(Context context, InputStream instream) throws
+      IOException {
+    ZipInputStream zipInstream = new ZipInputStream(instream);
+    try {
+      ZipEntry entry;
+      while ((entry = zipInstream.getNextEntry()) != null) {
+        listener.entryExtracted(context, entry, new FilterInputStream(
+            zipInstream) {
+              @Override
+              public void close() throws IOException {
+                // Ignore. The zip stream is closed after all entries.
+              }
+            });
+        zipInstream.closeEntry();
+      }
+
+      byte[] buf = new byte[4096];
+      while (instream.read(buf) != -1) {
+        // Drain the central directory.
+      }
+    }
+    catch (IOException | RuntimeException ex) {
+      log.info("Zip extraction of file {} failed.", context.getFilename(), ex);
+      throw ex;
+    }
+    finally {
+      tryClose(zipInstream);
+    }
+  }
+
+  /**
+   * Returns the failure of the extraction worker if it has failed, otherwise
+   * the given exception.
+   *
+   * @param ex the exception to return if the worker hasn't failed
+   *
+   * @return the root cause of the failure
+   */
+  private Throwable getFailure(IOException ex) {
+    if (extraction != null && extraction.isDone()) {
+      try {
+        extraction.get();
+      }
+      catch (ExecutionException ex2) {
+        return ex2.getCause();
+      }
+      catch (InterruptedException | CancellationException ex2) {
+        // Fall through
+      }
+    }
+    return ex;
+  }
+
+  /**
+   * A listener notified of each entry extracted from the zip.
+   */
+  public interface EntryListener extends Serializable {
+
+    /**
+     * Called when the data of an entry starts arriving. The listener must
+     * read the entry data from the given stream before returning. Any data not
+     * read will be skipped. This method is called on the extraction worker
+     * thread. It must return promptly and must never wait for the session
+     * lock (e.g. with
+     * {@link com.vaadin.ui.UI#accessSynchronously(java.lang.Runnable)})
+     * because the upload waits for it while holding the session lock.
+     *
+     * @param context the information about the upload
+     * @param entry the zip entry
+     * @param instream the stream of the entry data which will return the end
+     * of the stream at the end of the entry
+     *
+     * @throws IOException if the entry cannot be handled. The upload will be
+     * reported as failed.
+     */
+    void entryExtracted(Context context, ZipEntry entry, InputStream instream)
+        throws IOException;
+  }
+}
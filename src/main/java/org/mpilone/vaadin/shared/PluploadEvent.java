@@ -0,0 +1,219 @@
+package org.mpilone.vaadin.shared;
+
+import java.io.Serializable;
+
+/**
+ * A single upload lifecycle event generated by the Plupload component. Events
+ * are delivered to the server in batches, either with
+ * {@link PluploadServerRpc#onBatch(java.lang.String, java.util.List)} or
+ * piggybacked on a chunk upload request. Each event has a sequence number
+ * unique to the client so duplicate deliveries can be ignored.
+ *
+ * @author mpilone
+ */
+public class PluploadEvent implements Serializable {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The event type of a file starting to upload.
+   */
+  public static final String UPLOAD_FILE = "uploadFile";
+
+  /**
+   * The event type of an error.
+   */
+  public static final String ERROR = "error";
+
+  /**
+   * The event type of a file completing its upload.
+   */
+  public static final String FILE_UPLOADED = "fileUploaded";
+
+  /**
+   * The event type of the uploader initializing a runtime.
+   */
+  public static final String INIT = "init";
+
+  /**
+   * The event type of upload progress.
+   */
+  public static final String PROGRESS = "progress";
+
+  /**
+   * The event type of the client side timing of a chunk that was sent.
+   */
+  public static final String CHUNK = "chunk";
+
+  private String type;
+  private int seq;
+  private PluploadFile file;
+  private PluploadError error;
+  private String runtime;
+  private int percent;
+  private int chunkSize;
+  private long bytes;
+  private long duration;
+  private int retries;
+  private int status;
+
+  /**
+   * @return the type of the event
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @param type the type of the event
+   */
+  public void setType(String type) {
+    this.type = type;
+  }
+
+  /**
+   * @return the sequence number of the event
+   */
+  public int getSeq() {
+    return seq;
+  }
+
+  /**
+   * @param seq the sequence number of the event
+   */
+  public void setSeq(int seq) {
+    this.seq = seq;
+  }
+
+  /**
+   * @return the file of an upload file or file uploaded event
+   */
+  public PluploadFile getFile() {
+    return file;
+  }
+
+  /**
+   * @param file the file of an upload file or file uploaded event
+   */
+  public void setFile(PluploadFile file) {
+    this.file = file;
+  }
+
+  /**
+   * @return the error of an error event
+   */
+  public PluploadError getError() {
+    return error;
+  }
+
+  /**
+   * @param error the error of an error event
+   */
+  public void setError(PluploadError error) {
+    this.error = error;
+  }
+
+  /**
+   * @return the runtime of an init event
+   */
+  public String getRuntime() {
+    return runtime;
+  }
+
+  /**
+   * @param runtime the runtime of an init event
+   */
+  public void setRuntime(String runtime) {
+    this.runtime = runtime;
+  }
+
+  /**
+   * @return the percent complete of a progress event
+   */
+  public int getPercent() {
+    return percent;
+  }
+
+  /**
+   * @param percent the percent complete of a progress event
+   */
+  public void setPercent(int percent) {
+    this.percent = percent;
+  }
+
+  /**
+   * @return the configured chunk size of a chunk event
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @param chunkSize the configured chunk size of a chunk event
+   */
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @return the number of bytes in the chunk of a chunk event
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @param bytes the number of bytes in the chunk of a chunk event
+   */
+  public void setBytes(long bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * @return the time in milliseconds spent sending the chunk of a chunk event
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  /**
+   * @param duration the time in milliseconds spent sending the chunk of a
+   * chunk event
+   */
+  public void setDuration(long duration) {
+    this.duration = duration;
+  }
+
+  /**
+   * @return the number of retries of the chunk of a chunk event
+   */
+  public int getRetries() {
+    return retries;
+  }
+
+  /**
+   * @param retries the number of retries of the chunk of a chunk event
+   */
+  public void setRetries(int retries) {
+    this.retries = retries;
+  }
+
+  /**
+   * @return the HTTP status of the final attempt of a chunk event or 0 if
+   * there was no response
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @param status the HTTP status of the final attempt of a chunk event or 0
+   * if there was no response
+   */
+  public void setStatus(int status) {
+    this.status = status;
+  }
+}
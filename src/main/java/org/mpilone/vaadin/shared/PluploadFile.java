@@ -7,10 +7,19 @@ package org.mpilone.vaadin.shared;
  * @author mpilone
  */
 public class PluploadFile {
+  private String id;
   private String name;
   private long size;
   private String type;
 
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
   public String getName() {
     return name;
   }
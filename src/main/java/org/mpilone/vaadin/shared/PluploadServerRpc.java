@@ -1,5 +1,7 @@
 package org.mpilone.vaadin.shared;
 
+import java.util.List;
+
 import com.vaadin.shared.communication.ServerRpc;
 
 /**
@@ -21,4 +23,15 @@ public interface PluploadServerRpc extends ServerRpc {
   void onProgress(int percent);
 
   void onStateChanged(int state);
+
+  /**
+   * Delivers a batch of lifecycle events in the order they were generated.
+   * The client uses this method rather than the individual event methods so
+   * events are coalesced into fewer round-trips.
+   *
+   * @param clientId the unique ID of the client side connector instance
+   * which scopes the event sequence numbers
+   * @param events the events to process
+   */
+  void onBatch(String clientId, List<PluploadEvent> events);
 }
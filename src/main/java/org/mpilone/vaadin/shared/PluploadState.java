@@ -29,6 +29,18 @@ public class PluploadState extends JavaScriptComponentState {
    */
   public String url;
 
+  /**
+   * Whether to send the file as multipart/form-data (true) or as a raw binary
+   * stream (false).
+   */
+  public boolean multipart = true;
+
+  /**
+   * The flag which indicates if the component should use the single uploader
+   * shared by all components in the UI rather than building its own.
+   */
+  public boolean sharedUploader = false;
+
   /**
    * This is a comma separated list of runtimes that you want to initialize the
    * uploader instance with. It will try to initialize each runtime in order if
@@ -61,6 +73,18 @@ public class PluploadState extends JavaScriptComponentState {
    */
   public int maxRetries;
 
+  /**
+   * The flag which indicates if the client should report the timing of each
+   * chunk to the server.
+   */
+  public boolean telemetry = true;
+
+  /**
+   * The flag which indicates if the uploader should be initialized as soon as
+   * the component is attached rather than on the first interaction.
+   */
+  public boolean prewarm;
+
   /**
    * The text displayed on the button that initiates the upload.
    */
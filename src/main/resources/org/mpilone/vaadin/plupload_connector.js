@@ -5,6 +5,73 @@
 org_mpilone_vaadin_Plupload = function() {
 	
     var BROWSE_BUTTON_CAPTION = "Choose File";
+    
+    /*
+     * The time in milliseconds that lifecycle events are collected before 
+     * being sent to the server in a single batch.
+     */
+    var EVENT_BATCH_WINDOW = 250;
+    
+    /*
+     * The initial and maximum time in milliseconds before the activation 
+     * triggers are rearmed after the Plupload script failed to load. The 
+     * delay doubles after each failure.
+     */
+    var ACTIVATION_RETRY_DELAY = 5000;
+    var MAX_ACTIVATION_RETRY_DELAY = 60000;
+    
+    /*
+     * The source of the Web Worker that calculates the CRC32 checksum of 
+     * each chunk of a file off the main thread. One chunk is read and 
+     * hashed per turn so cancel messages are handled between chunks.
+     */
+    var HASH_WORKER_SOURCE = [
+      "var table = [];",
+      "for (var n = 0; n < 256; n++) {",
+      "  var c = n;",
+      "  for (var k = 0; k < 8; k++) {",
+      "    c = c & 1 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;",
+      "  }",
+      "  table[n] = c;",
+      "}",
+      "var jobs = [];",
+      "var cancelled = {};",
+      "function crc32(bytes) {",
+      "  var c = -1;",
+      "  for (var i = 0; i < bytes.length; i++) {",
+      "    c = (c >>> 8) ^ table[(c ^ bytes[i]) & 0xFF];",
+      "  }",
+      "  return (c ^ -1) >>> 0;",
+      "}",
+      "function next() {",
+      "  var job = jobs[0];",
+      "  if (cancelled[job.id] || job.offset >= job.blob.size) {",
+      "    delete cancelled[job.id];",
+      "    jobs.shift();",
+      "  }",
+      "  else {",
+      "    var end = Math.min(job.offset + job.chunkSize, job.blob.size);",
+      "    var bytes = new Uint8Array(new FileReaderSync().readAsArrayBuffer(",
+      "        job.blob.slice(job.offset, end)));",
+      "    postMessage({id: job.id, offset: job.offset, ",
+      "        crc: crc32(bytes).toString(16)});",
+      "    job.offset = end;",
+      "  }",
+      "  if (jobs.length > 0) {",
+      "    setTimeout(next, 0);",
+      "  }",
+      "}",
+      "onmessage = function(e) {",
+      "  if (e.data.cancel) {",
+      "    cancelled[e.data.cancel] = true;",
+      "    return;",
+      "  }",
+      "  jobs.push(e.data);",
+      "  if (jobs.length === 1) {",
+      "    setTimeout(next, 0);",
+      "  }",
+      "};"
+    ].join("\n");
     var BUTTON_CLASSNAME = "v-button v-widget";
     var BROWSE_BUTTON_CLASSNAME = "plupload-browse " + BUTTON_CLASSNAME;
     var SUBMIT_BUTTON_CLASSNAME = "plupload-submit " + BUTTON_CLASSNAME;
@@ -36,6 +103,107 @@ org_mpilone_vaadin_Plupload = function() {
     var immediate = false;
     
     var progressPercent = 0;
+    
+    /*
+     * The connector itself for use in nested functions.
+     */
+    var self = this;
+    
+    /*
+     * The flag which indicates if the uploader has been activated (i.e. 
+     * the Plupload script requested).
+     */
+    var activated = false;
+    
+    /*
+     * The time in milliseconds before the next activation retry.
+     */
+    var activationRetryDelay = ACTIVATION_RETRY_DELAY;
+    
+    /*
+     * The flag which indicates if the connector has been unregistered.
+     */
+    var unregistered = false;
+    
+    /*
+     * The observer used to activate the uploader when it becomes visible 
+     * or null if not supported by the browser.
+     */
+    var visibilityObserver = null;
+    
+    /*
+     * The flag which indicates if browsing is currently disabled on the 
+     * uploader.
+     */
+    var browseDisabled = false;
+    
+    /*
+     * The shared uploader this connector is registered with or null if 
+     * the connector has its own uploader.
+     */
+    var shared = null;
+    
+    /*
+     * The state values last applied to the uploader. Used to only apply 
+     * the properties that changed.
+     */
+    var applied = {};
+    
+    /*
+     * The state values last rendered to the DOM.
+     */
+    var rendered = {
+      disabled: false
+    };
+    
+    /*
+     * The flag which indicates if a flush of the DOM writes is scheduled.
+     */
+    var domWritesScheduled = false;
+    
+    /*
+     * The translated upload URL.
+     */
+    var uploadUrl = null;
+    
+    /*
+     * The lifecycle events waiting to be delivered to the server.
+     */
+    var pendingEvents = [];
+    
+    /*
+     * The sequence number of the last lifecycle event generated.
+     */
+    var eventSeq = 0;
+    
+    /*
+     * The sequence number of the last event sent on the chunk request 
+     * currently in flight or 0 if none.
+     */
+    var headerSeq = 0;
+    
+    /*
+     * The timer that will flush the pending events or null if none are 
+     * scheduled.
+     */
+    var flushTimer = null;
+    
+    /*
+     * The chunk checksums calculated by the hash worker mapped by file ID.
+     */
+    var fileHashes = {};
+    
+    /*
+     * The timing of the chunk currently being sent or null if none.
+     */
+    var chunkTiming = null;
+    
+    /*
+     * The unique ID of this connector instance which scopes the event 
+     * sequence numbers on the server.
+     */
+    var clientId = connectorId + "-" + new Date().getTime() + "-" 
+        + Math.floor(Math.random() * 1000000);
 	
 	/*
 	 * Simple method for logging to the JS console if one is available.
@@ -46,6 +214,497 @@ org_mpilone_vaadin_Plupload = function() {
 		}
 	}
 	
+    /*
+     * Returns a plain file object suitable for passing to the server.
+     */
+    function toRpcFile(file) {
+      // It appears that size may be null for HTML4 upload in IE8.
+      return {
+        id: file ? file.id : null,
+        name: file ? file.name : null,
+        size: file && file.size ? file.size : -1,
+        type: file && file.type ? file.type : null
+      };
+    }
+    
+    /*
+     * Returns a new lifecycle event of the given type with all properties 
+     * set so it can be decoded by the server.
+     */
+    function createEvent(type) {
+      return {
+        type: type,
+        seq: 0,
+        file: null,
+        error: null,
+        runtime: null,
+        percent: 0,
+        chunkSize: 0,
+        bytes: 0,
+        duration: 0,
+        retries: 0,
+        status: 0
+      };
+    }
+    
+    /*
+     * Queues the given lifecycle event for delivery to the server. Events 
+     * are delivered in a single batch RPC after a short window or 
+     * piggybacked on the next chunk request, whichever comes first. Only 
+     * the latest progress event is kept. Chunk events don't schedule a 
+     * batch because they are not urgent; they are delivered with the next 
+     * chunk request or batch.
+     */
+    function queueEvent(event) {
+      event.seq = ++eventSeq;
+      
+      if (event.type === "progress") {
+        for (var i = pendingEvents.length - 1; i >= 0; i--) {
+          if (pendingEvents[i].type === "progress") {
+            pendingEvents.splice(i, 1);
+          }
+        }
+      }
+      pendingEvents.push(event);
+      
+      if (!flushTimer && event.type !== "chunk") {
+        flushTimer = window.setTimeout(flushEvents, EVENT_BATCH_WINDOW);
+      }
+    }
+    
+    /*
+     * Delivers all pending events to the server in a single RPC.
+     */
+    function flushEvents() {
+      if (flushTimer) {
+        window.clearTimeout(flushTimer);
+        flushTimer = null;
+      }
+      
+      if (pendingEvents.length > 0 && !unregistered) {
+        rpcProxy.onBatch(clientId, pendingEvents);
+        pendingEvents = [];
+      }
+    }
+    
+    /*
+     * Adds the pending events (except progress which is only useful as a 
+     * poll for server state) to the headers of the next chunk request.
+     */
+    function setEventHeaders(headers) {
+      var events = [];
+      for (var i = 0; i < pendingEvents.length; i++) {
+        if (pendingEvents[i].type !== "progress") {
+          events.push(pendingEvents[i]);
+        }
+      }
+      
+      if (events.length > 0) {
+        headers["X-Plupload-Client-Id"] = clientId;
+        headers["X-Plupload-Events"] = 
+            encodeURIComponent(JSON.stringify(events));
+        headerSeq = events[events.length - 1].seq;
+      }
+      else {
+        delete headers["X-Plupload-Client-Id"];
+        delete headers["X-Plupload-Events"];
+        headerSeq = 0;
+      }
+    }
+    
+    /*
+     * Called when a chunk request completes successfully. The events sent 
+     * with the request have been delivered so they are removed from the 
+     * pending events.
+     */
+    function chunkDelivered() {
+      var remaining = [];
+      for (var i = 0; i < pendingEvents.length; i++) {
+        if (pendingEvents[i].seq > headerSeq 
+            || pendingEvents[i].type === "progress") {
+          remaining.push(pendingEvents[i]);
+        }
+      }
+      pendingEvents = remaining;
+      headerSeq = 0;
+    }
+    
+    /*
+     * Starts timing the next chunk of the given file.
+     */
+    function startChunkTiming(file) {
+      chunkTiming = {
+        fileId: file.id,
+        start: new Date().getTime(),
+        offset: file.loaded || 0,
+        loaded: file.loaded || 0,
+        retries: 0
+      };
+    }
+    
+    /*
+     * Updates the timing of the current chunk with the progress of the 
+     * given file. Plupload doesn't report retries so a retry is detected 
+     * when the progress of the chunk goes backwards as the chunk is sent 
+     * again. Retries of attempts that failed before reporting progress are 
+     * not counted.
+     */
+    function updateChunkTiming(file) {
+      if (chunkTiming && chunkTiming.fileId === file.id) {
+        if (file.loaded < chunkTiming.loaded) {
+          chunkTiming.retries++;
+        }
+        chunkTiming.loaded = file.loaded;
+      }
+    }
+    
+    /*
+     * Queues a chunk event with the timing of the current chunk of the 
+     * given file if telemetry is enabled. The status is the HTTP status of 
+     * the final attempt, if known.
+     */
+    function reportChunkTiming(up, file, status) {
+      var timing = chunkTiming;
+      chunkTiming = null;
+      if (!timing || !file || timing.fileId !== file.id 
+          || !self.getState().telemetry) {
+        return;
+      }
+      
+      var e = createEvent("chunk");
+      e.runtime = up.runtime;
+      e.chunkSize = self.getState().chunkSize;
+      e.bytes = Math.max(0, (file.loaded || 0) - timing.offset);
+      e.duration = new Date().getTime() - timing.start;
+      e.retries = timing.retries;
+      e.status = status || 0;
+      queueEvent(e);
+    }
+    
+    /*
+     * Returns the hash worker shared by all connectors on the page, 
+     * creating it if required, or null if Web Workers are not available.
+     */
+    function getHasher() {
+      var hasher = window.org_mpilone_vaadin_Plupload_hasher;
+      if (hasher !== undefined) {
+        return hasher;
+      }
+      
+      hasher = null;
+      try {
+        if (window.Worker && window.Blob && window.URL) {
+          var url = window.URL.createObjectURL(new Blob([HASH_WORKER_SOURCE], 
+              {type: "text/javascript"}));
+          hasher = {
+            worker: new Worker(url),
+            listeners: {}
+          };
+          hasher.worker.onmessage = function(e) {
+            var listener = hasher.listeners[e.data.id];
+            if (listener) {
+              listener(e.data);
+            }
+          };
+        }
+      }
+      catch (ex) {
+        // Most likely blocked by a content security policy.
+        console_log("Unable to create hash worker: " + ex);
+        hasher = null;
+      }
+      
+      window.org_mpilone_vaadin_Plupload_hasher = hasher;
+      return hasher;
+    }
+    
+    /*
+     * Starts calculating the checksum of each chunk of the given file in 
+     * the hash worker. Only the HTML5 runtime provides access to the 
+     * native file. The worker normally stays ahead of the upload; chunks 
+     * that are sent before their checksum is available are not verified.
+     */
+    function startHashing(up, file) {
+      var chunkSize = self.getState().chunkSize;
+      var hash = fileHashes[file.id];
+      if (hash && hash.chunkSize === chunkSize) {
+        return;
+      }
+      stopHashing(file);
+      
+      var hasher = up.runtime === "html5" ? getHasher() : null;
+      var nativeFile = hasher && file.getNative ? file.getNative() : null;
+      if (!nativeFile) {
+        return;
+      }
+      
+      hash = fileHashes[file.id] = {
+        jobId: connectorId + "_" + file.id,
+        chunkSize: chunkSize,
+        checksums: {}
+      };
+      hasher.listeners[hash.jobId] = function(result) {
+        hash.checksums[result.offset] = result.crc;
+      };
+      hasher.worker.postMessage({
+        id: hash.jobId,
+        blob: nativeFile,
+        chunkSize: chunkSize > 0 ? chunkSize : nativeFile.size,
+        offset: 0
+      });
+    }
+    
+    /*
+     * Stops calculating the checksums of the given file and releases the 
+     * calculated checksums.
+     */
+    function stopHashing(file) {
+      var hash = file ? fileHashes[file.id] : null;
+      if (hash) {
+        var hasher = getHasher();
+        delete hasher.listeners[hash.jobId];
+        hasher.worker.postMessage({cancel: hash.jobId});
+        delete fileHashes[file.id];
+      }
+    }
+    
+    /*
+     * Adds the checksum of the next chunk of the given file to the headers 
+     * if it has been calculated.
+     */
+    function setChecksumHeader(headers, file) {
+      var hash = fileHashes[file.id];
+      var crc = hash ? hash.checksums[file.loaded] : null;
+      if (crc) {
+        headers["X-Plupload-Chunk-Checksum"] = file.loaded + ":" + crc;
+      }
+      else {
+        delete headers["X-Plupload-Chunk-Checksum"];
+      }
+    }
+    
+    /*
+     * Adds the offset of the next chunk of the given file to the headers so 
+     * the server can skip data already received from a failed attempt when 
+     * the chunk is retried.
+     */
+    function setOffsetHeader(headers, file) {
+      headers["X-Plupload-Chunk-Offset"] = String(file.loaded || 0);
+    }
+    
+    /*
+     * Returns the key used to store the resume token of the given file. The 
+     * key is derived from the name, size, and modification time so the same 
+     * file selected again (e.g. after a page reload) maps to the same token. 
+     * Returns null if the modification time isn't known because the key 
+     * would not identify the file.
+     */
+    function getResumeKey(file) {
+      var nativeFile = file.getNative ? file.getNative() : null;
+      var modified = nativeFile && nativeFile.lastModified;
+      if (!modified && nativeFile && nativeFile.lastModifiedDate) {
+        modified = nativeFile.lastModifiedDate.getTime();
+      }
+      if (!modified) {
+        return null;
+      }
+      return "plupload.resume." + file.name + "|" + file.origSize + "|" 
+          + modified;
+    }
+    
+    /*
+     * Adds the resume token of the given file to the headers so the server 
+     * can resume an upload of the same file that was interrupted by a 
+     * server restart. The token is created on the first attempt and kept in 
+     * local storage until the file is uploaded.
+     */
+    function setResumeTokenHeader(headers, file) {
+      var key = getResumeKey(file);
+      if (!key) {
+        return;
+      }
+      
+      try {
+        var token = window.localStorage.getItem(key);
+        if (!token) {
+          token = createResumeToken();
+          window.localStorage.setItem(key, token);
+        }
+        headers["X-Plupload-Resume-Token"] = token;
+      }
+      catch (ex) {
+        // Local storage is unavailable (e.g. disabled or full) so the 
+        // upload simply can't be resumed.
+      }
+    }
+    
+    /*
+     * Removes the resume token of the given file from local storage.
+     */
+    function clearResumeToken(file) {
+      var key = getResumeKey(file);
+      try {
+        if (key) {
+          window.localStorage.removeItem(key);
+        }
+      }
+      catch (ex) {
+        // Ignore. See setResumeTokenHeader.
+      }
+    }
+    
+    /*
+     * Returns a new random resume token. The token is the only credential 
+     * needed to resume an upload so a cryptographic source is used when 
+     * available.
+     */
+    function createResumeToken() {
+      var words = new Array(4);
+      var crypto = window.crypto || window.msCrypto;
+      if (crypto && crypto.getRandomValues) {
+        words = crypto.getRandomValues(new Uint32Array(4));
+      }
+      else {
+        for (var i = 0; i < words.length; i++) {
+          words[i] = Math.floor(Math.random() * 0x100000000);
+        }
+      }
+      
+      var token = "";
+      for (var j = 0; j < words.length; j++) {
+        token += ("0000000" + words[j].toString(16)).slice(-8);
+      }
+      return token;
+    }
+    
+    /*
+     * The uploader event handlers for this connector. When using a shared 
+     * uploader, the events for files selected through this connector are 
+     * routed to these handlers.
+     */
+    var handlers = {
+      
+      beforeUpload: function(up, file) {
+        // Identify the file on every chunk request so the server can 
+        // find the upload session even if the RPC hasn't arrived.
+        up.settings.headers = {
+          "X-Plupload-File-Id": file.id
+        };
+        
+        if (shared) {
+          // The shared uploader is configured per file with the settings 
+          // of the connector that owns the file.
+          var state = self.getState();
+          up.settings.headers["X-Plupload-Connector-Id"] = connectorId;
+          up.settings.chunk_size = state.chunkSize;
+          up.settings.max_retries = state.maxRetries;
+        }
+        
+        setEventHeaders(up.settings.headers);
+        setResumeTokenHeader(up.settings.headers, file);
+        
+        startChunkTiming(file);
+        startHashing(up, file);
+        setOffsetHeader(up.settings.headers, file);
+        setChecksumHeader(up.settings.headers, file);
+      },
+      
+      chunkUploaded: function(up, file, info) {
+        chunkDelivered();
+        reportChunkTiming(up, file, info ? info.status : 0);
+        startChunkTiming(file);
+        
+        setEventHeaders(up.settings.headers);
+        setOffsetHeader(up.settings.headers, file);
+        setChecksumHeader(up.settings.headers, file);
+      },
+      
+      uploadFile: function(up, file) {
+        console_log("Upload file: " + file.name + " with size " + file.size);
+        
+        progressPercent = 0;
+        var e = createEvent("uploadFile");
+        e.file = toRpcFile(file);
+        queueEvent(e);
+      },
+      
+      error: function(up, error) {
+        var output = '';
+        for (property in error) {
+          output += property + ': ' + error[property]+'; ';
+        }
+        console_log(output);
+        
+        stopHashing(error.file);
+        reportChunkTiming(up, error.file, error.status);
+        
+        var e = createEvent("error");
+        e.error = {
+          code: error.code,
+          message: error.message,
+          file: toRpcFile(error.file)
+        };
+        queueEvent(e);
+      },
+      
+      filesAdded: function(up, files) {
+        console_log("Files added: " + files[0].name);
+        fileInput.value = files[0].name;
+        
+        // Get a head start on the checksums before the upload starts.
+        startHashing(up, files[0]);
+        
+        if (immediate && up.state === plupload.STOPPED) {
+          console_log("Starting immediately.");
+          window.setTimeout( function() { up.start(); }, 200);
+        }
+      },
+      
+      fileUploaded: function(up, file, info) {
+        console_log("FileUploaded: " + file.name);
+        stopHashing(file);
+        clearResumeToken(file);
+        
+        // The last chunk request completed so the events sent with it 
+        // were delivered.
+        chunkDelivered();
+        reportChunkTiming(up, file, info ? info.status : 0);
+        
+        var e = createEvent("fileUploaded");
+        e.file = toRpcFile(file);
+        queueEvent(e);
+      },
+      
+      init: function(up) {
+        console_log("Init: " + up.runtime);
+        var e = createEvent("init");
+        e.runtime = up.runtime;
+        queueEvent(e);
+      },
+      
+      uploadProgress: function(up, file) {
+        console_log("UploadProgress: " + file.percent);
+        updateChunkTiming(file);
+        
+        // Throttle the progress events so we don't flood the RPC channel.
+        if (file.percent - progressPercent > 5) {
+          var e = createEvent("progress");
+          e.percent = file.percent;
+          queueEvent(e);
+          progressPercent = file.percent;
+        }
+      },
+      
+      filesRemoved: function(up, files) {
+        console_log("Files removed: " + files[0].name);
+        fileInput.value = "";
+        
+        for (var i = 0; i < files.length; i++) {
+          stopHashing(files[i]);
+        }
+      }
+    };
+    
 	/*
 	 * Builds and returns a Plupload uploader component using 
 	 * the given state information.
@@ -60,55 +719,17 @@ org_mpilone_vaadin_Plupload = function() {
 		    max_file_size : state.maxFileSize,
 		    chunk_size: state.chunkSize,
             max_retries: state.maxRetries,
+		    multipart: state.multipart,
 		    multi_selection: false,
 		    url: uploadUrl,
 		    flash_swf_url: flashSwfUrl,
 		    silverlight_xap_url: silverlightXapUrl
 		});
 		
-		uploader.bind('UploadFile', function(up, file) {
-            console_log("Upload file: " + file.name + " with size " + file.size);
-            
-            progressPercent = 0;
-            
-            // It appears that size may be null for HTML4 upload in IE8.
-            var f = {
-              name: file.name,
-              size: file.size ? file.size : -1,
-              type: file.type ? file.type : null
-            };
-			rpcProxy.onUploadFile(f);
-		});
-
-		uploader.bind('Error', function(up, error) {
-			var output = '';
-			for (property in error) {
-			  output += property + ': ' + error[property]+'; ';
-			}
-			console_log(output);
-            
-            var e = {
-              code: error.code,
-              message: error.message,
-              file: {
-                name: error.file ? error.file.name : null,
-                size: error.file ? error.file.size : -1,
-                type: error.file ? error.file.type : null
-              }
-            };
-            
-			rpcProxy.onError(e);
-		});
-		
-		uploader.bind('FilesAdded', function(up, files) {
-			console_log("Files added: " + files[0].name);
-            fileInput.value = files[0].name;
-            
-            if (immediate && uploader.state === plupload.STOPPED) {
-              console_log("Starting immediately.");
-              window.setTimeout( function() { uploader.start(); }, 200);
-            }
-		});
+		uploader.bind('BeforeUpload', handlers.beforeUpload);
+		uploader.bind('UploadFile', handlers.uploadFile);
+		uploader.bind('Error', handlers.error);
+		uploader.bind('FilesAdded', handlers.filesAdded);
 	
 	    uploader.bind('UploadComplete', function(up, files) {
 	    	console_log("Upload is complete");
@@ -117,51 +738,302 @@ org_mpilone_vaadin_Plupload = function() {
             uploader.splice(0, files.length);
 	    });
         
-        uploader.bind('StateChanged', function(up) {
-          console_log("StateChanged: " + up.state);
-          rpcProxy.onStateChanged(up.state);
-        });
-	    
-	    uploader.bind('FileUploaded', function(up, file) {
-	    	console_log("FileUploaded: " + file.name);
-            
-            var f = {
-              name: file.name,
-              size: file.size ? file.size : -1,
-              type: file.type ? file.type : null
-            };
-            
-	        rpcProxy.onFileUploaded(f);
-	    });
-	    
-	    uploader.bind('Init', function(up) {
-	    	console_log("Init: " + up.runtime);
-            rpcProxy.onInit(up.runtime);
-	    });
+        uploader.bind('ChunkUploaded', handlers.chunkUploaded);
+	    uploader.bind('FileUploaded', handlers.fileUploaded);
+	    uploader.bind('Init', handlers.init);
 
 	    uploader.bind('PostInit', function(up) {
 	    	console_log("PostInit: " + up.runtime);
 	    });
         
-	    uploader.bind('UploadProgress', function(up, file) {
-	    	console_log("UploadProgress: " + file.percent);
-            
-            // Throttle the progress events so we don't flood the RPC channel.
-            if (file.percent - progressPercent > 5) {
-               rpcProxy.onProgress(file.percent);
-               progressPercent = file.percent;
-            }
-	    });
-	    
-	    uploader.bind('FilesRemoved', function(up, files) {
-	    	console_log("Files removed: " + files[0].name);
-            fileInput.value = "";
-	    });
+	    uploader.bind('UploadProgress', handlers.uploadProgress);
+	    uploader.bind('FilesRemoved', handlers.filesRemoved);
 	    
 		uploader.init();
 	    
 	    return uploader;
 	}
+    
+    /*
+     * Returns the uploader shared by all connectors with the given upload 
+     * URL (i.e. all shared connectors in the same UI), building it if 
+     * required. The shared uploader uses a single HTML5 runtime and a 
+     * hidden browse button. Each file is stamped with the ID of the 
+     * connector that opened the file dialog and all file events are 
+     * routed to the handlers of that connector.
+     */
+    function getSharedUploader(uploadUrl) {
+      var registry = window.org_mpilone_vaadin_Plupload_shared;
+      if (!registry) {
+        registry = window.org_mpilone_vaadin_Plupload_shared = {};
+      }
+      
+      var manager = registry[uploadUrl];
+      if (manager) {
+        return manager;
+      }
+      
+      console_log("Building shared uploader for " + uploadUrl);
+      
+      manager = registry[uploadUrl] = {
+        url: uploadUrl,
+        connectors: {},
+        count: 0,
+        activeId: null
+      };
+      
+      manager.container = document.createElement("div");
+      manager.container.style.position = "absolute";
+      manager.container.style.left = "-10000px";
+      manager.container.style.width = "1px";
+      manager.container.style.height = "1px";
+      manager.container.style.overflow = "hidden";
+      document.body.appendChild(manager.container);
+      
+      manager.browseButton = document.createElement("div");
+      manager.container.appendChild(manager.browseButton);
+      
+      // Returns the handlers of the connector that owns the file.
+      function route(file) {
+        return file ? manager.connectors[file.connectorId] : null;
+      }
+      
+      // Calls the given handler on every registered connector.
+      function broadcast(name, up, arg) {
+        for (var id in manager.connectors) {
+          manager.connectors[id][name](up, arg);
+        }
+      }
+      
+      var uploader = manager.uploader = new plupload.Uploader({
+        runtimes: "html5",
+        browse_button: manager.browseButton,
+        container: manager.container,
+        max_file_size: 0,
+        multipart: true,
+        multi_selection: false,
+        url: uploadUrl
+      });
+      
+      uploader.bind('BeforeUpload', function(up, file) {
+        var h = route(file);
+        if (h) {
+          h.beforeUpload(up, file);
+        }
+      });
+      
+      uploader.bind('UploadFile', function(up, file) {
+        var h = route(file);
+        if (h) {
+          h.uploadFile(up, file);
+        }
+      });
+      
+      uploader.bind('Error', function(up, error) {
+        if (error.file && !error.file.connectorId) {
+          error.file.connectorId = manager.activeId;
+        }
+        
+        var h = error.file ? route(error.file) : null;
+        if (h) {
+          h.error(up, error);
+        }
+        else if (!error.file) {
+          broadcast("error", up, error);
+        }
+      });
+      
+      uploader.bind('FilesAdded', function(up, files) {
+        for (var i = 0; i < files.length; i++) {
+          files[i].connectorId = manager.activeId;
+          var h = route(files[i]);
+          if (h) {
+            h.sharedFileAdded(up, files[i]);
+          }
+        }
+      });
+      
+      uploader.bind('UploadComplete', function(up, files) {
+        // Remove completed files but keep the files held for a later submit.
+        for (var i = files.length - 1; i >= 0; i--) {
+          if (!files[i].held && (files[i].status === plupload.DONE 
+              || files[i].status === plupload.FAILED)) {
+            up.removeFile(files[i]);
+          }
+        }
+      });
+      
+      uploader.bind('ChunkUploaded', function(up, file, info) {
+        var h = route(file);
+        if (h) {
+          h.chunkUploaded(up, file, info);
+        }
+      });
+      
+      uploader.bind('FileUploaded', function(up, file, info) {
+        var h = route(file);
+        if (h) {
+          h.fileUploaded(up, file, info);
+        }
+      });
+      
+      uploader.bind('Init', function(up) {
+        broadcast("init", up);
+      });
+      
+      uploader.bind('UploadProgress', function(up, file) {
+        var h = route(file);
+        if (h) {
+          h.uploadProgress(up, file);
+        }
+      });
+      
+      uploader.bind('FilesRemoved', function(up, files) {
+        for (var i = 0; i < files.length; i++) {
+          var h = route(files[i]);
+          if (h) {
+            h.filesRemoved(up, [files[i]]);
+          }
+        }
+      });
+      
+      uploader.init();
+      
+      return manager;
+    }
+    
+    /*
+     * Returns the files in the shared uploader queue that belong to this 
+     * connector.
+     */
+    function getSharedFiles() {
+      var owned = [];
+      var files = shared.uploader.files;
+      for (var i = 0; i < files.length; i++) {
+        if (files[i].connectorId === connectorId) {
+          owned.push(files[i]);
+        }
+      }
+      return owned;
+    }
+    
+    /*
+     * Called by the shared uploader when a file is selected through this 
+     * connector. The file replaces any file previously selected and is 
+     * either started immediately or held until submitted.
+     */
+    handlers.sharedFileAdded = function(up, file) {
+      var state = self.getState();
+      
+      // The shared uploader has no size limit so enforce the limit of 
+      // this connector.
+      if (state.maxFileSize > 0 && file.size > state.maxFileSize) {
+        up.removeFile(file);
+        handlers.error(up, {
+          code: plupload.FILE_SIZE_ERROR,
+          message: plupload.translate('File size error.'),
+          file: file
+        });
+        return;
+      }
+      
+      // Only a single file can be selected per connector.
+      var owned = getSharedFiles();
+      for (var i = 0; i < owned.length; i++) {
+        if (owned[i] !== file && owned[i].status !== plupload.UPLOADING) {
+          up.removeFile(owned[i]);
+        }
+      }
+      
+      if (!immediate) {
+        // Prevent the upload of the file until submitted.
+        file.status = plupload.DONE;
+        file.held = true;
+      }
+      
+      handlers.filesAdded(up, [file]);
+    };
+    
+    /*
+     * Releases the held file of this connector to the shared uploader and 
+     * starts the upload if the uploader is idle.
+     */
+    function submitShared() {
+      var owned = getSharedFiles();
+      for (var i = 0; i < owned.length; i++) {
+        if (owned[i].held) {
+          owned[i].held = false;
+          owned[i].status = plupload.QUEUED;
+        }
+      }
+      
+      if (shared.uploader.state === plupload.STOPPED) {
+        console_log("Starting upload.");
+        shared.uploader.start();
+      }
+    }
+    
+    /*
+     * Stops the upload of the file of this connector in the shared 
+     * uploader without affecting the uploads of other connectors.
+     */
+    function interruptShared() {
+      var owned = getSharedFiles();
+      for (var i = 0; i < owned.length; i++) {
+        if (owned[i].status === plupload.UPLOADING) {
+          console_log("Aborting upload.");
+          shared.uploader.removeFile(owned[i]);
+        }
+      }
+    }
+    
+    /*
+     * Registers this connector with the shared uploader for the given URL.
+     */
+    function joinShared(uploadUrl) {
+      shared = getSharedUploader(uploadUrl);
+      shared.connectors[connectorId] = handlers;
+      shared.count++;
+      
+      // The runtime may already be initialized by another connector.
+      if (shared.uploader.runtime) {
+        handlers.init(shared.uploader);
+      }
+    }
+    
+    /*
+     * Unregisters this connector from the shared uploader, removing any 
+     * of its files. The shared uploader is destroyed when the last 
+     * connector leaves.
+     */
+    function leaveShared() {
+      if (!shared) {
+        return;
+      }
+      
+      var manager = shared;
+      var owned = getSharedFiles();
+      delete manager.connectors[connectorId];
+      manager.count--;
+      shared = null;
+      
+      try {
+        for (var i = 0; i < owned.length; i++) {
+          manager.uploader.removeFile(owned[i]);
+        }
+        
+        if (manager.count === 0) {
+          console_log("Destroying shared uploader for " + manager.url);
+          
+          delete window.org_mpilone_vaadin_Plupload_shared[manager.url];
+          manager.uploader.destroy();
+          manager.container.parentNode.removeChild(manager.container);
+        }
+      }
+      catch (ex) {
+        // no op
+      }
+    }
 	
 /**
    * Called when the component is being unregistered (i.e. removed) from the UI. 
@@ -170,6 +1042,24 @@ org_mpilone_vaadin_Plupload = function() {
    * @returns {undefined}
    */
   this.onUnregister = function() {
+    unregistered = true;
+    
+    if (visibilityObserver) {
+      visibilityObserver.disconnect();
+      visibilityObserver = null;
+    }
+    
+    leaveShared();
+    
+    if (flushTimer) {
+      window.clearTimeout(flushTimer);
+      flushTimer = null;
+    }
+    
+    for (var id in fileHashes) {
+      stopHashing({id: id});
+    }
+    
     if (uploader) {
       console_log("Stopping and cleaning up uploader component.");
 
@@ -185,6 +1075,165 @@ org_mpilone_vaadin_Plupload = function() {
     }
   };
 	
+    /*
+     * Returns the translated URL of the resource with the given key or 
+     * null if the resource isn't set.
+     */
+    function getResourceUrl(key) {
+      var resource = self.getState().resources[key];
+      return resource ? self.translateVaadinUri(resource.uRL) : null;
+    }
+    
+    /*
+     * Loads the Plupload script from the given URL if it isn't already 
+     * loaded and calls the callback when it is available or with an error 
+     * message if it could not be loaded. The script is shared by all 
+     * connectors on the page so it is only requested once at a time. A 
+     * failed load is forgotten so the next call requests the script again.
+     */
+    function loadPlupload(scriptUrl, callback) {
+      if (window.plupload) {
+        callback(null);
+        return;
+      }
+      
+      var loader = window.org_mpilone_vaadin_Plupload_loader;
+      if (!loader) {
+        loader = window.org_mpilone_vaadin_Plupload_loader = {
+          callbacks: []
+        };
+        
+        console_log("Loading Plupload from " + scriptUrl);
+        
+        var script = document.createElement("script");
+        
+        // Notifies the queued callbacks once the script loads or fails.
+        var finish = function(error) {
+          script.onload = script.onreadystatechange = script.onerror = null;
+          
+          if (error) {
+            console_log(error);
+            
+            // Allow a later call to retry.
+            script.parentNode.removeChild(script);
+            window.org_mpilone_vaadin_Plupload_loader = null;
+          }
+          
+          var callbacks = loader.callbacks;
+          loader.callbacks = [];
+          for (var i = 0; i < callbacks.length; i++) {
+            callbacks[i](error);
+          }
+        };
+        
+        script.type = "text/javascript";
+        script.src = scriptUrl;
+        script.onload = script.onreadystatechange = function() {
+          if (!this.readyState || this.readyState === "loaded" 
+              || this.readyState === "complete") {
+            // Older IE reports a failed request as loaded as well.
+            finish(window.plupload ? null : "Unable to load Plupload from " 
+                + scriptUrl);
+          }
+        };
+        script.onerror = function() {
+          finish("Unable to load Plupload from " + scriptUrl);
+        };
+        document.getElementsByTagName("head")[0].appendChild(script);
+      }
+      
+      loader.callbacks.push(callback);
+    }
+    
+    /*
+     * Adds an event listener to the given element in a way that works 
+     * in older versions of IE.
+     */
+    function addListener(el, type, listener) {
+      if (el.addEventListener) {
+        el.addEventListener(type, listener, false);
+      }
+      else if (el.attachEvent) {
+        el.attachEvent("on" + type, listener);
+      }
+    }
+    
+    /*
+     * Removes an event listener added with addListener.
+     */
+    function removeListener(el, type, listener) {
+      if (el.removeEventListener) {
+        el.removeEventListener(type, listener, false);
+      }
+      else if (el.detachEvent) {
+        el.detachEvent("on" + type, listener);
+      }
+    }
+    
+    /*
+     * Activates the uploader by loading the Plupload script and building 
+     * the uploader. Activation happens on the first interaction with or 
+     * visibility of the component, or immediately if it is pre-warmed, so 
+     * pages that never upload don't pay for the Plupload runtime.
+     */
+    function activate() {
+      if (activated) {
+        return;
+      }
+      activated = true;
+      
+      removeListener(container, "mouseover", activate);
+      removeListener(container, "touchstart", activate);
+      removeListener(container, "focusin", activate);
+      if (visibilityObserver) {
+        visibilityObserver.disconnect();
+        visibilityObserver = null;
+      }
+      
+      loadPlupload(getResourceUrl("pluploadScript"), function(error) {
+        if (unregistered) {
+          return;
+        }
+        
+        if (error) {
+          // Rearm the triggers after a delay so the next interaction 
+          // retries without hammering an unavailable server.
+          window.setTimeout(function() {
+            if (!unregistered) {
+              activated = false;
+              addActivationTriggers();
+            }
+          }, activationRetryDelay);
+          activationRetryDelay = Math.min(activationRetryDelay * 2, 
+              MAX_ACTIVATION_RETRY_DELAY);
+        }
+        else {
+          activationRetryDelay = ACTIVATION_RETRY_DELAY;
+          applyState();
+        }
+      });
+    }
+    
+    /*
+     * Registers the triggers that will activate the uploader.
+     */
+    function addActivationTriggers() {
+      addListener(container, "mouseover", activate);
+      addListener(container, "touchstart", activate);
+      addListener(container, "focusin", activate);
+      
+      if (window.IntersectionObserver) {
+        visibilityObserver = new IntersectionObserver(function(entries) {
+          for (var i = 0; i < entries.length; i++) {
+            if (entries[i].isIntersecting) {
+              activate();
+            }
+          }
+        });
+        visibilityObserver.observe(container);
+      }
+    }
+	
     /*
      * Called when the state on the server side changes. If the state 
      * changes require a rebuild of the upload component, it will be 
@@ -192,28 +1241,161 @@ org_mpilone_vaadin_Plupload = function() {
      * to the existing upload instance.
      */
 	this.onStateChange = function() {
-		
-		var state = this.getState();
-
 		console_log("State change!");
+        
+        applyState();
+	};
+    
+    /*
+     * Returns true if the value of the given state property differs from 
+     * the value last applied.
+     */
+    function changed(state, key) {
+      return applied[key] !== state[key];
+    }
+    
+    /*
+     * Sets the text of the given element without parsing it as HTML.
+     */
+    function setText(el, text) {
+      if ("textContent" in el) {
+        el.textContent = text;
+      }
+      else {
+        el.innerText = text;
+      }
+    }
+    
+    /*
+     * Schedules a flush of the pending DOM writes. All writes caused by a 
+     * series of state changes are applied together in the next animation 
+     * frame, followed by a single uploader refresh if the layout changed.
+     */
+    function scheduleDomWrites() {
+      if (domWritesScheduled) {
+        return;
+      }
+      domWritesScheduled = true;
+      
+      if (window.requestAnimationFrame) {
+        window.requestAnimationFrame(flushDomWrites);
+      }
+      else {
+        window.setTimeout(flushDomWrites, 0);
+      }
+    }
+    
+    /*
+     * Applies the pending DOM writes using the latest state.
+     */
+    function flushDomWrites() {
+      domWritesScheduled = false;
+      if (unregistered) {
+        return;
+      }
+      
+      var state = self.getState();
+      var layoutChanged = false;
+      
+      if (rendered.buttonCaption !== state.buttonCaption 
+          || rendered.immediate !== immediate) {
+        setText(submitBtn.caption, state.buttonCaption);
+        
+        if (immediate && submitBtn.root.parentNode === container) {
+          // Remove the submit button and file name input.
+          container.removeChild(fileInput);
+          container.removeChild(submitBtn.root);
+        }
+        else if (!immediate && submitBtn.root.parentNode !== container) {
+          // Add the submit button and file name input.
+          container.appendChild(fileInput);
+          container.appendChild(submitBtn.root);
+        }
+        setText(browseBtn.caption, immediate ? state.buttonCaption : 
+            BROWSE_BUTTON_CAPTION);
+        
+        rendered.buttonCaption = state.buttonCaption;
+        rendered.immediate = immediate;
+        layoutChanged = true;
+      }
+      
+      if (rendered.disabled !== submitBtn.disabled) {
+        var suffix = submitBtn.disabled ? " v-disabled" : "";
+        browseBtn.root.className = BROWSE_BUTTON_CLASSNAME + suffix;
+        submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME + suffix;
+        rendered.disabled = submitBtn.disabled;
+      }
+      
+      // Refresh to make sure the runtime is positioned correctly over the 
+      // browse button. Only needed when the size or position of the 
+      // buttons may have changed.
+      if (layoutChanged && uploader) {
+        uploader.refresh();
+      }
+    }
+    
+    /*
+     * Applies the current state to the DOM and, if the uploader has been 
+     * activated, to the uploader. Only the properties that changed since 
+     * the last application are applied.
+     */
+    function applyState() {
+		var state = self.getState();
+		
+		// Apply state that only affects the DOM. The flags are updated 
+        // immediately but the DOM writes are batched.
+        immediate = state.immediate;
+        submitBtn.disabled = !state.enabled;
+        if (rendered.buttonCaption !== state.buttonCaption 
+            || rendered.immediate !== immediate 
+            || rendered.disabled !== submitBtn.disabled) {
+          scheduleDomWrites();
+        }
+        
+        // A pre-warmed uploader is activated immediately rather than on the 
+        // first interaction. Activation applies the state once the script 
+        // is loaded.
+        if (!activated && state.prewarm) {
+          activate();
+          return;
+        }
+        
+        // The uploader can't be built until the script is loaded.
+        if (!activated || !window.plupload) {
+          return;
+        }
 		
-		var uploadUrl = this.translateVaadinUri(state.url);
-        var flashSwfUrl = this.translateVaadinUri(state.resources["flashSwfUrl"].uRL);
-		var silverlightXapUrl = this.translateVaadinUri(state.resources["silverlightSwfUrl"].uRL);
+        if (changed(state, "url")) {
+          uploadUrl = self.translateVaadinUri(state.url);
+        }
+        
+        if (state.sharedUploader) {
+          applySharedState(uploadUrl, state);
+          applied = {};
+          return;
+        }
+        leaveShared();
 		
 		// Check for any state changes that require a complete rebuild of the uploader.
-		var rebuild = uploader === undefined;
-		//rebuild = rebuild || uploader.settings.url !== uploadUrl;
-		rebuild = rebuild || uploader.settings.runtimes !== state.runtimes;
+		var rebuild = !uploader || changed(state, "runtimes");
 		
 		// If we need to rebuild, destroy the current uploader and recreate it.
 		if (rebuild) {
-			if (uploader !== undefined) {
+			if (uploader) {
 				uploader.destroy();
 			}
 			try {
-				uploader = buildUploader(flashSwfUrl, silverlightXapUrl, 
-                  uploadUrl, state);
+				uploader = buildUploader(getResourceUrl("flashSwfUrl"), 
+                  getResourceUrl("silverlightSwfUrl"), uploadUrl, state);
+                browseDisabled = false;
+                applied = {
+                  runtimes: state.runtimes,
+                  url: state.url,
+                  multipart: state.multipart,
+                  maxFileSize: state.maxFileSize,
+                  chunkSize: state.chunkSize,
+                  maxRetries: state.maxRetries
+                };
 			}
 			catch (ex) {
 				// TODO: This needs to be cleaned up!
@@ -223,40 +1405,36 @@ org_mpilone_vaadin_Plupload = function() {
 		}
 		
 		// Apply state that doesn't require a rebuild.
-		uploader.settings.max_file_size = state.maxFileSize;
-		uploader.settings.chunk_size = state.chunkSize;
-        submitBtn.caption.innerHTML = state.buttonCaption;
-        immediate = state.immediate;
-        
-        if (immediate && submitBtn.root.parentNode === container) {
-          // Remove the submit button and file name input.
-          container.removeChild(fileInput);
-          container.removeChild(submitBtn.root);
-          browseBtn.caption.innerHTML = state.buttonCaption;
+        if (changed(state, "url")) {
+          uploader.settings.url = uploadUrl;
+          applied.url = state.url;
         }
-        else if (!immediate && submitBtn.root.parentNode !== container) {
-          // Add the submit button and file name input.
-          container.appendChild(fileInput);
-          container.appendChild(submitBtn.root);
-          browseBtn.caption.innerHTML = BROWSE_BUTTON_CAPTION;
+        if (changed(state, "multipart")) {
+          uploader.settings.multipart = state.multipart;
+          applied.multipart = state.multipart;
+        }
+        if (changed(state, "maxFileSize")) {
+          uploader.settings.max_file_size = state.maxFileSize;
+          applied.maxFileSize = state.maxFileSize;
+        }
+        if (changed(state, "chunkSize")) {
+          uploader.settings.chunk_size = state.chunkSize;
+          applied.chunkSize = state.chunkSize;
+        }
+        if (changed(state, "maxRetries")) {
+          uploader.settings.max_retries = state.maxRetries;
+          applied.maxRetries = state.maxRetries;
+        }
+        
+        if (browseDisabled !== submitBtn.disabled) {
+          uploader.disableBrowse(submitBtn.disabled);
+          browseDisabled = submitBtn.disabled;
         }
 		
-		// Check for browse enabled.
-		if (state.enabled && submitBtn.disabled) {
-			uploader.disableBrowse(false);
-			browseBtn.root.className = BROWSE_BUTTON_CLASSNAME;
-            submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME;
-            submitBtn.disabled = false;
-		}
-		else if (!state.enabled && !submitBtn.disabled) {
-			uploader.disableBrowse(true);
-			browseBtn.root.className = BROWSE_BUTTON_CLASSNAME + " v-disabled";
-            submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME + " v-disabled";
-            submitBtn.disabled = true;
-		}
-		
-        // Refresh to make sure everything is positioned correctly.
-        uploader.refresh();
+        // A new uploader must be positioned over the browse button.
+        if (rebuild) {
+          uploader.refresh();
+        }
         
 		// Check for upload start state change.
 		if (state.submitUpload && uploader.state === plupload.STOPPED) {
@@ -269,7 +1447,33 @@ org_mpilone_vaadin_Plupload = function() {
 			console_log("Aborting upload.");			
 			uploader.stop();
 		}
-	};
+	}
+
+    /*
+     * Applies the current state when using a shared uploader. The shared 
+     * uploader is positioned off screen so no refresh is needed.
+     */
+    function applySharedState(uploadUrl, state) {
+      if (uploader) {
+        uploader.destroy();
+        uploader = null;
+        browseDisabled = false;
+      }
+      
+      if (shared && shared.url !== uploadUrl) {
+        leaveShared();
+      }
+      if (!shared) {
+        joinShared(uploadUrl);
+      }
+      
+      if (state.submitUpload) {
+        submitShared();
+      }
+      if (state.interruptUpload) {
+        interruptShared();
+      }
+    }
 
     function createPseudoVaadinButton() {
       
@@ -307,6 +1511,15 @@ org_mpilone_vaadin_Plupload = function() {
     browseBtn.root.setAttribute("id", "plupload_browse_button_" + connectorId);
 	browseBtn.root.className = BROWSE_BUTTON_CLASSNAME;
     browseBtn.caption.innerHTML = "Choose File";
+    browseBtn.root.onclick = function() {
+      // Open the file dialog of the shared uploader on behalf of this 
+      // connector. A connector with its own uploader handles the click 
+      // in the runtime.
+      if (shared && !submitBtn.disabled) {
+        shared.activeId = connectorId;
+        shared.browseButton.click();
+      }
+    };
     container.appendChild(browseBtn.root);
     
 	var fileInput = document.createElement("input");
@@ -319,8 +1532,15 @@ org_mpilone_vaadin_Plupload = function() {
 	submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME;
     submitBtn.caption.innerHTML = "Submit";
     submitBtn.root.onclick = function() {
-      uploader.start();
+      if (shared) {
+        submitShared();
+      }
+      else if (uploader) {
+        uploader.start();
+      }
     };
     submitBtn.disabled = false;
 	container.appendChild(submitBtn.root);
+    
+    addActivationTriggers();
 };
\ No newline at end of file
@@ -0,0 +1,7 @@
+/*
+ * The entry point into the upload router connector from the Vaadin 
+ * framework. The router has no client side behavior; it only exists to 
+ * provide a shared upload URL on the server.
+ */
+org_mpilone_vaadin_PluploadUploadRouter = function() {
+};
@@ -0,0 +1,163 @@
+package org.mpilone.vaadin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Verifies that a steady state chunked upload doesn't allocate in the per
+ * chunk write chain. The allocated bytes of the test thread are measured over
+ * many chunks after a warm up so one time allocations (e.g. the batch buffer
+ * and retry buffer blocks) are excluded.
+ *
+ * @author mpilone
+ */
+public class ChunkAllocationTest {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int WRITE_SIZE = 4 * 1024;
+  private static final int SINGLE_BYTE_WRITES = 100;
+  private static final int WARMUP_CHUNKS = 20000;
+  private static final int MEASURED_CHUNKS = 10000;
+
+  private final byte[] data = new byte[WRITE_SIZE];
+  private final CountingOutputStream receiver = new CountingOutputStream();
+  private final ChunkOutputStream chunkOutstream = new ChunkOutputStream();
+  private long chunkChecksum;
+
+  /**
+   * Tests a chunk written through the retry buffer and committed when the
+   * chunk completes. The single byte writes don't fit in the heap tier so
+   * every chunk spills to the direct tier as well.
+   *
+   * @throws IOException if the write fails
+   */
+  @Test
+  public void testRetryBufferChunkDoesNotAllocate() throws IOException {
+    ChunkWriter writer = new ChunkWriter(receiver, 0, new PriorityGate(1));
+    writer.setTransactionalOutputStream(new TransactionalOutputStream(
+        new RetryBufferArena(RetryBufferArena.DEFAULT_BLOCK_SIZE),
+        CHUNK_SIZE, receiver));
+
+    assertNoAllocation(writer);
+  }
+
+  /**
+   * Tests a chunk written directly to the receiver.
+   *
+   * @throws IOException if the write fails
+   */
+  @Test
+  public void testDirectChunkDoesNotAllocate() throws IOException {
+    ChunkWriter writer = new ChunkWriter(receiver, 0, new PriorityGate(1));
+
+    assertNoAllocation(writer);
+  }
+
+  /**
+   * Writes chunks to the given writer and asserts that the measured chunks
+   * allocated less than a byte per chunk on average.
+   *
+   * @param writer the writer to write the chunks to
+   *
+   * @throws IOException if the write fails
+   */
+  private void assertNoAllocation(ChunkWriter writer) throws IOException {
+    com.sun.management.ThreadMXBean threadBean = getThreadBean();
+    long threadId = Thread.currentThread().getId();
+
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < CHUNK_SIZE / WRITE_SIZE; ++i) {
+      crc.update(data);
+    }
+    for (int i = 0; i < SINGLE_BYTE_WRITES; ++i) {
+      crc.update(data[i]);
+    }
+    chunkChecksum = crc.getValue();
+
+    long offset = writeChunks(writer, 0, WARMUP_CHUNKS);
+
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    offset = writeChunks(writer, offset, MEASURED_CHUNKS);
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+    assertEquals(offset, receiver.count);
+    assertTrue("Allocated " + allocated + " bytes in " + MEASURED_CHUNKS
+        + " chunks.", allocated < MEASURED_CHUNKS);
+  }
+
+  /**
+   * Writes the given number of chunks the same way a chunk request does.
+   *
+   * @param writer the writer to write the chunks to
+   * @param offset the offset of the first chunk
+   * @param count the number of chunks to write
+   *
+   * @return the offset after the last chunk
+   *
+   * @throws IOException if the write fails
+   */
+  private long writeChunks(ChunkWriter writer, long offset, int count) throws
+      IOException {
+    for (int i = 0; i < count; ++i) {
+      writer.beginWrite(offset, false);
+      chunkOutstream.reset(writer, offset, chunkChecksum);
+
+      for (int j = 0; j < CHUNK_SIZE / WRITE_SIZE; ++j) {
+        chunkOutstream.write(data, 0, data.length);
+      }
+      for (int j = 0; j < SINGLE_BYTE_WRITES; ++j) {
+        chunkOutstream.write(data[j]);
+      }
+      chunkOutstream.close();
+
+      assertTrue(chunkOutstream.isVerified());
+      offset = writer.commit(chunkOutstream.isCommitAdmitted());
+      chunkOutstream.releaseCommit();
+      writer.endWrite();
+    }
+    return offset;
+  }
+
+  /**
+   * Returns the thread bean used to measure allocations. The test is skipped
+   * if the JVM can't measure thread allocations.
+   *
+   * @return the thread bean
+   */
+  private static com.sun.management.ThreadMXBean getThreadBean() {
+    assumeTrue(ManagementFactory.getThreadMXBean()
+        instanceof com.sun.management.ThreadMXBean);
+
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    return threadBean;
+  }
+
+  /**
+   * A receiver stream that discards the data and counts the bytes written.
+   */
+  private static class CountingOutputStream extends OutputStream {
+
+    long count;
+
+    @Override
+    public void write(int b) throws IOException {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count += len;
+    }
+  }
+}
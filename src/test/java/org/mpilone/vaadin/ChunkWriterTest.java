@@ -0,0 +1,402 @@
+package org.mpilone.vaadin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ChunkWriter} with overlapping and retried chunk requests.
+ *
+ * @author mpilone
+ */
+public class ChunkWriterTest {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private final byte[] file = new byte[3 * CHUNK_SIZE];
+  private final PriorityGate gate = new PriorityGate(1);
+
+  /**
+   * Fills the file with a pattern so misplaced data is detected.
+   */
+  @Before
+  public void setUp() {
+    for (int i = 0; i < file.length; ++i) {
+      file[i] = (byte) (i % 251);
+    }
+  }
+
+  /**
+   * Tests that a chunk receiver that is truncated to rewrite a retried chunk
+   * receives the whole chunk again while the processors and a checksum of the
+   * delegate see each byte exactly once.
+   *
+   * @throws IOException if a write fails
+   */
+  @Test
+  public void testTruncatedChunkIsProcessedOnce() throws IOException {
+    PositionalReceiver receiver = new PositionalReceiver(file.length);
+    ChunkReceiverOutputStream receiverOutstream =
+        new ChunkReceiverOutputStream(receiver, "file1");
+    CRC32 checksum = new CRC32();
+    RecordingProcessor processor = new RecordingProcessor();
+    ProcessorOutputStream delegate = new ProcessorOutputStream(
+        new CheckedOutputStream(receiverOutstream, checksum), Collections.
+        <UploadProcessor>singletonList(processor));
+    ChunkWriter writer = new ChunkWriter(delegate, receiverOutstream, 0,
+        gate);
+
+    writeChunk(writer, receiverOutstream, 0, CHUNK_SIZE);
+
+    // The first attempt at the second chunk fails part way through.
+    beginChunk(writer, receiverOutstream, CHUNK_SIZE, true);
+    writer.write(CHUNK_SIZE, file, CHUNK_SIZE, 300);
+    assertEquals(0, writer.endWrite());
+    receiverOutstream.endChunk();
+
+    // The retry truncates to the start of the chunk.
+    beginChunk(writer, receiverOutstream, CHUNK_SIZE, true);
+    assertEquals(CHUNK_SIZE, writer.getCommittedOffset());
+    writer.write(CHUNK_SIZE, file, CHUNK_SIZE, CHUNK_SIZE);
+    endChunk(writer, receiverOutstream);
+
+    writeChunk(writer, receiverOutstream, 2 * CHUNK_SIZE, CHUNK_SIZE);
+
+    assertArrayEquals(file, processor.data.toByteArray());
+    assertArrayEquals(file, receiver.data);
+    assertEquals(4, receiver.chunks);
+
+    CRC32 expected = new CRC32();
+    expected.update(file);
+    assertEquals(expected.getValue(), checksum.getValue());
+  }
+
+  /**
+   * Tests that a stale request that fails while the retry of its chunk is
+   * writing doesn't discard the data of the retry.
+   *
+   * @throws IOException if a write fails
+   */
+  @Test
+  public void testStaleRequestDoesNotRollBackRetry() throws IOException {
+    ByteArrayOutputStream receiver = new ByteArrayOutputStream();
+    ChunkWriter writer = newBufferedWriter(receiver);
+
+    // The stale request writes part of the chunk before the client gives up
+    // on it and retries.
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, 400);
+
+    // The retry overlaps the stale request so nothing is discarded and the
+    // data already written is skipped.
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, 700);
+
+    // The stale request continues and then fails.
+    writer.write(400, file, 400, 200);
+    assertEquals(1, writer.endWrite());
+
+    writer.write(700, file, 700, CHUNK_SIZE - 700);
+    assertEquals(0, writer.endWrite());
+    assertEquals(CHUNK_SIZE, writer.commit());
+
+    assertArrayEquals(Arrays.copyOf(file, CHUNK_SIZE), receiver.
+        toByteArray());
+  }
+
+  /**
+   * Tests that a stale request that finishes with a checksum mismatch while
+   * the retry of its chunk is writing fails the commit of the retry rather
+   * than discarding data the retry skipped, and that the next attempt at the
+   * chunk is received on its own.
+   *
+   * @throws IOException if a write fails
+   */
+  @Test
+  public void testCorruptStaleRequestFailsRetry() throws IOException {
+    ByteArrayOutputStream receiver = new ByteArrayOutputStream();
+    ChunkWriter writer = newBufferedWriter(receiver);
+
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, 400);
+
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, CHUNK_SIZE);
+
+    // The stale request fails verification while the retry is writing.
+    assertEquals(1, writer.endWrite());
+    assertTrue(writer.rollback());
+    assertEquals(CHUNK_SIZE, writer.getWrittenOffset());
+
+    assertEquals(0, writer.endWrite());
+    try {
+      writer.commit();
+      throw new AssertionError("Committed data of a corrupt request.");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+    assertEquals(0, writer.getWrittenOffset());
+
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, CHUNK_SIZE);
+    assertEquals(0, writer.endWrite());
+    assertEquals(CHUNK_SIZE, writer.commit());
+
+    assertArrayEquals(Arrays.copyOf(file, CHUNK_SIZE), receiver.
+        toByteArray());
+  }
+
+  /**
+   * Tests that the partial data of a failed request is discarded by the
+   * retry when no other request is writing.
+   *
+   * @throws IOException if a write fails
+   */
+  @Test
+  public void testRetryDiscardsFailedAttempt() throws IOException {
+    ByteArrayOutputStream receiver = new ByteArrayOutputStream();
+    ChunkWriter writer = newBufferedWriter(receiver);
+
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, 400);
+    assertEquals(0, writer.endWrite());
+
+    assertTrue(writer.beginWrite(0, false));
+    assertEquals(0, writer.getWrittenOffset());
+    writer.write(0, file, 0, CHUNK_SIZE);
+    assertEquals(0, writer.endWrite());
+    assertEquals(CHUNK_SIZE, writer.commit());
+
+    // A late request for the committed chunk is skipped entirely.
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, CHUNK_SIZE);
+    assertEquals(0, writer.endWrite());
+    assertEquals(CHUNK_SIZE, writer.commit());
+
+    assertArrayEquals(Arrays.copyOf(file, CHUNK_SIZE), receiver.
+        toByteArray());
+  }
+
+  /**
+   * Tests that a commit fails before any data is passed to the receiver or
+   * the processors while a processor isn't ready and that the retry of the
+   * chunk is committed once it is.
+   *
+   * @throws IOException if a write fails
+   */
+  @Test
+  public void testUnreadyProcessorFailsCommit() throws IOException {
+    ByteArrayOutputStream receiver = new ByteArrayOutputStream();
+    RecordingProcessor processor = new RecordingProcessor();
+    ProcessorOutputStream delegate = new ProcessorOutputStream(receiver,
+        Collections.<UploadProcessor>singletonList(processor));
+    ChunkWriter writer = new ChunkWriter(delegate, 0, gate);
+    writer.setTransactionalOutputStream(new TransactionalOutputStream(
+        new RetryBufferArena(RetryBufferArena.DEFAULT_BLOCK_SIZE), CHUNK_SIZE,
+        delegate));
+
+    processor.ready = false;
+    assertFalse(writer.beginWrite(0, false));
+    writer.write(0, file, 0, CHUNK_SIZE);
+    assertEquals(0, writer.endWrite());
+    try {
+      writer.commit();
+      throw new AssertionError("Committed data to a processor that isn't "
+          + "ready.");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+    assertEquals(0, receiver.size());
+    assertEquals(0, processor.data.size());
+
+    processor.ready = true;
+    assertTrue(writer.beginWrite(0, false));
+    writer.write(0, file, 0, CHUNK_SIZE);
+    assertEquals(0, writer.endWrite());
+    assertEquals(CHUNK_SIZE, writer.commit());
+
+    assertArrayEquals(Arrays.copyOf(file, CHUNK_SIZE), receiver.
+        toByteArray());
+    assertArrayEquals(Arrays.copyOf(file, CHUNK_SIZE), processor.data.
+        toByteArray());
+  }
+
+  /**
+   * Tests that data after the written offset is rejected.
+   *
+   * @throws IOException if a write fails
+   */
+  @Test(expected = IOException.class)
+  public void testGapIsRejected() throws IOException {
+    ChunkWriter writer = newBufferedWriter(new ByteArrayOutputStream());
+
+    writer.beginWrite(CHUNK_SIZE, false);
+    writer.write(CHUNK_SIZE, file, CHUNK_SIZE, CHUNK_SIZE);
+  }
+
+  /**
+   * Constructs a writer that buffers the data in a retry buffer until
+   * committed.
+   *
+   * @param receiver the receiver stream
+   *
+   * @return the new writer
+   */
+  private ChunkWriter newBufferedWriter(ByteArrayOutputStream receiver) {
+    ChunkWriter writer = new ChunkWriter(receiver, 0, gate);
+    writer.setTransactionalOutputStream(new TransactionalOutputStream(
+        new RetryBufferArena(RetryBufferArena.DEFAULT_BLOCK_SIZE), CHUNK_SIZE,
+        receiver));
+    return writer;
+  }
+
+  /**
+   * Writes a complete chunk in a single request.
+   *
+   * @param writer the writer
+   * @param receiverOutstream the chunk receiver stream
+   * @param offset the offset of the chunk
+   * @param len the length of the chunk
+   *
+   * @throws IOException if a write fails
+   */
+  private void writeChunk(ChunkWriter writer,
+      ChunkReceiverOutputStream receiverOutstream, int offset, int len)
+      throws IOException {
+    beginChunk(writer, receiverOutstream, offset, true);
+    writer.write(offset, file, offset, len);
+    endChunk(writer, receiverOutstream);
+  }
+
+  /**
+   * Begins a chunk request the same way the component does for a chunk
+   * receiver.
+   *
+   * @param writer the writer
+   * @param receiverOutstream the chunk receiver stream
+   * @param offset the offset of the chunk
+   * @param truncate true to allow truncation
+   *
+   * @throws IOException if the previous receiver chunk cannot be ended
+   */
+  private void beginChunk(ChunkWriter writer,
+      ChunkReceiverOutputStream receiverOutstream, int offset,
+      boolean truncate) throws IOException {
+    writer.beginWrite(offset, truncate);
+
+    long committedOffset = writer.getCommittedOffset();
+    receiverOutstream.beginChunk(new ChunkReceiver.Chunk("file1", "file1.bin",
+        null, file.length, committedOffset / CHUNK_SIZE, committedOffset));
+  }
+
+  /**
+   * Ends a chunk request the same way the component does for a chunk
+   * receiver.
+   *
+   * @param writer the writer
+   * @param receiverOutstream the chunk receiver stream
+   *
+   * @throws IOException if the commit fails
+   */
+  private void endChunk(ChunkWriter writer,
+      ChunkReceiverOutputStream receiverOutstream) throws IOException {
+    assertEquals(0, writer.endWrite());
+    writer.commit();
+    receiverOutstream.endChunk();
+  }
+
+  /**
+   * A chunk receiver that writes each chunk at its offset in memory.
+   */
+  private static class PositionalReceiver implements ChunkReceiver {
+
+    final byte[] data;
+    int chunks;
+
+    /**
+     * Constructs the receiver.
+     *
+     * @param length the length of the file
+     */
+    PositionalReceiver(int length) {
+      this.data = new byte[length];
+    }
+
+    @Override
+    public WritableByteChannel receiveChunk(final Chunk chunk) throws
+        IOException {
+      chunks++;
+      return new WritableByteChannel() {
+        private int position = (int) chunk.getOffset();
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+          int len = src.remaining();
+          src.get(data, position, len);
+          position += len;
+          return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+      };
+    }
+
+    @Override
+    public void uploadEnded(String fileId, boolean succeeded) throws
+        IOException {
+    }
+  }
+
+  /**
+   * A processor that records all the data it processes.
+   */
+  private static class RecordingProcessor implements UploadProcessor {
+
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    boolean ready = true;
+
+    @Override
+    public void start(Context context) throws IOException {
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void process(byte[] b, int off, int len) throws IOException {
+      data.write(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+    }
+
+    @Override
+    public void abort(Exception reason) {
+    }
+  }
+}
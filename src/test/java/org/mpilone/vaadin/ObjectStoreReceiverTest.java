@@ -0,0 +1,282 @@
+package org.mpilone.vaadin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ObjectStoreReceiver} against an {@link InMemoryObjectStore}.
+ *
+ * @author mpilone
+ */
+public class ObjectStoreReceiverTest {
+
+  private static final int CHUNK_SIZE = 1000;
+  private static final String FILE_ID = "file1";
+  private static final String FILENAME = "file1.bin";
+  private static final String KEY = FILE_ID + "/" + FILENAME;
+
+  private final byte[] file = new byte[3 * CHUNK_SIZE];
+  private ExecutorService executor;
+
+  /**
+   * Fills the file with a pattern so misplaced data is detected.
+   */
+  @Before
+  public void setUp() {
+    for (int i = 0; i < file.length; ++i) {
+      file[i] = (byte) (i % 251);
+    }
+    executor = Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Shuts down the part executor.
+   */
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Tests that each chunk is uploaded as the part numbered by its index plus
+   * one and that the parts are completed in order even when they finish out
+   * of order.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testPartsCompletedInOrder() throws Exception {
+    final CountDownLatch lastPartDone = new CountDownLatch(1);
+    RecordingStore store = new RecordingStore() {
+      @Override
+      public String uploadPart(String key, String uploadId, int partNumber,
+          byte[] data, int len) throws IOException {
+        // The first part finishes after the last.
+        if (partNumber == 1) {
+          await(lastPartDone);
+        }
+        String etag = super.uploadPart(key, uploadId, partNumber, data, len);
+        if (partNumber == 3) {
+          lastPartDone.countDown();
+        }
+        return etag;
+      }
+    };
+    ObjectStoreReceiver receiver = new ObjectStoreReceiver(store, executor,
+        4);
+
+    for (int i = 0; i < 3; ++i) {
+      writeChunk(receiver, i, file);
+    }
+    receiver.uploadEnded(FILE_ID, true);
+
+    assertArrayEquals(file, store.getObject(KEY));
+    assertEquals(Arrays.asList(1, 2, 3), store.completedParts);
+    assertEquals(0, store.getPendingUploadCount());
+  }
+
+  /**
+   * Tests that a retried chunk replaces the part uploaded by the failed
+   * attempt.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testRetriedChunkReplacesPart() throws Exception {
+    InMemoryObjectStore store = new InMemoryObjectStore();
+    ObjectStoreReceiver receiver = new ObjectStoreReceiver(store, executor,
+        4);
+
+    writeChunk(receiver, 0, file);
+    writeChunk(receiver, 1, new byte[file.length]);
+    writeChunk(receiver, 1, file);
+    writeChunk(receiver, 2, file);
+    receiver.uploadEnded(FILE_ID, true);
+
+    assertArrayEquals(file, store.getObject(KEY));
+  }
+
+  /**
+   * Tests that a failed (or reaped) upload aborts the multipart upload so no
+   * object is created and the parts are discarded.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testFailedUploadIsAborted() throws Exception {
+    InMemoryObjectStore store = new InMemoryObjectStore();
+    ObjectStoreReceiver receiver = new ObjectStoreReceiver(store, executor,
+        4);
+
+    writeChunk(receiver, 0, file);
+    writeChunk(receiver, 1, file);
+    assertEquals(1, store.getPendingUploadCount());
+
+    receiver.uploadEnded(FILE_ID, false);
+
+    assertNull(store.getObject(KEY));
+    assertEquals(0, store.getPendingUploadCount());
+  }
+
+  /**
+   * Tests that a part that fails to upload fails the upload and aborts the
+   * multipart upload.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testFailedPartAbortsUpload() throws Exception {
+    InMemoryObjectStore store = new InMemoryObjectStore() {
+      @Override
+      public String uploadPart(String key, String uploadId, int partNumber,
+          byte[] data, int len) throws IOException {
+        if (partNumber == 2) {
+          throw new IOException("Simulated part failure.");
+        }
+        return super.uploadPart(key, uploadId, partNumber, data, len);
+      }
+    };
+    ObjectStoreReceiver receiver = new ObjectStoreReceiver(store, executor,
+        4);
+
+    writeChunk(receiver, 0, file);
+    writeChunk(receiver, 1, file);
+    try {
+      receiver.uploadEnded(FILE_ID, true);
+      throw new AssertionError("Completed an upload with a failed part.");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+
+    assertNull(store.getObject(KEY));
+    assertEquals(0, store.getPendingUploadCount());
+  }
+
+  /**
+   * Tests that no more than the maximum number of parts are in flight at once
+   * and that a part that can't get a slot within the part timeout fails its
+   * chunk.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testPartsInFlightAreBounded() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    InMemoryObjectStore store = new InMemoryObjectStore() {
+      @Override
+      public String uploadPart(String key, String uploadId, int partNumber,
+          byte[] data, int len) throws IOException {
+        int count = inFlight.incrementAndGet();
+        synchronized (maxInFlight) {
+          maxInFlight.set(Math.max(maxInFlight.get(), count));
+        }
+        try {
+          await(release);
+          return super.uploadPart(key, uploadId, partNumber, data, len);
+        }
+        finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    };
+    ObjectStoreReceiver receiver = new ObjectStoreReceiver(store, executor,
+        2);
+    receiver.setPartTimeout(100);
+
+    writeChunk(receiver, 0, file);
+    writeChunk(receiver, 1, file);
+    try {
+      writeChunk(receiver, 2, file);
+      throw new AssertionError("Started a part beyond the limit.");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+
+    release.countDown();
+    writeChunk(receiver, 2, file);
+    receiver.uploadEnded(FILE_ID, true);
+
+    assertEquals(2, maxInFlight.get());
+    assertArrayEquals(file, store.getObject(KEY));
+  }
+
+  /**
+   * Writes the chunk with the given index of the given data to the receiver
+   * and closes it so the part is uploaded.
+   *
+   * @param receiver the receiver
+   * @param index the zero based index of the chunk
+   * @param data the file data to take the chunk from
+   *
+   * @throws IOException if the chunk can't be written
+   */
+  private void writeChunk(ObjectStoreReceiver receiver, int index,
+      byte[] data) throws IOException {
+    long offset = (long) index * CHUNK_SIZE;
+    WritableByteChannel channel = receiver.receiveChunk(
+        new ChunkReceiver.Chunk(FILE_ID, FILENAME, null, file.length, index,
+            offset));
+    try {
+      channel.write(ByteBuffer.wrap(data, (int) offset, CHUNK_SIZE));
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Waits for the given latch.
+   *
+   * @param latch the latch to wait for
+   *
+   * @throws IOException if the wait times out or is interrupted
+   */
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(5, TimeUnit.SECONDS)) {
+        throw new IOException("Timed out waiting for the test.");
+      }
+    }
+    catch (InterruptedException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  /**
+   * A store that records the part numbers of each completed upload in the
+   * order given.
+   */
+  private static class RecordingStore extends InMemoryObjectStore {
+
+    final List<Integer> completedParts = new ArrayList<>();
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId,
+        SortedMap<Integer, String> partETags) throws IOException {
+      completedParts.addAll(partETags.keySet());
+      super.completeMultipartUpload(key, uploadId, partETags);
+    }
+  }
+}
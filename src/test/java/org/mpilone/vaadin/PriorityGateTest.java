@@ -0,0 +1,149 @@
+package org.mpilone.vaadin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the admission order and bounded wait of the {@link PriorityGate}.
+ *
+ * @author mpilone
+ */
+public class PriorityGateTest {
+
+  /**
+   * Tests that a thread that isn't admitted within the maximum wait fails
+   * and leaves the gate usable.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testWaitIsBounded() throws Exception {
+    PriorityGate gate = new PriorityGate(1);
+    gate.setMaxWait(50);
+
+    gate.acquire(Plupload.Priority.HIGH);
+    try {
+      gate.acquire(Plupload.Priority.HIGH);
+      throw new AssertionError("Acquired a permit that wasn't available.");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+    assertEquals(0, gate.getWaiting());
+    assertFalse(gate.tryAcquire(Plupload.Priority.HIGH));
+
+    gate.release();
+    assertTrue(gate.tryAcquire(Plupload.Priority.LOW));
+    gate.release();
+  }
+
+  /**
+   * Tests that a high priority waiter is admitted before a low priority
+   * waiter that arrived earlier.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testHighPriorityWaiterGoesFirst() throws Exception {
+    assertEquals(Arrays.asList("high", "low"), admit(0));
+  }
+
+  /**
+   * Tests that a low priority waiter that has waited more than two aging
+   * intervals is admitted before a high priority waiter that arrived later.
+   *
+   * @throws Exception if the test fails
+   */
+  @Test
+  public void testLowPriorityWaiterAges() throws Exception {
+    assertEquals(Arrays.asList("low", "high"), admit(250));
+  }
+
+  /**
+   * Queues a low priority waiter and then, after the given delay, a high
+   * priority waiter behind a held permit and returns the order in which they
+   * are admitted. The aging interval is 100 ms.
+   *
+   * @param delay the milliseconds between the two waiters arriving
+   *
+   * @return the names of the waiters in admission order
+   *
+   * @throws Exception if the test fails
+   */
+  private static List<String> admit(long delay) throws Exception {
+    PriorityGate gate = new PriorityGate(1);
+    gate.setAgingInterval(100);
+    List<String> admitted = Collections.synchronizedList(
+        new ArrayList<String>());
+
+    gate.acquire(Plupload.Priority.HIGH);
+    Thread low = startWaiter(gate, Plupload.Priority.LOW, "low", admitted);
+    awaitWaiting(gate, 1);
+    Thread.sleep(delay);
+    Thread high = startWaiter(gate, Plupload.Priority.HIGH, "high", admitted);
+    awaitWaiting(gate, 2);
+
+    gate.release();
+    low.join(5000);
+    high.join(5000);
+    return admitted;
+  }
+
+  /**
+   * Starts a thread that acquires a permit, records its name, and releases
+   * the permit.
+   *
+   * @param gate the gate to acquire
+   * @param priority the priority of the waiter
+   * @param name the name to record when admitted
+   * @param admitted the names in admission order
+   *
+   * @return the started thread
+   */
+  private static Thread startWaiter(final PriorityGate gate,
+      final Plupload.Priority priority, final String name,
+      final List<String> admitted) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          gate.acquire(priority);
+        }
+        catch (IOException ex) {
+          return;
+        }
+        admitted.add(name);
+        gate.release();
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Waits until the given number of threads are waiting for the gate.
+   *
+   * @param gate the gate
+   * @param count the number of waiting threads
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private static void awaitWaiting(PriorityGate gate, int count) throws
+      InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (gate.getWaiting() < count && System.currentTimeMillis()
+        < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, gate.getWaiting());
+  }
+}